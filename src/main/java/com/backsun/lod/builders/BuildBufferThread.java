@@ -1,5 +1,4 @@
 package com.backsun.lod.builders;
-import java.awt.Color;
 import java.util.concurrent.Callable;
 
 import org.lwjgl.opengl.GL11;
@@ -25,7 +24,8 @@ public class BuildBufferThread implements Callable<NearFarBuffer>
 	public BufferBuilder farBuffer;
 	public FogDistance distanceMode;
 	public AxisAlignedBB[][] lods;
-	public Color[][] colors;
+	/** ARGB colors */
+	public int[][] colors;
 	
 	private int startLodIndex = 0;
 	private int endLodIndex = -1;
@@ -39,7 +39,7 @@ public class BuildBufferThread implements Callable<NearFarBuffer>
 	
 	public BuildBufferThread(BufferBuilder newNearBufferBuilder, 
 			BufferBuilder newFarBufferBuilder, AxisAlignedBB[][] newLods, 
-			Color[][] newColors, FogDistance newDistanceMode, int newStartingIndex, 
+			int[][] newColors, FogDistance newDistanceMode, int newStartingIndex, 
 			int numberOfRowsToGenerate)
 	{
 		setNewData(newNearBufferBuilder, newFarBufferBuilder, distanceMode, 
@@ -48,7 +48,7 @@ public class BuildBufferThread implements Callable<NearFarBuffer>
 	
 	public void setNewData(BufferBuilder newNearBufferBuilder, 
 			BufferBuilder newFarBufferBuilder, FogDistance newDistanceMode, 
-			AxisAlignedBB[][] newLods, Color[][] newColors, 
+			AxisAlignedBB[][] newLods, int[][] newColors, 
 			int newStartingIndex, int numberOfRowsToGenerate)
 	{
 		nearBuffer = newNearBufferBuilder;
@@ -95,16 +95,16 @@ public class BuildBufferThread implements Callable<NearFarBuffer>
 			// z axis
 			for (int j = 0; j < numbChunksWide; j++)
 			{
-				if (lods[i][j] == null || colors[i][j] == null)
+				if (lods[i][j] == null)
 					continue;
 				
 				bb = lods[i][j];
 				
 				// get the color of this LOD object
-				red = colors[i][j].getRed();
-				green = colors[i][j].getGreen();
-				blue = colors[i][j].getBlue();
-				alpha = colors[i][j].getAlpha();
+				red = (colors[i][j] >> 16) & 0xFF;
+				green = (colors[i][j] >> 8) & 0xFF;
+				blue = colors[i][j] & 0xFF;
+				alpha = (colors[i][j] >> 24) & 0xFF;
 				
 				
 				if (distanceMode == FogDistance.NEAR_AND_FAR)
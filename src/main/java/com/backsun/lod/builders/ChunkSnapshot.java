@@ -0,0 +1,140 @@
+package com.backsun.lod.builders;
+
+import net.minecraft.block.Block;
+import net.minecraft.block.state.IBlockState;
+import net.minecraft.world.chunk.Chunk;
+import net.minecraft.world.chunk.NibbleArray;
+import net.minecraft.world.chunk.storage.ExtendedBlockStorage;
+
+/**
+ * This object is a copy of the blocks
+ * of a Minecraft chunk, so LodChunks can be generated on
+ * another thread while Minecraft changes or unloads the chunk.
+ * <br><br>
+ * The blocks are stored the same way Minecraft saves them:
+ * the lower 8 bits of each block's id, its metadata, and the upper
+ * 4 bits of its id (only for sections that need them).
+ * BlockStateContainer.getDataForNBT fills them in a single pass.
+ * Snapshots are made on the thread that gives us the chunk,
+ * how long they take is shown on the debug screen (F3).
+ * <br><br>
+ * Nothing changes a snapshot after it is created.
+ * 
+ * @author James Seibel
+ * @version 10-16-2026
+ */
+public class ChunkSnapshot
+{
+	/** how many blocks wide a chunk is */
+	public static final int CHUNK_WIDTH = 16;
+	/** how many blocks tall each section (ExtendedBlockStorage) is */
+	public static final int SECTION_HEIGHT = 16;
+	/** how many blocks are in each section */
+	public static final int SECTION_SIZE = CHUNK_WIDTH * CHUNK_WIDTH * SECTION_HEIGHT;
+	
+	public final int x;
+	public final int z;
+	
+	/**
+	 * The lower 8 bits of each block's id, null if the section is empty. <br>
+	 * Index = section, then (y << 8) | (z << 4) | x
+	 */
+	private final byte[][] blockIds;
+	/** the metadata of each block, null if the section is empty */
+	private final NibbleArray[] metadata;
+	/** the upper 4 bits of each block's id, null if every id in the section fits in 8 bits */
+	private final NibbleArray[] extendedIds;
+	
+	
+	
+	/**
+	 * Copy the given chunk, this should be called on
+	 * the thread that owns the chunk.
+	 */
+	public ChunkSnapshot(Chunk chunk)
+	{
+		x = chunk.x;
+		z = chunk.z;
+		
+		ExtendedBlockStorage[] blockStorage = chunk.getBlockStorageArray();
+		blockIds = new byte[blockStorage.length][];
+		metadata = new NibbleArray[blockStorage.length];
+		extendedIds = new NibbleArray[blockStorage.length];
+		
+		for(int section = 0; section < blockStorage.length; section++)
+		{
+			// empty sections aren't copied
+			if (blockStorage[section] == null || blockStorage[section].isEmpty())
+				continue;
+			
+			blockIds[section] = new byte[SECTION_SIZE];
+			metadata[section] = new NibbleArray();
+			extendedIds[section] = blockStorage[section].getData().getDataForNBT(blockIds[section], metadata[section]);
+		}
+	}
+	
+	
+	
+	
+	
+	//=========//
+	// getters //
+	//=========//
+	
+	/**
+	 * Returns how many sections the chunk has,
+	 * including empty ones.
+	 */
+	public int getNumberOfSections()
+	{
+		return blockIds.length;
+	}
+	
+	/**
+	 * Returns true if the given section doesn't have any blocks.
+	 */
+	public boolean isSectionEmpty(int section)
+	{
+		return blockIds[section] == null;
+	}
+	
+	/**
+	 * Returns the block at the given position in the given section,
+	 * null if the block isn't registered. <br>
+	 * The section shouldn't be empty.
+	 */
+	public IBlockState get(int section, int x, int y, int z)
+	{
+		int i = (y << 8) | (z << 4) | x;
+		
+		int id = blockIds[section][i] & 0xFF;
+		if (extendedIds[section] != null)
+			id |= extendedIds[section].getFromIndex(i) << 8;
+		
+		return Block.BLOCK_STATE_IDS.getByValue((id << 4) | metadata[section].getFromIndex(i));
+	}
+	
+	/**
+	 * Returns the y value of the highest layer that has a block
+	 * other than air, -1 if every block is air. <br>
+	 * Only the block ids are checked, so nothing above 
+	 * this has to be read. Unlike the height map this includes
+	 * blocks that don't block light, like glass and fences.
+	 */
+	public int getHighestBlockHeight()
+	{
+		for(int section = blockIds.length - 1; section >= 0; section--)
+		{
+			if (blockIds[section] == null)
+				continue;
+			
+			// the blocks are ordered by y, so the
+			// first block found is in the highest layer
+			for(int i = SECTION_SIZE - 1; i >= 0; i--)
+				if (blockIds[section][i] != 0 || (extendedIds[section] != null && extendedIds[section].getFromIndex(i) != 0))
+					return (section * SECTION_HEIGHT) + (i >> 8);
+		}
+		
+		return -1;
+	}
+}
@@ -1,16 +1,28 @@
 package com.backsun.lod.builders;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
 import com.backsun.lod.handlers.LodDimensionFileHandler;
 import com.backsun.lod.objects.LodChunk;
 import com.backsun.lod.objects.LodDimension;
 import com.backsun.lod.objects.LodWorld;
+import com.backsun.lod.util.LodConfig;
 
-import net.minecraft.client.Minecraft;
 import net.minecraft.world.DimensionType;
-import net.minecraft.world.World;
 import net.minecraft.world.chunk.Chunk;
 import net.minecraft.world.chunk.storage.ExtendedBlockStorage;
 
@@ -18,15 +30,75 @@ import net.minecraft.world.chunk.storage.ExtendedBlockStorage;
  * This object is in charge of creating Lod
  * related objects. 
  * (specifically: Lod World, Dimension, Region, and Chunk objects)
+ * <br><br>
+ * A ChunkSnapshot of each chunk is made on the thread that gives
+ * us the chunk, so the LodChunks are generated from blocks
+ * that can't change or be unloaded while they are read,
+ * and the generation workers never read the live world.
+ * <br><br>
+ * Chunks wait in pendingChunks until one of the generation workers
+ * (at most LodConfig.numberOfGenerationThreads) takes them.
+ * A chunk that is already waiting isn't queued twice, and when more than
+ * LodConfig.generationQueueSize chunks are waiting the oldest are skipped,
+ * so loading lots of chunks at once can't build up an endless backlog.
+ * <br><br>
+ * The generated LodChunks are put in the lodQueue. 
+ * A single ingest thread takes them out in batches
+ * and adds each batch to its LodDimension at once, so each region
+ * is only locked and marked dirty once per batch and only
+ * one save is requested per batch.
  * 
  * @author James Seibel
  * @version 2-22-2021
  */
 public class LodBuilder
 {
-	private ExecutorService lodGenThreadPool = Executors.newSingleThreadExecutor();
 	public volatile LodWorld lodWorld;
 	
+	/** 
+	 * Chunks waiting to have their LodChunk generated, oldest first. <br>
+	 * Synchronize on it when using it.
+	 */
+	private LinkedHashMap<ChunkKey, PendingChunk> pendingChunks = new LinkedHashMap<>();
+	/** runs the generation workers, the threads are reused between workers */
+	private ExecutorService lodGenThreadPool = Executors.newCachedThreadPool();
+	/** how many generation workers are running */
+	private AtomicInteger numbGenerationWorkers = new AtomicInteger(0);
+	
+	/** how many LodChunks have been generated */
+	private LongAdder numbGeneratedLods = new LongAdder();
+	/** how long generating every LodChunk took, in nanoseconds */
+	private LongAdder generationTimeInNs = new LongAdder();
+	/** how many ChunkSnapshots have been made */
+	private LongAdder numbSnapshots = new LongAdder();
+	/** how long making every ChunkSnapshot took, in nanoseconds */
+	private LongAdder snapshotTimeInNs = new LongAdder();
+	/** how many chunks replaced a copy of themselves that was already waiting */
+	private LongAdder numbReplacedChunks = new LongAdder();
+	/** how many chunks were skipped because too many were waiting */
+	private LongAdder numbDroppedChunks = new LongAdder();
+	
+	/** LodChunks that have been generated but not added to their LodDimension yet */
+	private ConcurrentLinkedQueue<QueuedLod> lodQueue = new ConcurrentLinkedQueue<>();
+	/** the only thread that adds LodChunks to a LodDimension */
+	private ExecutorService lodIngestThread = Executors.newSingleThreadExecutor();
+	/** true while the lodQueue is queued to be (or being) emptied */
+	private AtomicBoolean ingestQueued = new AtomicBoolean(false);
+	
+	/** the most LodChunks that will be added at once */
+	public static final int MAX_INGEST_BATCH_SIZE = 256;
+	
+	/** 
+	 * The longest flushGeneratedLods will wait, so a
+	 * stuck worker can't stop the world from unloading.
+	 */
+	private static final long MAX_FLUSH_TIME_IN_MS = 10000;
+	
+	/** how many batches have been added */
+	private volatile long numbIngestedBatches = 0;
+	/** how many LodChunks have been added */
+	private volatile long numbIngestedLods = 0;
+	
 	/** Default size of any LOD regions we use */
 	public int regionWidth = 5;
 	
@@ -43,8 +115,6 @@ public class LodBuilder
 	 */
 	public LodWorld generateLodChunkAsync(Chunk chunk)
 	{
-		Minecraft mc = Minecraft.getMinecraft();
-		
 		// don't try to create an LOD object
 		// if for some reason we aren't
 		// given a valid chunk object
@@ -54,62 +124,369 @@ public class LodBuilder
 			return lodWorld;
 		
 		int dimId = chunk.getWorld().provider.getDimension();
-		World world = mc.getIntegratedServer().getWorld(dimId);
 		
-		if (world == null)
-			return lodWorld;
+		// the chunk can change once this method returns,
+		// so copy it before it is handed to a worker
+		long startTime = System.nanoTime();
+		ChunkSnapshot snapshot = new ChunkSnapshot(chunk);
+		snapshotTimeInNs.add(System.nanoTime() - startTime);
+		numbSnapshots.increment();
+		
+		synchronized (pendingChunks)
+		{
+			// a chunk that is already waiting keeps its place 
+			// in line, but the newest copy of it is generated
+			if (pendingChunks.put(new ChunkKey(dimId, chunk.x, chunk.z), new PendingChunk(dimId, snapshot)) != null)
+				numbReplacedChunks.increment();
 			
-		Thread thread = new Thread(() ->
+			// skip the oldest chunks, they are the most likely to
+			// have been unloaded and will be generated again if they load
+			Iterator<PendingChunk> oldestChunks = pendingChunks.values().iterator();
+			while(pendingChunks.size() > LodConfig.generationQueueSize)
+			{
+				oldestChunks.next();
+				oldestChunks.remove();
+				numbDroppedChunks.increment();
+			}
+		}
+		
+		startGenerationWorker();
+		
+		return lodWorld;
+	}
+	
+	/**
+	 * Start another generation worker if fewer than
+	 * LodConfig.numberOfGenerationThreads are running.
+	 */
+	private void startGenerationWorker()
+	{
+		int workers = numbGenerationWorkers.get();
+		while(workers < LodConfig.numberOfGenerationThreads)
 		{
-			try
+			if (numbGenerationWorkers.compareAndSet(workers, workers + 1))
 			{
-				LodChunk lod = new LodChunk(chunk, world);
-				LodDimension lodDim;
-				
-				if (lodWorld == null)
+				lodGenThreadPool.execute(generationWorker);
+				return;
+			}
+			
+			workers = numbGenerationWorkers.get();
+		}
+	}
+	
+	/**
+	 * Generates the oldest waiting chunk until no chunks are waiting.
+	 */
+	private Runnable generationWorker = () ->
+	{
+		// the generator isn't thread safe, so each worker has its own
+		LodChunkGenerator generator = new LodChunkGenerator();
+		
+		while(true)
+		{
+			PendingChunk pendingChunk = null;
+			synchronized (pendingChunks)
+			{
+				Iterator<PendingChunk> oldestChunks = pendingChunks.values().iterator();
+				if (oldestChunks.hasNext())
 				{
-					lodWorld = new LodWorld(LodDimensionFileHandler.getWorldName());
+					pendingChunk = oldestChunks.next();
+					oldestChunks.remove();
 				}
-				else
+			}
+			
+			if (pendingChunk == null)
+			{
+				numbGenerationWorkers.decrementAndGet();
+				
+				// a chunk could have been queued after the queue was empty
+				// but before this worker stopped, when there were already
+				// too many workers to start a new one
+				synchronized (pendingChunks)
 				{
-					// if we have a lodWorld make sure 
-					// it is for this minecraft world
-					if (!lodWorld.worldName.equals(LodDimensionFileHandler.getWorldName()))
+					if (pendingChunks.isEmpty())
 					{
-						// this lodWorld isn't for this minecraft world
-						// delete it so we can get a new one
-						lodWorld = null;
-						
-						// skip this frame
-						// we'll get this set up next time
+						// let flushGeneratedLods know a worker finished
+						pendingChunks.notifyAll();
 						return;
 					}
 				}
 				
+				int workers = numbGenerationWorkers.get();
+				if (workers >= LodConfig.numberOfGenerationThreads || !numbGenerationWorkers.compareAndSet(workers, workers + 1))
+					return;
 				
-				if (lodWorld.getLodDimension(dimId) == null)
-				{
-					DimensionType dim = DimensionType.getById(dimId);
-					lodDim = new LodDimension(dim, regionWidth);
-					lodWorld.addLodDimension(lodDim);
-				}
-				else
+				continue;
+			}
+			
+			generateLodChunk(pendingChunk, generator);
+		}
+	};
+	
+	/**
+	 * Generate the LodChunk for the given chunk
+	 * and queue it to be added to its LodDimension.
+	 */
+	private void generateLodChunk(PendingChunk pendingChunk, LodChunkGenerator generator)
+	{
+		try
+		{
+			long startTime = System.nanoTime();
+			LodChunk lod = generator.generate(pendingChunk.chunk);
+			generationTimeInNs.add(System.nanoTime() - startTime);
+			numbGeneratedLods.increment();
+			
+			lodQueue.add(new QueuedLod(pendingChunk.dimId, lod));
+			
+			// only queue the ingest thread if it 
+			// isn't already going to empty the queue
+			if (ingestQueued.compareAndSet(false, true))
+				lodIngestThread.execute(ingestThread);
+		}
+		catch(IllegalArgumentException e)
+		{
+			// the snapshot was null, there is nothing to generate
+		}
+	}
+	
+	/**
+	 * Empties the lodQueue, MAX_INGEST_BATCH_SIZE LodChunks at a time.
+	 */
+	private Thread ingestThread = new Thread(() ->
+	{
+		Map<Integer, ArrayList<LodChunk>> lodsByDimension = new HashMap<>();
+		
+		while(true)
+		{
+			int batchSize = 0;
+			QueuedLod queuedLod = lodQueue.poll();
+			while(queuedLod != null)
+			{
+				lodsByDimension.computeIfAbsent(queuedLod.dimId, k -> new ArrayList<>()).add(queuedLod.lod);
+				batchSize++;
+				
+				if (batchSize == MAX_INGEST_BATCH_SIZE)
+					break;
+				queuedLod = lodQueue.poll();
+			}
+			
+			if (batchSize == 0)
+			{
+				ingestQueued.set(false);
+				
+				// a LodChunk could have been queued after the queue
+				// was empty but before ingestQueued was cleared,
+				// in that case nobody else will empty the queue
+				if (lodQueue.isEmpty() || !ingestQueued.compareAndSet(false, true))
+					return;
+				
+				continue;
+			}
+			
+			for(Map.Entry<Integer, ArrayList<LodChunk>> entry : lodsByDimension.entrySet())
+				if (!entry.getValue().isEmpty())
+					addLodsToDimension(entry.getKey(), entry.getValue());
+			
+			for(ArrayList<LodChunk> lods : lodsByDimension.values())
+				lods.clear();
+			
+			numbIngestedBatches++;
+			numbIngestedLods += batchSize;
+		}
+	});
+	
+	/**
+	 * Add the given LodChunks to the LodDimension with the given ID,
+	 * creating the LodWorld and LodDimension if they don't exist.
+	 */
+	private void addLodsToDimension(int dimId, ArrayList<LodChunk> lods)
+	{
+		try
+		{
+			LodDimension lodDim;
+			
+			if (lodWorld == null)
+			{
+				lodWorld = new LodWorld(LodDimensionFileHandler.getWorldName());
+			}
+			else
+			{
+				// if we have a lodWorld make sure 
+				// it is for this minecraft world
+				if (!lodWorld.worldName.equals(LodDimensionFileHandler.getWorldName()))
 				{
-					lodDim = lodWorld.getLodDimension(dimId);
+					// this lodWorld isn't for this minecraft world
+					// delete it so we can get a new one
+					lodWorld = null;
+					
+					// skip this batch
+					// we'll get this set up next time
+					return;
 				}
-				
-				lodDim.addLod(lod);
 			}
-			catch(IllegalArgumentException | NullPointerException e)
+			
+			
+			if (lodWorld.getLodDimension(dimId) == null)
+			{
+				DimensionType dim = DimensionType.getById(dimId);
+				lodDim = new LodDimension(dim, regionWidth);
+				lodWorld.addLodDimension(lodDim);
+			}
+			else
+			{
+				lodDim = lodWorld.getLodDimension(dimId);
+			}
+			
+			lodDim.addLods(lods);
+		}
+		catch(IllegalArgumentException | NullPointerException e)
+		{
+			// if the world changes while LODs are being generated
+			// they will throw errors as they try to access things that no longer
+			// exist.
+		}
+	}
+	
+	/**
+	 * Wait until every waiting chunk has been generated and every
+	 * generated LodChunk has been added to its LodDimension. <br>
+	 * This should be called before the final save when the
+	 * world is unloaded, so no generated LodChunks are lost.
+	 * <br><br>
+	 * Gives up after MAX_FLUSH_TIME_IN_MS.
+	 */
+	public void flushGeneratedLods()
+	{
+		long endTime = System.currentTimeMillis() + MAX_FLUSH_TIME_IN_MS;
+		
+		try
+		{
+			// wait for the generation workers to empty pendingChunks
+			synchronized (pendingChunks)
 			{
-				// if the world changes while LODs are being generated
-				// they will throw errors as they try to access things that no longer
-				// exist.
+				while(!pendingChunks.isEmpty() || numbGenerationWorkers.get() > 0)
+				{
+					long timeLeft = endTime - System.currentTimeMillis();
+					if (timeLeft <= 0)
+						throw new TimeoutException();
+					
+					// a worker may stop while another one is still
+					// running, so check again every so often
+					pendingChunks.wait(Math.min(timeLeft, 50));
+				}
 			}
-		});
-		lodGenThreadPool.execute(thread);
+			
+			// every LodChunk is in the lodQueue now and the ingest thread 
+			// has been queued to empty it, since the ingest thread
+			// only runs one task at a time this finishes after it does
+			Future<?> ingestDone = lodIngestThread.submit(() -> {});
+			ingestDone.get(Math.max(1, endTime - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+		}
+		catch (InterruptedException | ExecutionException | TimeoutException e)
+		{
+			System.err.println("LOD generation flush didn't finish, " + 
+					getNumberOfPendingChunks() + " chunks and " + getNumberOfQueuedLods() + " LODs are still waiting.");
+		}
+	}
+	
+	/**
+	 * Returns how many chunks are waiting
+	 * to have their LodChunk generated.
+	 */
+	public int getNumberOfPendingChunks()
+	{
+		synchronized (pendingChunks)
+		{
+			return pendingChunks.size();
+		}
+	}
+	
+	/**
+	 * Returns how many LodChunks have been generated.
+	 * Check it over time to get the generation throughput.
+	 */
+	public long getNumberOfGeneratedLods()
+	{
+		return numbGeneratedLods.sum();
+	}
+	
+	/**
+	 * Returns how long it took to generate a LodChunk
+	 * on average in milliseconds, 0 if nothing has been generated yet.
+	 */
+	public double getAverageGenerationTimeInMs()
+	{
+		long generatedLods = numbGeneratedLods.sum();
+		if (generatedLods == 0)
+			return 0;
 		
-		return lodWorld;
+		return (generationTimeInNs.sum() / 1000000.0) / generatedLods;
+	}
+	
+	/**
+	 * Returns how many ChunkSnapshots have been made.
+	 */
+	public long getNumberOfSnapshots()
+	{
+		return numbSnapshots.sum();
+	}
+	
+	/**
+	 * Returns how long it took to make a ChunkSnapshot
+	 * on average in milliseconds, 0 if none have been made yet.
+	 * <br>
+	 * The snapshots are made on the thread that loads
+	 * the chunks, so this is time taken from Minecraft.
+	 */
+	public double getAverageSnapshotTimeInMs()
+	{
+		long snapshots = numbSnapshots.sum();
+		if (snapshots == 0)
+			return 0;
+		
+		return (snapshotTimeInNs.sum() / 1000000.0) / snapshots;
+	}
+	
+	/**
+	 * Returns how many chunks replaced an older copy
+	 * of themselves that was still waiting to be generated.
+	 */
+	public long getNumberOfReplacedChunks()
+	{
+		return numbReplacedChunks.sum();
+	}
+	
+	/**
+	 * Returns how many chunks were skipped because more than
+	 * LodConfig.generationQueueSize chunks were waiting.
+	 */
+	public long getNumberOfDroppedChunks()
+	{
+		return numbDroppedChunks.sum();
+	}
+	
+	/**
+	 * Returns how many LodChunks have been generated
+	 * but not added to their LodDimension yet.
+	 * <br>
+	 * This counts every queued LodChunk, so it
+	 * should only be used for debugging.
+	 */
+	public int getNumberOfQueuedLods()
+	{
+		return lodQueue.size();
+	}
+	
+	/**
+	 * Returns the average number of LodChunks that were
+	 * added at once, 0 if nothing has been added yet.
+	 */
+	public double getAverageIngestBatchSize()
+	{
+		if (numbIngestedBatches == 0)
+			return 0;
+		
+		return (double) numbIngestedLods / (double) numbIngestedBatches;
 	}
 	
 	/**
@@ -130,4 +507,71 @@ public class LodBuilder
 		
 		return false;
 	}
+	
+	
+	/**
+	 * A snapshot of a chunk waiting to have its LodChunk
+	 * generated, and the dimension it is from.
+	 */
+	private static class PendingChunk
+	{
+		public final int dimId;
+		public final ChunkSnapshot chunk;
+		
+		public PendingChunk(int newDimId, ChunkSnapshot newChunk)
+		{
+			dimId = newDimId;
+			chunk = newChunk;
+		}
+	}
+	
+	/**
+	 * The dimension and coordinates of a
+	 * pending chunk, used to find duplicates.
+	 */
+	private static class ChunkKey
+	{
+		public final int dimId;
+		public final int x;
+		public final int z;
+		
+		public ChunkKey(int newDimId, int newX, int newZ)
+		{
+			dimId = newDimId;
+			x = newX;
+			z = newZ;
+		}
+		
+		@Override
+		public boolean equals(Object obj)
+		{
+			if (!(obj instanceof ChunkKey))
+				return false;
+			
+			ChunkKey other = (ChunkKey) obj;
+			return dimId == other.dimId && x == other.x && z == other.z;
+		}
+		
+		@Override
+		public int hashCode()
+		{
+			return (31 * ((31 * dimId) + x)) + z;
+		}
+	}
+	
+	/**
+	 * A generated LodChunk and the ID of
+	 * the dimension it should be added to.
+	 */
+	private static class QueuedLod
+	{
+		public final int dimId;
+		public final LodChunk lod;
+		
+		public QueuedLod(int newDimId, LodChunk newLod)
+		{
+			dimId = newDimId;
+			lod = newLod;
+		}
+	}
 }
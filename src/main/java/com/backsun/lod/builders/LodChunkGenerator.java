@@ -0,0 +1,573 @@
+package com.backsun.lod.builders;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.backsun.lod.objects.LodChunk;
+import com.backsun.lod.util.enums.ColorDirection;
+import com.backsun.lod.util.enums.LodCorner;
+
+import net.minecraft.block.Block;
+import net.minecraft.block.state.IBlockState;
+import net.minecraft.client.Minecraft;
+import net.minecraft.client.renderer.color.BlockColors;
+
+/**
+ * This object creates LodChunks from snapshots of Minecraft's chunks.
+ * <br><br>
+ * Each block in the chunk is only read once. The chunk is read one
+ * layer (16x16 blocks at the same height) at a time from the top down,
+ * and each layer is used for every corner height and every color
+ * before moving to the next one, instead of reading the chunk again
+ * for each corner and color. The only other reads are for the bottom color,
+ * which reads each column from the bottom up until it finds a visible block.
+ * <br><br>
+ * The LodChunks are the same as they have always been: <br>
+ * The top of each corner is the highest layer with at least LOD_BLOCK_REQ
+ * blocks in that corner and the bottom is the lowest. <br>
+ * The top and bottom colors are the average of the highest and lowest
+ * visible block in each column. <br>
+ * Each side's color is the average of the first visible block
+ * found from that side in each layer.
+ * <br><br>
+ * Layers above the highest block in the chunk and
+ * sections without any blocks aren't read at all.
+ * <br><br>
+ * Generators run on their own threads, so the live world
+ * is never read, everything comes from the snapshot.
+ * <br><br>
+ * The buffers are reused, so each thread
+ * should use its own generator.
+ * 
+ * @author James Seibel
+ * @version 10-16-2026
+ */
+public class LodChunkGenerator
+{
+	/** how many blocks wide a chunk is */
+	private static final int CHUNK_WIDTH = LodChunk.WIDTH;
+	/** how many blocks tall each section is */
+	private static final int SECTION_HEIGHT = 16;
+	/** how many blocks are in one layer */
+	private static final int LAYER_SIZE = CHUNK_WIDTH * CHUNK_WIDTH;
+	
+	/**
+	 * This is how many blocks are
+	 * required at a specific y-value
+	 * to constitute a LOD point
+	 */
+	private static final int LOD_BLOCK_REQ = 16;
+	
+	/** ARGB color used for water, since getColor on water generally returns white */
+	private static final int WATER_COLOR = LodChunk.colorToInt(36, 50, 171);
+	
+	/**
+	 * Which LodCorners each block of a layer counts towards,
+	 * bit LodCorner.value is set if it counts. <br>
+	 * Index = (x * CHUNK_WIDTH) + z
+	 */
+	private static final int[] CORNER_MASKS = createCornerMasks();
+	
+	
+	/**
+	 * How many block states can have their color cached. <br>
+	 * Block.getStateId is the block's id (at most 4096)
+	 * plus its metadata (at most 16) shifted by 12 bits.
+	 */
+	private static final int MAX_STATE_IDS = 4096 * 16;
+	
+	/** how many colors were found in a generator's color cache */
+	private static final LongAdder colorCacheHits = new LongAdder();
+	/** how many colors had to be determined with BlockColors */
+	private static final LongAdder colorCacheMisses = new LongAdder();
+	
+	
+	private final Block airBlock;
+	private final Block waterBlock;
+	private final BlockColors blockColors;
+	
+	/** the blocks of the layer being read, Index = (x * CHUNK_WIDTH) + z */
+	private final IBlockState[] layerBlocks = new IBlockState[LAYER_SIZE];
+	/** true if the block in layerBlocks is air */
+	private final boolean[] layerAir = new boolean[LAYER_SIZE];
+	/** the color of each block in layerBlocks, only valid if layerColorKnown is true */
+	private final int[] layerColors = new int[LAYER_SIZE];
+	private final boolean[] layerColorKnown = new boolean[LAYER_SIZE];
+	/** the color of each block state, only valid if its bit in stateColorKnown is set, Index = Block.getStateId */
+	private final int[] stateColors = new int[MAX_STATE_IDS];
+	private final BitSet stateColorKnown = new BitSet(MAX_STATE_IDS);
+	
+	/** how many blocks in each LodCorner of the layer aren't air, Index = LodCorner.value */
+	private final int[] cornerBlocks = new int[4];
+	
+	/** true once a column's top color has been found, Index = (x * CHUNK_WIDTH) + z */
+	private final boolean[] topColorFound = new boolean[LAYER_SIZE];
+	
+	/** the total of each color channel, Index = ColorDirection.value */
+	private final int[] reds = new int[6];
+	private final int[] greens = new int[6];
+	private final int[] blues = new int[6];
+	/** how many blocks were added to each color, Index = ColorDirection.value */
+	private final int[] colorCounts = new int[6];
+	
+	
+	
+	/**
+	 * Minecraft's blocks have to be registered
+	 * before a generator can be created.
+	 */
+	public LodChunkGenerator()
+	{
+		airBlock = Block.getBlockFromName("air");
+		waterBlock = Block.getBlockFromName("water");
+		blockColors = Minecraft.getMinecraft().getBlockColors();
+	}
+	
+	
+	
+	
+	
+	//============//
+	// generation //
+	//============//
+	
+	/**
+	 * Creates a LodChunk for a snapshot of a chunk.
+	 * 
+	 * @throws IllegalArgumentException
+	 * thrown if the snapshot is null.
+	 */
+	public LodChunk generate(ChunkSnapshot chunk) throws IllegalArgumentException
+	{
+		if(chunk == null)
+		{
+			throw new IllegalArgumentException("LodChunkGenerator given a null chunk snapshot");
+		}
+		
+		short[] top = new short[4];
+		short[] bottom = new short[4];
+		Arrays.fill(top, (short) -1);
+		Arrays.fill(bottom, (short) -1);
+		
+		Arrays.fill(topColorFound, false);
+		Arrays.fill(reds, 0);
+		Arrays.fill(greens, 0);
+		Arrays.fill(blues, 0);
+		Arrays.fill(colorCounts, 0);
+		
+		// nothing above the highest block has to be read,
+		// -1 if the chunk is empty
+		int startHeight = chunk.getHighestBlockHeight();
+		
+		// search from the top down
+		for(int section = Math.floorDiv(startHeight, SECTION_HEIGHT); section >= 0; section--)
+		{
+			// this section doesn't have any blocks
+			if (chunk.isSectionEmpty(section))
+				continue;
+			
+			int startY = (section == startHeight / SECTION_HEIGHT) ? startHeight % SECTION_HEIGHT : SECTION_HEIGHT - 1;
+			for(int y = startY; y >= 0; y--)
+			{
+				// an empty layer can't be a LOD point or have a color
+				if (!readLayer(chunk, section, y))
+					continue;
+				
+				short height = (short) (y + (section * SECTION_HEIGHT));
+				for(LodCorner corner : LodCorner.values())
+				{
+					if (cornerBlocks[corner.value] >= LOD_BLOCK_REQ)
+					{
+						// the first point found is the top,
+						// the last point found is the bottom
+						if (top[corner.value] == -1)
+							top[corner.value] = height;
+						bottom[corner.value] = height;
+					}
+				}
+				
+				addTopColors();
+				
+				addSideColor(ColorDirection.N);
+				addSideColor(ColorDirection.S);
+				addSideColor(ColorDirection.E);
+				addSideColor(ColorDirection.W);
+			}
+		}
+		
+		addBottomColors(chunk);
+		
+		int[] colors = new int[6];
+		for(ColorDirection dir : ColorDirection.values())
+		{
+			int numbOfBlocks = Math.max(colorCounts[dir.value], 1);
+			colors[dir.value] = LodChunk.colorToInt(reds[dir.value] / numbOfBlocks, greens[dir.value] / numbOfBlocks, blues[dir.value] / numbOfBlocks);
+		}
+		
+		return new LodChunk(chunk.x, chunk.z, top, bottom, colors);
+	}
+	
+	/**
+	 * Read the layer at the given y into layerBlocks
+	 * and count the blocks in each corner.
+	 * 
+	 * @returns false if every block in the layer is air
+	 */
+	private boolean readLayer(ChunkSnapshot chunk, int section, int y)
+	{
+		Arrays.fill(cornerBlocks, 0);
+		Arrays.fill(layerColorKnown, false);
+		boolean hasBlocks = false;
+		
+		// x is the inner loop since the snapshot
+		// stores each row of x next to each other
+		for(int z = 0; z < CHUNK_WIDTH; z++)
+		{
+			for(int x = 0; x < CHUNK_WIDTH; x++)
+			{
+				int i = (x * CHUNK_WIDTH) + z;
+				IBlockState block = chunk.get(section, x, y, z);
+				
+				layerBlocks[i] = block;
+				layerAir[i] = (block == null || block.getBlock() == airBlock);
+				
+				if (layerAir[i])
+					continue;
+				
+				hasBlocks = true;
+				// each set bit is a LodCorner.value
+				for(int mask = CORNER_MASKS[i]; mask != 0; mask &= mask - 1)
+					cornerBlocks[Integer.numberOfTrailingZeros(mask)]++;
+			}
+		}
+		
+		return hasBlocks;
+	}
+	
+	/**
+	 * Add the color of every block in the layer that is
+	 * the highest visible block in its column.
+	 */
+	private void addTopColors()
+	{
+		for(int i = 0; i < LAYER_SIZE; i++)
+		{
+			if (topColorFound[i] || layerAir[i])
+				continue;
+			
+			int color = getLayerColor(i);
+			if (color == 0)
+				continue;
+			
+			addColor(ColorDirection.TOP, color);
+			topColorFound[i] = true;
+		}
+	}
+	
+	/**
+	 * Add the color of the first visible block in the layer,
+	 * looking in from the given side. <br>
+	 * "over" moves along the side of the chunk
+	 * and "in" moves into the chunk until it finds a block.
+	 */
+	private void addSideColor(ColorDirection colorDir)
+	{
+		boolean inIsX = false;
+		boolean inFromEnd = false;
+		
+		switch (colorDir)
+		{
+		case N:
+			break;
+		case S:
+			inFromEnd = true;
+			break;
+		case E:
+			inIsX = true;
+			break;
+		case W:
+			inIsX = true;
+			inFromEnd = true;
+			break;
+		default:
+			// the top and bottom are added elsewhere
+			return;
+		}
+		
+		for(int over = 0; over < CHUNK_WIDTH; over++)
+		{
+			for(int step = 0; step < CHUNK_WIDTH; step++)
+			{
+				int in = inFromEnd ? CHUNK_WIDTH - 1 - step : step;
+				int x = inIsX ? in : over;
+				int z = inIsX ? over : in;
+				
+				int i = (x * CHUNK_WIDTH) + z;
+				if (layerAir[i])
+					continue;
+				
+				int color = getLayerColor(i);
+				if (color != 0)
+				{
+					addColor(colorDir, color);
+					return;
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Add the color of the lowest visible block in each column.
+	 * <br>
+	 * Each column is read from the bottom up, instead of
+	 * remembering the lowest block of every layer on the way down.
+	 * The lowest block is usually at the bottom of the world (bedrock),
+	 * so this is usually one block per column.
+	 */
+	private void addBottomColors(ChunkSnapshot chunk)
+	{
+		for(int x = 0; x < CHUNK_WIDTH; x++)
+		{
+			for(int z = 0; z < CHUNK_WIDTH; z++)
+			{
+				int color = findLowestVisibleColor(chunk, x, z);
+				if (color != 0)
+					addColor(ColorDirection.BOTTOM, color);
+			}
+		}
+	}
+	
+	/**
+	 * Returns the color of the lowest visible block
+	 * in the given column, 0 if there isn't one. <br>
+	 * Invisible blocks (like glass) are skipped.
+	 */
+	private int findLowestVisibleColor(ChunkSnapshot chunk, int x, int z)
+	{
+		for(int section = 0; section < chunk.getNumberOfSections(); section++)
+		{
+			if (chunk.isSectionEmpty(section))
+				continue;
+			
+			for(int y = 0; y < SECTION_HEIGHT; y++)
+			{
+				IBlockState block = chunk.get(section, x, y, z);
+				if (block == null || block.getBlock() == airBlock)
+					continue;
+				
+				int color = getColor(block);
+				if (color != 0)
+					return color;
+			}
+		}
+		
+		return 0;
+	}
+	
+	/**
+	 * Returns the color of the given block in the current layer,
+	 * each block's color is only determined once.
+	 * 
+	 * @param i the block's index in layerBlocks
+	 */
+	private int getLayerColor(int i)
+	{
+		if (!layerColorKnown[i])
+		{
+			layerColors[i] = getColor(layerBlocks[i]);
+			layerColorKnown[i] = true;
+		}
+		
+		return layerColors[i];
+	}
+	
+	/**
+	 * Returns the color of the given block, 0 if it is invisible.
+	 * Should only be called with blocks that aren't air,
+	 * since air is always invisible.
+	 * <br><br>
+	 * BlockColors.getColor doesn't give biome tinted blocks
+	 * the world or position (they always get their default tint),
+	 * so a block state always has the same color
+	 * and each state's color is only determined once.
+	 */
+	private int getColor(IBlockState block)
+	{
+		// this is a special case since getColor on water generally returns white
+		if (block.getBlock() == waterBlock)
+			return WATER_COLOR;
+		
+		int stateId = Block.getStateId(block);
+		
+		// this state can't be cached
+		if (stateId < 0 || stateId >= MAX_STATE_IDS)
+		{
+			colorCacheMisses.increment();
+			return getColorWithoutWorld(block);
+		}
+		
+		if (stateColorKnown.get(stateId))
+		{
+			colorCacheHits.increment();
+			return stateColors[stateId];
+		}
+		
+		colorCacheMisses.increment();
+		stateColors[stateId] = getColorWithoutWorld(block);
+		stateColorKnown.set(stateId);
+		
+		return stateColors[stateId];
+	}
+	
+	/**
+	 * Returns the color BlockColors gives the given block,
+	 * without giving it a world or position. <br>
+	 * The world was only used for the block's map color, and
+	 * reading it here would be reading the live world from
+	 * a generation thread.
+	 * <br><br>
+	 * Blocks that need the world for their map color
+	 * get their material's map color instead.
+	 */
+	private int getColorWithoutWorld(IBlockState block)
+	{
+		try
+		{
+			return blockColors.getColor(block, null, null);
+		}
+		catch(NullPointerException e)
+		{
+			return block.getMaterial().getMaterialMapColor().colorValue;
+		}
+	}
+	
+	/**
+	 * Add the given color to the average of the given ColorDirection.
+	 */
+	private void addColor(ColorDirection colorDir, int color)
+	{
+		reds[colorDir.value] += (color >> 16) & 0xFF;
+		greens[colorDir.value] += (color >> 8) & 0xFF;
+		blues[colorDir.value] += color & 0xFF;
+		colorCounts[colorDir.value]++;
+	}
+	
+	
+	
+	
+	
+	//=========//
+	// corners //
+	//=========//
+	
+	/**
+	 * Returns which LodCorners each block of a layer counts towards.
+	 * <br>
+	 * NE and SW are one block smaller than SE and NW,
+	 * they have always been, so LODs generated now
+	 * match the ones that have already been saved.
+	 */
+	private static int[] createCornerMasks()
+	{
+		int[] masks = new int[LAYER_SIZE];
+		
+		for(LodCorner corner : LodCorner.values())
+		{
+			int startX = 0;
+			int endX = 0;
+			
+			int startZ = 0;
+			int endZ = 0;
+			
+			// determine where we should look in this
+			// chunk
+			switch(corner)
+			{
+				case NE:
+					// -N
+					startZ = 0;
+					endZ = (CHUNK_WIDTH / 2) - 1;
+					// +E
+					startX = CHUNK_WIDTH / 2;
+					endX = CHUNK_WIDTH - 1;
+					break;
+				
+				case SE:
+					// +S
+					startZ = CHUNK_WIDTH / 2;
+					endZ = CHUNK_WIDTH;
+					// +E
+					startX = CHUNK_WIDTH / 2;
+					endX = CHUNK_WIDTH;
+					break;
+				
+				case SW:
+					// +S
+					startZ = CHUNK_WIDTH / 2;
+					endZ = CHUNK_WIDTH;
+					// -W
+					startX = 0;
+					endX = (CHUNK_WIDTH / 2) - 1;
+					break;
+				
+				case NW:
+					// -N
+					startZ = 0;
+					endZ = CHUNK_WIDTH / 2;
+					// -W
+					startX = 0;
+					endX = CHUNK_WIDTH / 2;
+					break;
+			}
+			
+			for(int x = startX; x < endX; x++)
+				for(int z = startZ; z < endZ; z++)
+					masks[(x * CHUNK_WIDTH) + z] |= 1 << corner.value;
+		}
+		
+		return masks;
+	}
+	
+	
+	
+	
+	
+	//=========//
+	// metrics //
+	//=========//
+	
+	/**
+	 * Returns how many block colors every generator
+	 * found in its color cache.
+	 */
+	public static long getColorCacheHits()
+	{
+		return colorCacheHits.sum();
+	}
+	
+	/**
+	 * Returns how many block colors every generator
+	 * had to get from Minecraft.
+	 */
+	public static long getColorCacheMisses()
+	{
+		return colorCacheMisses.sum();
+	}
+	
+	/**
+	 * Returns the fraction of block colors that were
+	 * found in a color cache, 0 if no colors have
+	 * been looked up yet.
+	 */
+	public static double getColorCacheHitRate()
+	{
+		long hits = colorCacheHits.sum();
+		long total = hits + colorCacheMisses.sum();
+		
+		if (total == 0)
+			return 0;
+		
+		return (double) hits / (double) total;
+	}
+}
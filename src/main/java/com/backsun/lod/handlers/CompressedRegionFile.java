@@ -0,0 +1,336 @@
+package com.backsun.lod.handlers;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import com.backsun.lod.objects.LodRegion;
+
+/**
+ * This object reads and writes region files
+ * in a compressed format similar to Minecraft's Anvil format.
+ * <br><br>
+ * Each file has a header, then a table with the offset
+ * and length of every row of the region, followed by each
+ * row's deflate compressed records. <br>
+ * A row (32 LodChunks) is compressed together since
+ * a single 41 byte record barely compresses on its own.
+ * <br><br>
+ * The Deflater and Inflater are reused, so threads
+ * using the same instance will wait on each other.
+ * 
+ * @author James Seibel
+ * @version 10-16-2026
+ */
+public class CompressedRegionFile
+{
+	/** "LODZ", used to make sure we are reading a compressed region file */
+	public static final int REGION_FILE_MAGIC = 0x4C4F445A;
+	/** increment this if the compressed region format changes */
+	public static final int REGION_FILE_VERSION = 1;
+	/** magic, version, region x, region z, region size, record size */
+	public static final int REGION_FILE_HEADER_SIZE = 6 * Integer.BYTES;
+	/** the offset and length of every row */
+	public static final int OFFSET_TABLE_SIZE = LodRegion.SIZE * 2 * Integer.BYTES;
+	/** uses the same records as the MappedRegionFile */
+	public static final int RECORD_SIZE = MappedRegionFile.REGION_FILE_RECORD_SIZE;
+	/** how many bytes a row is before it is compressed */
+	public static final int ROW_SIZE = LodRegion.SIZE * RECORD_SIZE;
+	
+	
+	private final Deflater deflater = new Deflater();
+	private final Inflater inflater = new Inflater();
+	
+	/** holds a single uncompressed row */
+	private final ByteBuffer rowBuffer = ByteBuffer.allocate(ROW_SIZE);
+	/** holds a single compressed row */
+	private byte[] compressedRow = new byte[ROW_SIZE];
+	
+	/** how many uncompressed bytes have been written, used to determine the compression ratio */
+	private long uncompressedBytesWritten = 0;
+	/** how many compressed bytes have been written, used to determine the compression ratio */
+	private long compressedBytesWritten = 0;
+	
+	
+	
+	public CompressedRegionFile()
+	{
+		
+	}
+	
+	
+	
+	
+	
+	//=========//
+	// reading //
+	//=========//
+	
+	/**
+	 * Read the LodRegion stored in the given file.
+	 * 
+	 * @throws IOException if the file couldn't be read or
+	 * isn't a compressed region file for the given region
+	 */
+	public LodRegion readRegion(File file, int regionX, int regionZ) throws IOException
+	{
+		return decodeRegion(ByteBuffer.wrap(Files.readAllBytes(file.toPath())), regionX, regionZ);
+	}
+	
+	/**
+	 * Create the LodRegion stored in the given buffer,
+	 * the buffer should contain everything between its
+	 * position and limit that encodeRegion returned.
+	 * 
+	 * @throws IOException if the buffer isn't a compressed 
+	 * region for the given region
+	 */
+	public synchronized LodRegion decodeRegion(ByteBuffer data, int regionX, int regionZ) throws IOException
+	{
+		// make the offsets relative to the start of the region
+		data = data.slice();
+		
+		if (!data.hasArray())
+		{
+			// the Inflater needs an array
+			ByteBuffer arrayData = ByteBuffer.allocate(data.remaining());
+			arrayData.put(data);
+			arrayData.flip();
+			data = arrayData;
+		}
+		
+		if (data.remaining() < REGION_FILE_HEADER_SIZE + OFFSET_TABLE_SIZE ||
+			data.getInt() != REGION_FILE_MAGIC ||
+			data.getInt() != REGION_FILE_VERSION ||
+			data.getInt() != regionX ||
+			data.getInt() != regionZ ||
+			data.getInt() != LodRegion.SIZE ||
+			data.getInt() != RECORD_SIZE)
+		{
+			throw new IOException("The data isn't a compressed region for the region (" + regionX + "," + regionZ + ").");
+		}
+		
+		LodRegion region = new LodRegion(regionX, regionZ);
+		
+		for(int x = 0; x < LodRegion.SIZE; x++)
+		{
+			int offset = data.getInt(REGION_FILE_HEADER_SIZE + (x * 2 * Integer.BYTES));
+			int length = data.getInt(REGION_FILE_HEADER_SIZE + (x * 2 * Integer.BYTES) + Integer.BYTES);
+			
+			// empty rows aren't stored
+			if (length == 0)
+				continue;
+			
+			if (offset < REGION_FILE_HEADER_SIZE + OFFSET_TABLE_SIZE || offset + length > data.limit())
+				throw new IOException("The region (" + regionX + "," + regionZ + ") has an invalid offset for row " + x + ".");
+			
+			inflateRow(data.array(), data.arrayOffset() + offset, length);
+			
+			// the records are the same as the region's
+			region.putRecords(x * LodRegion.SIZE, rowBuffer);
+		}
+		
+		return region;
+	}
+	
+	/**
+	 * Decompress a row into the rowBuffer.
+	 * 
+	 * @throws IOException if the data isn't a valid compressed row
+	 */
+	private void inflateRow(byte[] data, int offset, int length) throws IOException
+	{
+		inflater.reset();
+		inflater.setInput(data, offset, length);
+		
+		try
+		{
+			int inflatedLength = inflater.inflate(rowBuffer.array(), 0, ROW_SIZE);
+			
+			if (inflatedLength != ROW_SIZE || !inflater.finished())
+				throw new IOException("A compressed row was " + inflatedLength + " bytes long instead of " + ROW_SIZE + ".");
+		}
+		catch (DataFormatException e)
+		{
+			throw new IOException("A compressed row couldn't be decompressed: " + e.getMessage());
+		}
+		
+		rowBuffer.clear();
+	}
+	
+	
+	
+	
+	
+	//=========//
+	// writing //
+	//=========//
+	
+	/**
+	 * Write the given region to the given file,
+	 * replacing the file if it already exists.
+	 * <br>
+	 * The region is written to a temporary file first
+	 * so the old file isn't lost if the write fails.
+	 * 
+	 * @param compressionLevel 0 - 9, see the Deflater
+	 * @throws IOException if the file couldn't be written
+	 */
+	public void writeRegion(File file, LodRegion region, int compressionLevel) throws IOException
+	{
+		ByteBuffer data = encodeRegion(region, compressionLevel);
+		
+		File tempFile = new File(file.getPath() + ".tmp");
+		try (FileOutputStream out = new FileOutputStream(tempFile))
+		{
+			out.write(data.array(), 0, data.limit());
+		}
+		
+		try
+		{
+			Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+		catch (AtomicMoveNotSupportedException e)
+		{
+			Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+	
+	/**
+	 * Compress the given region into a new buffer.
+	 * <br>
+	 * The returned buffer's position is 0 and its
+	 * limit is the end of the compressed region.
+	 * 
+	 * @param compressionLevel 0 - 9, see the Deflater
+	 */
+	public synchronized ByteBuffer encodeRegion(LodRegion region, int compressionLevel)
+	{
+		deflater.setLevel(compressionLevel);
+		
+		// the compressed rows are written after the header and table
+		ByteBuffer fileBuffer = ByteBuffer.allocate(REGION_FILE_HEADER_SIZE + OFFSET_TABLE_SIZE + ROW_SIZE);
+		fileBuffer.putInt(REGION_FILE_MAGIC);
+		fileBuffer.putInt(REGION_FILE_VERSION);
+		fileBuffer.putInt(region.x);
+		fileBuffer.putInt(region.z);
+		fileBuffer.putInt(LodRegion.SIZE);
+		fileBuffer.putInt(RECORD_SIZE);
+		fileBuffer.position(REGION_FILE_HEADER_SIZE + OFFSET_TABLE_SIZE);
+		
+		for(int x = 0; x < LodRegion.SIZE; x++)
+		{
+			int offset = fileBuffer.position();
+			int length = 0;
+			
+			if (fillRowBuffer(region, x))
+			{
+				length = deflateRow();
+				
+				if (fileBuffer.remaining() < length)
+				{
+					ByteBuffer biggerBuffer = ByteBuffer.allocate(fileBuffer.capacity() + Math.max(length, ROW_SIZE));
+					fileBuffer.flip();
+					biggerBuffer.put(fileBuffer);
+					fileBuffer = biggerBuffer;
+				}
+				
+				fileBuffer.put(compressedRow, 0, length);
+				
+				uncompressedBytesWritten += ROW_SIZE;
+				compressedBytesWritten += length;
+			}
+			
+			fileBuffer.putInt(REGION_FILE_HEADER_SIZE + (x * 2 * Integer.BYTES), offset);
+			fileBuffer.putInt(REGION_FILE_HEADER_SIZE + (x * 2 * Integer.BYTES) + Integer.BYTES, length);
+		}
+		
+		fileBuffer.flip();
+		return fileBuffer;
+	}
+	
+	/**
+	 * Put the records of the given row of the region into the rowBuffer.
+	 * 
+	 * @returns false if every slot in the row is empty
+	 */
+	private boolean fillRowBuffer(LodRegion region, int x)
+	{
+		rowBuffer.clear();
+		region.copyRecords(x * LodRegion.SIZE, LodRegion.SIZE, rowBuffer);
+		
+		for(int z = 0; z < LodRegion.SIZE; z++)
+			if (rowBuffer.get(z * RECORD_SIZE) != 0)
+				return true;
+		
+		return false;
+	}
+	
+	/**
+	 * Compress the rowBuffer into compressedRow.
+	 * 
+	 * @returns the compressed length
+	 */
+	private int deflateRow()
+	{
+		deflater.reset();
+		deflater.setInput(rowBuffer.array(), 0, ROW_SIZE);
+		deflater.finish();
+		
+		int length = 0;
+		while(!deflater.finished())
+		{
+			// incompressible data can end up
+			// slightly bigger than it started
+			if (length == compressedRow.length)
+			{
+				byte[] biggerRow = new byte[compressedRow.length * 2];
+				System.arraycopy(compressedRow, 0, biggerRow, 0, length);
+				compressedRow = biggerRow;
+			}
+			
+			length += deflater.deflate(compressedRow, length, compressedRow.length - length);
+		}
+		
+		return length;
+	}
+	
+	
+	
+	
+	
+	//=========//
+	// metrics //
+	//=========//
+	
+	/**
+	 * Returns how many uncompressed bytes have been written,
+	 * divided by how many compressed bytes were actually written.
+	 * <br>
+	 * Returns 0 if nothing has been written yet.
+	 */
+	public synchronized double getCompressionRatio()
+	{
+		if (compressedBytesWritten == 0)
+			return 0;
+		
+		return (double) uncompressedBytesWritten / (double) compressedBytesWritten;
+	}
+	
+	public synchronized long getUncompressedBytesWritten()
+	{
+		return uncompressedBytesWritten;
+	}
+	
+	public synchronized long getCompressedBytesWritten()
+	{
+		return compressedBytesWritten;
+	}
+}
@@ -0,0 +1,282 @@
+package com.backsun.lod.handlers;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+
+import com.backsun.lod.objects.LodChunk;
+import com.backsun.lod.objects.LodRegion;
+import com.backsun.lod.util.enums.ColorDirection;
+import com.backsun.lod.util.enums.LodCorner;
+
+/**
+ * This object reads region files saved in the old text format,
+ * where each line is a LodChunk created by LodChunk.toData.
+ * <br><br>
+ * Each line is read into a reused char buffer and every
+ * number is parsed straight out of that buffer, instead of
+ * creating a String for every line and every number.
+ * Lines are validated the same way as the LodChunk(String) constructor.
+ * <br><br>
+ * The buffers are reused, so threads using
+ * the same instance will wait on each other.
+ * 
+ * @author James Seibel
+ * @version 10-16-2026
+ */
+public class LodChunkTextParser
+{
+	private static final char DATA_DELIMITER = LodChunk.DATA_DELIMITER;
+	
+	
+	/** holds the characters read from the file */
+	private final char[] readBuffer = new char[8192];
+	/** holds the line that is being parsed */
+	private char[] lineBuffer = new char[256];
+	
+	/** where in the lineBuffer the next number starts */
+	private int position = 0;
+	
+	/** the heights are copied by the LodChunk, so these can be reused */
+	private final short[] top = new short[4];
+	private final short[] bottom = new short[4];
+	
+	
+	
+	public LodChunkTextParser()
+	{
+		
+	}
+	
+	
+	
+	
+	
+	//=========//
+	// reading //
+	//=========//
+	
+	/**
+	 * Read the LodChunks in the given text file into a new LodRegion.
+	 * <br>
+	 * Like before, lines that aren't valid LodChunks are skipped
+	 * and reading stops at the first empty line.
+	 * 
+	 * @throws IOException if the file couldn't be read
+	 */
+	public synchronized LodRegion readRegion(File file, int regionX, int regionZ) throws IOException
+	{
+		LodRegion region = new LodRegion(regionX, regionZ);
+		
+		try (Reader reader = new FileReader(file))
+		{
+			int lineLength = 0;
+			boolean lastWasCarriageReturn = false;
+			
+			int read = reader.read(readBuffer, 0, readBuffer.length);
+			while(read != -1)
+			{
+				for(int i = 0; i < read; i++)
+				{
+					char c = readBuffer[i];
+					
+					// "\r\n" is a single line ending
+					if (c == '\n' && lastWasCarriageReturn)
+					{
+						lastWasCarriageReturn = false;
+						continue;
+					}
+					lastWasCarriageReturn = (c == '\r');
+					
+					if (c == '\n' || c == '\r')
+					{
+						// an empty line is the end of the data
+						if (lineLength == 0)
+							return region;
+						
+						addLine(region, lineLength);
+						lineLength = 0;
+					}
+					else
+					{
+						if (lineLength == lineBuffer.length)
+						{
+							char[] biggerBuffer = new char[lineBuffer.length * 2];
+							System.arraycopy(lineBuffer, 0, biggerBuffer, 0, lineLength);
+							lineBuffer = biggerBuffer;
+						}
+						
+						lineBuffer[lineLength] = c;
+						lineLength++;
+					}
+				}
+				
+				read = reader.read(readBuffer, 0, readBuffer.length);
+			}
+			
+			// the last line doesn't have to end with a new line
+			if (lineLength != 0)
+				addLine(region, lineLength);
+		}
+		
+		return region;
+	}
+	
+	/**
+	 * Add the LodChunk in the lineBuffer to the given region,
+	 * if the line is a valid LodChunk.
+	 */
+	private void addLine(LodRegion region, int lineLength)
+	{
+		try
+		{
+			region.addLod(parseLodChunk(lineBuffer, 0, lineLength));
+		}
+		catch(IllegalArgumentException e)
+		{
+			// we were unable to create this chunk
+			// for whatever reason.
+			// skip to the next chunk
+		}
+	}
+	
+	
+	
+	
+	
+	//=========//
+	// parsing //
+	//=========//
+	
+	/**
+	 * Creates a LodChunk from the characters between start and end,
+	 * which should be in the format generated by LodChunk.toData.
+	 * 
+	 * @throws IllegalArgumentException if the data isn't valid to create a LodChunk
+	 * @throws NumberFormatException if the data can't be converted into an int at any point
+	 */
+	public synchronized LodChunk parseLodChunk(char[] data, int start, int end) throws IllegalArgumentException, NumberFormatException
+	{
+		// make sure there are the correct number of entries
+		// in the data (28)
+		int count = 0;
+		for(int i = start; i < end; i++)
+			if (data[i] == DATA_DELIMITER)
+				count++;
+		
+		if (count != LodChunk.DATA_DELIMITER_COUNT)
+			throw new IllegalArgumentException("LodChunk data had " + count + " delimiters when it should have had " + LodChunk.DATA_DELIMITER_COUNT + ".");
+		
+		
+		// since there are exactly 28 delimiters
+		// every number is followed by one
+		position = start;
+		
+		int x = parseNextInt(data, end);
+		int z = parseNextInt(data, end);
+		
+		for(LodCorner loc : LodCorner.values())
+			top[loc.value] = parseNextShort(data, end);
+		
+		for(LodCorner loc : LodCorner.values())
+			bottom[loc.value] = parseNextShort(data, end);
+		
+		int[] colors = new int[6];
+		for(ColorDirection dir : ColorDirection.values())
+		{
+			short red = parseNextShort(data, end);
+			short green = parseNextShort(data, end);
+			short blue = parseNextShort(data, end);
+			
+			colors[dir.value] = LodChunk.colorToInt(red, green, blue);
+		}
+		
+		return new LodChunk(x, z, top, bottom, colors);
+	}
+	
+	/**
+	 * Parse the number that starts at the current position
+	 * and move the position past its delimiter.
+	 * <br>
+	 * Accepts the same numbers as Integer.parseInt.
+	 * 
+	 * @throws NumberFormatException if the characters aren't an int
+	 */
+	private int parseNextInt(char[] data, int end) throws NumberFormatException
+	{
+		int numberStart = position;
+		boolean negative = false;
+		
+		if (position < end && (data[position] == '-' || data[position] == '+'))
+		{
+			negative = (data[position] == '-');
+			position++;
+		}
+		
+		// a long is used so going past
+		// the int range can be detected
+		long value = 0;
+		int digitCount = 0;
+		
+		while(position < end && data[position] != DATA_DELIMITER)
+		{
+			int digit = data[position] - '0';
+			if (digit < 0 || digit > 9)
+				throw numberFormatException(data, numberStart, end);
+			
+			value = (value * 10) + digit;
+			if (value > (long) Integer.MAX_VALUE + 1)
+				throw numberFormatException(data, numberStart, end);
+			
+			digitCount++;
+			position++;
+		}
+		
+		if (digitCount == 0)
+			throw numberFormatException(data, numberStart, end);
+		
+		// skip the delimiter
+		position++;
+		
+		if (negative)
+			value = -value;
+		
+		if (value > Integer.MAX_VALUE)
+			throw numberFormatException(data, numberStart, end);
+		
+		return (int) value;
+	}
+	
+	/**
+	 * Parse the number that starts at the current position
+	 * and move the position past its delimiter.
+	 * <br>
+	 * Accepts the same numbers as Short.parseShort.
+	 * 
+	 * @throws NumberFormatException if the characters aren't a short
+	 */
+	private short parseNextShort(char[] data, int end) throws NumberFormatException
+	{
+		int numberStart = position;
+		int value = parseNextInt(data, end);
+		
+		if (value < Short.MIN_VALUE || value > Short.MAX_VALUE)
+			throw numberFormatException(data, numberStart, end);
+		
+		return (short) value;
+	}
+	
+	/**
+	 * Only called when a number is invalid,
+	 * so creating the String is fine here.
+	 */
+	private NumberFormatException numberFormatException(char[] data, int numberStart, int end)
+	{
+		int numberEnd = numberStart;
+		while(numberEnd < end && data[numberEnd] != DATA_DELIMITER)
+			numberEnd++;
+		
+		return new NumberFormatException("For input string: \"" + new String(data, numberStart, numberEnd - numberStart) + "\"");
+	}
+}
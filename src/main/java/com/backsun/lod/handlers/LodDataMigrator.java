@@ -0,0 +1,519 @@
+package com.backsun.lod.handlers;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.backsun.lod.objects.LodRegion;
+import com.backsun.lod.util.enums.StorageFormat;
+
+/**
+ * This is a command line tool that converts every region
+ * saved in the old text format in a lod_data folder into
+ * one of the new storage formats.
+ * <br><br>
+ * Usage: <br>
+ * java -cp [this mod, the Minecraft and Forge jars and their libraries] com.backsun.lod.handlers.LodDataMigrator
+ * [lod_data folder] [storage format (default MAPPED)] [compression level (default 6)] [threads (default all)]
+ * <br><br>
+ * Every DIM folder, and every region in them, is converted in parallel
+ * on a ForkJoinPool. The game doesn't need to be running, but
+ * its jars do need to be on the classpath since the mod's classes
+ * use them. The world shouldn't be open while this is running.
+ * <br><br>
+ * Every converted region is read back and compared with the text file,
+ * and the text file is only deleted once they match. If the tool is
+ * stopped partway through it can be run again. Regions that were
+ * converted but not deleted are checked and their text files deleted,
+ * then the remaining regions are converted.
+ * 
+ * @author James Seibel
+ * @version 10-16-2026
+ */
+public class LodDataMigrator
+{
+	/** a task with more regions than this is split in two */
+	private static final int REGIONS_PER_TASK = 4;
+	
+	private final File lodDataFolder;
+	private final StorageFormat storageFormat;
+	private final int compressionLevel;
+	private final ForkJoinPool pool;
+	
+	/** the parser and compressor reuse their buffers, so each thread gets its own */
+	private final ThreadLocal<LodChunkTextParser> textParser = ThreadLocal.withInitial(LodChunkTextParser::new);
+	private final ThreadLocal<CompressedRegionFile> compressedRegionFile = ThreadLocal.withInitial(CompressedRegionFile::new);
+	
+	/** how many regions were converted by this run */
+	private final AtomicLong regionsConverted = new AtomicLong(0);
+	/** how many regions were converted by an earlier run that was stopped */
+	private final AtomicLong regionsAlreadyConverted = new AtomicLong(0);
+	/** how many regions already had a different converted region, these are left alone */
+	private final AtomicLong regionsSkipped = new AtomicLong(0);
+	/** how many regions couldn't be converted */
+	private final AtomicLong regionsFailed = new AtomicLong(0);
+	/** how many LodChunks were converted by this run */
+	private final AtomicLong chunksConverted = new AtomicLong(0);
+	/** how big the text files converted by this run were */
+	private final AtomicLong textBytes = new AtomicLong(0);
+	/** how many bytes the converted regions take up */
+	private final AtomicLong convertedBytes = new AtomicLong(0);
+	/** how long reading the converted text files took, see timeRegionReads */
+	private final AtomicLong textReadTimeInNs = new AtomicLong(0);
+	/** how long reading the converted regions took, see timeRegionReads */
+	private final AtomicLong convertedReadTimeInNs = new AtomicLong(0);
+	
+	/** how long the last migration took */
+	private long elapsedTimeInNs = 0;
+	
+	
+	
+	/**
+	 * @param newLodDataFolder the lod_data folder in a world's save folder
+	 * @param newStorageFormat what format to convert the regions to
+	 * @param newCompressionLevel 0 - 9, see the Deflater
+	 * @param threadCount how many regions can be converted at once
+	 */
+	public LodDataMigrator(File newLodDataFolder, StorageFormat newStorageFormat, int newCompressionLevel, int threadCount)
+	{
+		lodDataFolder = newLodDataFolder;
+		storageFormat = newStorageFormat;
+		compressionLevel = newCompressionLevel;
+		pool = new ForkJoinPool(threadCount);
+	}
+	
+	
+	public static void main(String[] args)
+	{
+		if (args.length < 1)
+		{
+			System.err.println("Usage: LodDataMigrator <lod_data folder> [MAPPED | COMPRESSED | SINGLE_FILE] [compression level 0 - 9] [threads]");
+			System.err.println("The Minecraft and Forge jars (and their libraries) need to be on the classpath, the game doesn't need to be running.");
+			return;
+		}
+		
+		File folder = new File(args[0]);
+		if (!folder.isDirectory())
+		{
+			System.err.println(folder.getPath() + " isn't a folder.");
+			return;
+		}
+		
+		try
+		{
+			StorageFormat format = args.length > 1 ? StorageFormat.valueOf(args[1]) : StorageFormat.MAPPED;
+			int level = args.length > 2 ? Integer.parseInt(args[2]) : 6;
+			int threads = args.length > 3 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+			
+			LodDataMigrator migrator = new LodDataMigrator(folder, format, Math.max(0, Math.min(9, level)), Math.max(1, threads));
+			migrator.migrate();
+			migrator.printReport(System.out);
+		}
+		catch (IllegalArgumentException e)
+		{
+			// includes NumberFormatException
+			System.err.println("Invalid argument: " + e.getMessage());
+		}
+		catch (NoClassDefFoundError e)
+		{
+			System.err.println("The class " + e.getMessage() + " wasn't found, the Minecraft and Forge jars need to be on the classpath.");
+		}
+	}
+	
+	
+	
+	
+	
+	//===========//
+	// migration //
+	//===========//
+	
+	/**
+	 * Convert every text region in every DIM folder
+	 * and wait for them to finish.
+	 */
+	public void migrate()
+	{
+		File[] dimensionFolders = lodDataFolder.listFiles(file -> file.isDirectory() && file.getName().startsWith("DIM"));
+		if (dimensionFolders == null)
+			return;
+		
+		MigrateDimensionTask[] tasks = new MigrateDimensionTask[dimensionFolders.length];
+		for(int i = 0; i < dimensionFolders.length; i++)
+			tasks[i] = new MigrateDimensionTask(dimensionFolders[i]);
+		
+		long startTime = System.nanoTime();
+		pool.invoke(ForkJoinTask.adapt(() -> ForkJoinTask.invokeAll(tasks)));
+		elapsedTimeInNs = System.nanoTime() - startTime;
+	}
+	
+	/**
+	 * Converts every text region in a DIM folder,
+	 * then deletes the text files that were converted.
+	 */
+	private class MigrateDimensionTask extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+		
+		private final File folder;
+		/** only used by the SINGLE_FILE format */
+		private LodDimensionDatabase database = null;
+		/** text files whose regions have been converted and checked */
+		private final Queue<File> convertedFiles = new ConcurrentLinkedQueue<>();
+		
+		public MigrateDimensionTask(File dimensionFolder)
+		{
+			folder = dimensionFolder;
+		}
+		
+		@Override
+		protected void compute()
+		{
+			File[] textFiles = folder.listFiles((dir, name) ->
+					name.startsWith(LodDimensionFileHandler.FILE_NAME_PREFIX + ".") &&
+					name.endsWith(LodDimensionFileHandler.LEGACY_FILE_EXTENSION));
+			
+			if (textFiles == null || textFiles.length == 0)
+				return;
+			
+			File databaseFile = new File(folder, LodDimensionFileHandler.DATABASE_FILE_NAME);
+			long oldDatabaseSize = databaseFile.length();
+			
+			try
+			{
+				if (storageFormat == StorageFormat.SINGLE_FILE)
+					database = new LodDimensionDatabase(databaseFile);
+				
+				try
+				{
+					new MigrateRegionsTask(this, textFiles, 0, textFiles.length).invoke();
+				}
+				finally
+				{
+					if (database != null)
+					{
+						// the regions aren't in the database
+						// until they are committed
+						database.close();
+						database = null;
+					}
+				}
+				
+				if (storageFormat == StorageFormat.SINGLE_FILE)
+					convertedBytes.addAndGet(databaseFile.length() - oldDatabaseSize);
+			}
+			catch (IOException e)
+			{
+				System.err.println("LOD migration error in " + folder.getName() + ": " + e.getMessage());
+				return;
+			}
+			
+			// only delete the text files once
+			// their regions are safely saved
+			for(File file : convertedFiles)
+				if (!file.delete())
+					System.err.println("LOD migration couldn't delete " + file.getPath());
+		}
+	}
+	
+	/**
+	 * Converts the text files between start and end,
+	 * splitting into smaller tasks if there are too many.
+	 */
+	private class MigrateRegionsTask extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+		
+		private final MigrateDimensionTask dimension;
+		private final File[] textFiles;
+		private final int start;
+		private final int end;
+		
+		public MigrateRegionsTask(MigrateDimensionTask newDimension, File[] newTextFiles, int newStart, int newEnd)
+		{
+			dimension = newDimension;
+			textFiles = newTextFiles;
+			start = newStart;
+			end = newEnd;
+		}
+		
+		@Override
+		protected void compute()
+		{
+			if (end - start > REGIONS_PER_TASK)
+			{
+				int middle = (start + end) / 2;
+				invokeAll(new MigrateRegionsTask(dimension, textFiles, start, middle),
+						new MigrateRegionsTask(dimension, textFiles, middle, end));
+				return;
+			}
+			
+			for(int i = start; i < end; i++)
+				migrateRegion(dimension, textFiles[i]);
+		}
+	}
+	
+	/**
+	 * Convert the region in the given text file
+	 * and make sure it can be read back.
+	 */
+	private void migrateRegion(MigrateDimensionTask dimension, File textFile)
+	{
+		// file names look like: lod.-3.12.txt
+		String[] parts = textFile.getName().split("\\.");
+		if (parts.length != 4)
+			return;
+		
+		int regionX;
+		int regionZ;
+		try
+		{
+			regionX = Integer.parseInt(parts[1]);
+			regionZ = Integer.parseInt(parts[2]);
+		}
+		catch (NumberFormatException e)
+		{
+			// this isn't a region file
+			return;
+		}
+		
+		try
+		{
+			LodRegion textRegion = textParser.get().readRegion(textFile, regionX, regionZ);
+			
+			LodRegion oldRegion = readConvertedRegion(dimension, regionX, regionZ);
+			if (oldRegion != null)
+			{
+				// this region was converted before
+				if (regionsEqual(textRegion, oldRegion))
+				{
+					// a previous run was stopped before
+					// the text file could be deleted
+					regionsAlreadyConverted.incrementAndGet();
+					dimension.convertedFiles.add(textFile);
+				}
+				else
+				{
+					// the converted region is different (probably newer),
+					// don't replace it
+					regionsSkipped.incrementAndGet();
+					System.err.println("LOD migration skipped " + textFile.getPath() + ", it has already been converted and the data is different.");
+				}
+				return;
+			}
+			
+			long size = writeConvertedRegion(dimension, textRegion);
+			
+			if (!regionsEqual(textRegion, readConvertedRegion(dimension, regionX, regionZ)))
+			{
+				regionsFailed.incrementAndGet();
+				System.err.println("LOD migration error: " + textFile.getPath() + " was different after being converted, the text file was kept.");
+				return;
+			}
+			
+			timeRegionReads(dimension, textFile, regionX, regionZ);
+			
+			dimension.convertedFiles.add(textFile);
+			regionsConverted.incrementAndGet();
+			chunksConverted.addAndGet(textRegion.getLodCount());
+			textBytes.addAndGet(textFile.length());
+			convertedBytes.addAndGet(size);
+		}
+		catch (IOException e)
+		{
+			regionsFailed.incrementAndGet();
+			System.err.println("LOD migration error in " + textFile.getPath() + ": " + e.getMessage());
+		}
+	}
+	
+	
+	
+	
+	
+	//================//
+	// helper methods //
+	//================//
+	
+	/**
+	 * Time reading the given region from its text file
+	 * and from the format it was converted to. <br>
+	 * Both have just been read, so they are in the OS's
+	 * file cache and this compares how long each format takes
+	 * to decode, the way the file handler reads them in game.
+	 */
+	private void timeRegionReads(MigrateDimensionTask dimension, File textFile, int regionX, int regionZ) throws IOException
+	{
+		long startTime = System.nanoTime();
+		textParser.get().readRegion(textFile, regionX, regionZ);
+		textReadTimeInNs.addAndGet(System.nanoTime() - startTime);
+		
+		startTime = System.nanoTime();
+		readConvertedRegion(dimension, regionX, regionZ);
+		convertedReadTimeInNs.addAndGet(System.nanoTime() - startTime);
+	}
+	
+	/**
+	 * Returns the given region in the storage format being converted to,
+	 * null if it hasn't been converted.
+	 */
+	private LodRegion readConvertedRegion(MigrateDimensionTask dimension, int regionX, int regionZ) throws IOException
+	{
+		switch(storageFormat)
+		{
+		case SINGLE_FILE:
+			return dimension.database.readRegion(regionX, regionZ);
+		
+		case COMPRESSED:
+			File compressedFile = getRegionFile(dimension, regionX, regionZ, LodDimensionFileHandler.COMPRESSED_FILE_EXTENSION);
+			if (!compressedFile.exists())
+				return null;
+			
+			return compressedRegionFile.get().readRegion(compressedFile, regionX, regionZ);
+		
+		case MAPPED:
+		default:
+			File mappedFile = getRegionFile(dimension, regionX, regionZ, LodDimensionFileHandler.MAPPED_FILE_EXTENSION);
+			if (!mappedFile.exists())
+				return null;
+			
+			MappedRegionFile regionFile = new MappedRegionFile(mappedFile, regionX, regionZ);
+			try
+			{
+				return regionFile.readRegion();
+			}
+			finally
+			{
+				regionFile.close();
+			}
+		}
+	}
+	
+	/**
+	 * Write the given region in the storage format being converted to.
+	 * 
+	 * @returns how many bytes the region takes up,
+	 * 0 for the SINGLE_FILE format since the database size is measured instead
+	 */
+	private long writeConvertedRegion(MigrateDimensionTask dimension, LodRegion region) throws IOException
+	{
+		switch(storageFormat)
+		{
+		case SINGLE_FILE:
+			dimension.database.writeRegion(region, compressionLevel);
+			return 0;
+		
+		case COMPRESSED:
+			File compressedFile = getRegionFile(dimension, region.x, region.z, LodDimensionFileHandler.COMPRESSED_FILE_EXTENSION);
+			compressedRegionFile.get().writeRegion(compressedFile, region, compressionLevel);
+			return compressedFile.length();
+		
+		case MAPPED:
+		default:
+			MappedRegionFile regionFile = new MappedRegionFile(getRegionFile(dimension, region.x, region.z, LodDimensionFileHandler.MAPPED_FILE_EXTENSION), region.x, region.z);
+			try
+			{
+				regionFile.writeRegion(region);
+				regionFile.force();
+			}
+			finally
+			{
+				regionFile.close();
+			}
+			return MappedRegionFile.REGION_FILE_SIZE;
+		}
+	}
+	
+	private File getRegionFile(MigrateDimensionTask dimension, int regionX, int regionZ, String fileExtension)
+	{
+		return new File(dimension.folder, LodDimensionFileHandler.FILE_NAME_PREFIX + "." + regionX + "." + regionZ + fileExtension);
+	}
+	
+	/**
+	 * Returns true if both regions have the same LodChunks
+	 * in the same slots, with the same data.
+	 * The coordinates are implied by the slots.
+	 */
+	private static boolean regionsEqual(LodRegion expected, LodRegion actual)
+	{
+		if (actual == null || expected.x != actual.x || expected.z != actual.z)
+			return false;
+		
+		ByteBuffer expectedRecords = ByteBuffer.allocate(LodRegion.SIZE * LodRegion.SIZE * LodRegion.RECORD_SIZE);
+		ByteBuffer actualRecords = ByteBuffer.allocate(LodRegion.SIZE * LodRegion.SIZE * LodRegion.RECORD_SIZE);
+		
+		expected.copyRecords(0, LodRegion.SIZE * LodRegion.SIZE, expectedRecords);
+		actual.copyRecords(0, LodRegion.SIZE * LodRegion.SIZE, actualRecords);
+		expectedRecords.flip();
+		actualRecords.flip();
+		
+		// empty slots can hold anything after their flag,
+		// so only compare the slots that are used
+		for(int slot = 0; slot < LodRegion.SIZE * LodRegion.SIZE; slot++)
+		{
+			int offset = slot * LodRegion.RECORD_SIZE;
+			
+			if (expectedRecords.get(offset) == 0 || actualRecords.get(offset) == 0)
+			{
+				if (expectedRecords.get(offset) != actualRecords.get(offset))
+					return false;
+				continue;
+			}
+			
+			for(int i = 1; i < LodRegion.RECORD_SIZE; i++)
+				if (expectedRecords.get(offset + i) != actualRecords.get(offset + i))
+					return false;
+		}
+		
+		return true;
+	}
+	
+	
+	
+	
+	
+	//========//
+	// report //
+	//========//
+	
+	/**
+	 * Print how many regions were converted, how fast they were converted,
+	 * how much space was saved and how much faster they load.
+	 */
+	public void printReport(PrintStream out)
+	{
+		double seconds = Math.max(elapsedTimeInNs, 1) / 1_000_000_000.0;
+		long saved = textBytes.get() - convertedBytes.get();
+		
+		out.println("Converted " + regionsConverted.get() + " regions (" + chunksConverted.get() + " LodChunks) to " + storageFormat + " in " + String.format("%.2f", seconds) + " seconds");
+		out.println(String.format("  %.1f regions/second, %.1f LodChunks/second, %.2f MB/second of text",
+				regionsConverted.get() / seconds, chunksConverted.get() / seconds, textBytes.get() / seconds / 1_000_000.0));
+		out.println("  text: " + textBytes.get() + " bytes, converted: " + convertedBytes.get() + " bytes, saved: " + saved + " bytes" +
+				(textBytes.get() != 0 ? String.format(" (%.1f%%)", 100.0 * saved / textBytes.get()) : ""));
+		if (regionsConverted.get() != 0)
+		{
+			double textReadMs = textReadTimeInNs.get() / 1_000_000.0 / regionsConverted.get();
+			double convertedReadMs = convertedReadTimeInNs.get() / 1_000_000.0 / regionsConverted.get();
+			
+			out.println(String.format("  size: %.2fx smaller than text, load time per region: text %.3f ms, %s %.3f ms (%.1fx faster)",
+					(double) textBytes.get() / Math.max(convertedBytes.get(), 1), textReadMs, storageFormat, convertedReadMs, textReadMs / Math.max(convertedReadMs, 0.000001)));
+		}
+		out.println("  already converted: " + regionsAlreadyConverted.get() + ", skipped: " + regionsSkipped.get() + ", failed: " + regionsFailed.get());
+	}
+	
+	public long getRegionsConverted()
+	{
+		return regionsConverted.get();
+	}
+	
+	public long getRegionsFailed()
+	{
+		return regionsFailed.get();
+	}
+}
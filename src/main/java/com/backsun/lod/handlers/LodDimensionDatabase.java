@@ -0,0 +1,414 @@
+package com.backsun.lod.handlers;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import com.backsun.lod.objects.LodRegion;
+
+import net.minecraft.util.math.ChunkPos;
+
+/**
+ * This object stores every region of a dimension in one file,
+ * instead of one file per region.
+ * <br><br>
+ * The file is split into fixed size pages. Page 0 is the header,
+ * which points to the index. The index lists which pages hold each
+ * region. Regions are stored in the COMPRESSED format.
+ * <br><br>
+ * Regions are never written over their old pages. They are written to
+ * free pages (or the end of the file) and the old pages are freed
+ * once the index that points to the new pages has been written
+ * (see commit). If the game crashes before a commit the previous
+ * index and everything it points to is still intact.
+ * 
+ * @author James Seibel
+ * @version 10-16-2026
+ */
+public class LodDimensionDatabase
+{
+	/** "LODB", used to make sure we are reading a LOD database */
+	public static final int DATABASE_MAGIC = 0x4C4F4442;
+	/** increment this if the database format changes */
+	public static final int DATABASE_VERSION = 1;
+	/** how many bytes are in each page */
+	public static final int PAGE_SIZE = 4096;
+	/** region x, region z, first page, page count, length in bytes */
+	private static final int INDEX_ENTRY_SIZE = 5 * Integer.BYTES;
+	
+	
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	
+	/** encodes and decodes the regions */
+	private final CompressedRegionFile regionEncoder = new CompressedRegionFile();
+	
+	/** Key = ChunkPos.asLong(regionX, regionZ) */
+	private Map<Long, Extent> index = new HashMap<>();
+	/** where the index was last written, null if it hasn't been written yet */
+	private Extent indexExtent = null;
+	/** true if the index has changed since the last commit */
+	private boolean indexDirty = false;
+	
+	/** which pages are in use (page 0 is always in use) */
+	private BitSet usedPages = new BitSet();
+	/**
+	 * Pages that are no longer used by the index in memory,
+	 * but may still be used by the index on disk.
+	 * They can be reused after the next commit.
+	 */
+	private BitSet pendingFreePages = new BitSet();
+	/** how many pages long the file is */
+	private int pageCount = 1;
+	
+	
+	
+	/**
+	 * Open the given database file, if the file doesn't exist
+	 * it will be created.
+	 * 
+	 * @throws IOException if the file couldn't be opened or isn't a LOD database
+	 */
+	public LodDimensionDatabase(File databaseFile) throws IOException
+	{
+		file = new RandomAccessFile(databaseFile, "rw");
+		channel = file.getChannel();
+		
+		try
+		{
+			usedPages.set(0);
+			
+			if (channel.size() == 0)
+				writeHeader();
+			else
+				readHeaderAndIndex();
+		}
+		catch (IOException e)
+		{
+			file.close();
+			throw e;
+		}
+	}
+	
+	
+	
+	
+	
+	//=========//
+	// reading //
+	//=========//
+	
+	/**
+	 * Returns the region at the given coordinates,
+	 * null if it isn't in the database.
+	 * 
+	 * @throws IOException if the region couldn't be read
+	 */
+	public synchronized LodRegion readRegion(int regionX, int regionZ) throws IOException
+	{
+		Extent extent = index.get(ChunkPos.asLong(regionX, regionZ));
+		if (extent == null)
+			return null;
+		
+		return regionEncoder.decodeRegion(readExtent(extent), regionX, regionZ);
+	}
+	
+	/**
+	 * Returns true if the region at the given coordinates
+	 * is in the database.
+	 */
+	public synchronized boolean containsRegion(int regionX, int regionZ)
+	{
+		return index.containsKey(ChunkPos.asLong(regionX, regionZ));
+	}
+	
+	/**
+	 * Returns the ChunkPos.asLong(regionX, regionZ) key
+	 * of every region in the database.
+	 */
+	public synchronized Set<Long> getRegionKeys()
+	{
+		return new HashSet<>(index.keySet());
+	}
+	
+	
+	
+	
+	
+	//=========//
+	// writing //
+	//=========//
+	
+	/**
+	 * Write the given region to free pages in the database.
+	 * <br>
+	 * The region won't be found after a crash until commit is called.
+	 * 
+	 * @param compressionLevel 0 - 9, see the Deflater
+	 * @throws IOException if the region couldn't be written
+	 */
+	public synchronized void writeRegion(LodRegion region, int compressionLevel) throws IOException
+	{
+		ByteBuffer data = regionEncoder.encodeRegion(region, compressionLevel);
+		
+		Extent newExtent = allocate(data.remaining()).withRegion(region.x, region.z);
+		writeExtent(newExtent, data);
+		
+		Extent oldExtent = index.put(ChunkPos.asLong(region.x, region.z), newExtent);
+		if (oldExtent != null)
+			free(oldExtent);
+		
+		indexDirty = true;
+	}
+	
+	/**
+	 * Remove the region at the given coordinates from the database.
+	 */
+	public synchronized void removeRegion(int regionX, int regionZ)
+	{
+		Extent oldExtent = index.remove(ChunkPos.asLong(regionX, regionZ));
+		if (oldExtent != null)
+		{
+			free(oldExtent);
+			indexDirty = true;
+		}
+	}
+	
+	/**
+	 * Write the index to the file and point the header at it.
+	 * Once this is done every region written so far will
+	 * be found when the database is opened again, and
+	 * the pages freed since the last commit can be reused.
+	 * 
+	 * @throws IOException if the index couldn't be written
+	 */
+	public synchronized void commit() throws IOException
+	{
+		if (!indexDirty)
+			return;
+		
+		ByteBuffer indexData = ByteBuffer.allocate(index.size() * INDEX_ENTRY_SIZE);
+		for(Extent extent : index.values())
+		{
+			indexData.putInt(extent.regionX);
+			indexData.putInt(extent.regionZ);
+			indexData.putInt(extent.firstPage);
+			indexData.putInt(extent.pageCount);
+			indexData.putInt(extent.length);
+		}
+		indexData.flip();
+		
+		// the new index is written to free pages
+		// so the old index is still valid if we crash
+		Extent newIndexExtent = allocate(indexData.remaining());
+		writeExtent(newIndexExtent, indexData);
+		channel.force(false);
+		
+		Extent oldIndexExtent = indexExtent;
+		indexExtent = newIndexExtent;
+		writeHeader();
+		channel.force(false);
+		
+		if (oldIndexExtent != null)
+			free(oldIndexExtent);
+		
+		// nothing on disk points to these pages anymore
+		usedPages.andNot(pendingFreePages);
+		pendingFreePages.clear();
+		
+		indexDirty = false;
+	}
+	
+	/**
+	 * Commit any changes and close the file.
+	 * 
+	 * @throws IOException if the index couldn't be written
+	 */
+	public synchronized void close() throws IOException
+	{
+		try
+		{
+			commit();
+		}
+		finally
+		{
+			file.close();
+		}
+	}
+	
+	
+	
+	
+	
+	//=================//
+	// page management //
+	//=================//
+	
+	/**
+	 * Find the first run of free pages that can hold
+	 * the given number of bytes, or add pages to the end of the file.
+	 * The pages are marked as used.
+	 */
+	private Extent allocate(int length)
+	{
+		int pagesNeeded = Math.max(1, (length + PAGE_SIZE - 1) / PAGE_SIZE);
+		
+		int firstPage = usedPages.nextClearBit(1);
+		while(firstPage < pageCount)
+		{
+			int nextUsed = usedPages.nextSetBit(firstPage);
+			if (nextUsed == -1 || nextUsed > pageCount)
+				nextUsed = pageCount;
+			
+			// a free run at the end of the file
+			// can be extended past the end
+			if (nextUsed - firstPage >= pagesNeeded || nextUsed == pageCount)
+				break;
+			
+			firstPage = usedPages.nextClearBit(nextUsed);
+		}
+		
+		pageCount = Math.max(pageCount, firstPage + pagesNeeded);
+		usedPages.set(firstPage, firstPage + pagesNeeded);
+		
+		return new Extent(0, 0, firstPage, pagesNeeded, length);
+	}
+	
+	/**
+	 * Mark the given extent's pages to be freed
+	 * after the next commit.
+	 */
+	private void free(Extent extent)
+	{
+		pendingFreePages.set(extent.firstPage, extent.firstPage + extent.pageCount);
+	}
+	
+	private void writeExtent(Extent extent, ByteBuffer data) throws IOException
+	{
+		long position = (long) extent.firstPage * PAGE_SIZE;
+		while(data.hasRemaining())
+			position += channel.write(data, position);
+	}
+	
+	private ByteBuffer readExtent(Extent extent) throws IOException
+	{
+		ByteBuffer data = ByteBuffer.allocate(extent.length);
+		long position = (long) extent.firstPage * PAGE_SIZE;
+		
+		while(data.hasRemaining())
+		{
+			int read = channel.read(data, position);
+			if (read == -1)
+				throw new IOException("The LOD database ended before page " + extent.firstPage + " could be read.");
+			position += read;
+		}
+		
+		data.flip();
+		return data;
+	}
+	
+	
+	
+	
+	
+	//==================//
+	// header and index //
+	//==================//
+	
+	private void writeHeader() throws IOException
+	{
+		ByteBuffer header = ByteBuffer.allocate(PAGE_SIZE);
+		header.putInt(DATABASE_MAGIC);
+		header.putInt(DATABASE_VERSION);
+		header.putInt(PAGE_SIZE);
+		
+		if (indexExtent != null)
+		{
+			header.putInt(indexExtent.firstPage);
+			header.putInt(indexExtent.pageCount);
+			header.putInt(indexExtent.length);
+		}
+		else
+		{
+			// there isn't an index yet
+			header.putInt(0);
+			header.putInt(0);
+			header.putInt(0);
+		}
+		
+		header.clear();
+		writeExtent(new Extent(0, 0, 0, 1, PAGE_SIZE), header);
+	}
+	
+	private void readHeaderAndIndex() throws IOException
+	{
+		ByteBuffer header = readExtent(new Extent(0, 0, 0, 1, 6 * Integer.BYTES));
+		
+		if (header.getInt() != DATABASE_MAGIC ||
+			header.getInt() != DATABASE_VERSION ||
+			header.getInt() != PAGE_SIZE)
+		{
+			throw new IOException("The file isn't a LOD database.");
+		}
+		
+		pageCount = (int) ((channel.size() + PAGE_SIZE - 1) / PAGE_SIZE);
+		
+		int indexFirstPage = header.getInt();
+		int indexPageCount = header.getInt();
+		int indexLength = header.getInt();
+		
+		// no index has been committed yet
+		if (indexPageCount == 0)
+			return;
+		
+		indexExtent = new Extent(0, 0, indexFirstPage, indexPageCount, indexLength);
+		usedPages.set(indexFirstPage, indexFirstPage + indexPageCount);
+		
+		ByteBuffer indexData = readExtent(indexExtent);
+		while(indexData.remaining() >= INDEX_ENTRY_SIZE)
+		{
+			Extent extent = new Extent(indexData.getInt(), indexData.getInt(), indexData.getInt(), indexData.getInt(), indexData.getInt());
+			
+			index.put(ChunkPos.asLong(extent.regionX, extent.regionZ), extent);
+			usedPages.set(extent.firstPage, extent.firstPage + extent.pageCount);
+		}
+	}
+	
+	
+	
+	
+	
+	/**
+	 * Where a region (or the index) is in the file.
+	 */
+	private static class Extent
+	{
+		public final int regionX;
+		public final int regionZ;
+		public final int firstPage;
+		public final int pageCount;
+		/** how many bytes are actually used */
+		public final int length;
+		
+		public Extent(int newRegionX, int newRegionZ, int newFirstPage, int newPageCount, int newLength)
+		{
+			regionX = newRegionX;
+			regionZ = newRegionZ;
+			firstPage = newFirstPage;
+			pageCount = newPageCount;
+			length = newLength;
+		}
+		
+		public Extent withRegion(int newRegionX, int newRegionZ)
+		{
+			return new Extent(newRegionX, newRegionZ, firstPage, pageCount, length);
+		}
+	}
+}
@@ -1,19 +1,30 @@
 package com.backsun.lod.handlers;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.util.concurrent.ExecutorService;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
-import com.backsun.lod.objects.LodChunk;
 import com.backsun.lod.objects.LodDimension;
 import com.backsun.lod.objects.LodRegion;
+import com.backsun.lod.util.LodConfig;
+import com.backsun.lod.util.enums.StorageFormat;
 
 import net.minecraft.client.Minecraft;
-import net.minecraft.world.storage.ISaveHandler;
+import net.minecraft.util.math.ChunkPos;
 
 /**
  * This object handles creating LodRegions
@@ -30,18 +41,124 @@ public class LodDimensionFileHandler
 	
 	// String s = Minecraft.getMinecraftDir().getCanonicalPath() + "/saves/" + world.getSaveHandler().getSaveDirectoryName() + "/data/AA/World" + world.provider.dimensionId + ".dat";
 	private String save_dir;
-	public ISaveHandler saveHandler;
 	
-	private final String FILE_NAME_PREFIX = "lod";
-	private final String FILE_EXTENSION = ".txt";
+	public static final String FILE_NAME_PREFIX = "lod";
+	public static final String MAPPED_FILE_EXTENSION = ".lod";
+	public static final String COMPRESSED_FILE_EXTENSION = ".lodz";
+	/** the comma separated format used before the binary region format */
+	public static final String LEGACY_FILE_EXTENSION = ".txt";
+	/** the file that holds every region when using the SINGLE_FILE format */
+	public static final String DATABASE_FILE_NAME = "regions.loddb";
+	/** added to a memory mapped file that couldn't be opened, so a new one can replace it */
+	public static final String CORRUPT_FILE_EXTENSION = ".corrupt";
 	
-	private ExecutorService fileWritingThreadPool = Executors.newFixedThreadPool(1);
+	/** how many region files can be memory mapped at once */
+	private static final int MAX_OPEN_REGION_FILES = 64;
 	
-	
-	public LodDimensionFileHandler(ISaveHandler newSaveHandler, LodDimension newLoadedDimension)
+	/** 
+	 * The region files that are currently memory mapped,
+	 * the least recently used file is closed when
+	 * too many are open. <br>
+	 * Key = ChunkPos.asLong(regionX, regionZ) <br><br>
+	 * 
+	 * Synchronize on this map when using any of the files.
+	 */
+	private Map<Long, MappedRegionFile> openRegionFiles = new LinkedHashMap<Long, MappedRegionFile>(16, 0.75f, true)
 	{
-		saveHandler = newSaveHandler;
+		private static final long serialVersionUID = 1L;
 		
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Long, MappedRegionFile> eldest)
+		{
+			if (size() <= MAX_OPEN_REGION_FILES)
+				return false;
+			
+			closeRegionFile(eldest.getValue());
+			return true;
+		}
+	};
+	
+	/** 
+	 * Every region that has a file in this dimension's folder,
+	 * created by listing the folder once and updated whenever
+	 * a region is written. This way regions that don't
+	 * have a file can be skipped without asking the file system. <br>
+	 * Key = ChunkPos.asLong(regionX, regionZ) <br>
+	 * Value = the storage format the region was last saved in <br><br>
+	 * 
+	 * The saved format is read first, so if an old format's file
+	 * couldn't be deleted it won't be read instead of the newer one.
+	 * null until the first time it is needed.
+	 */
+	private volatile Map<Long, StorageFormat> regionFileManifest = null;
+	/** how many region lookups found a file in the manifest */
+	private AtomicLong manifestHits = new AtomicLong(0);
+	/** how many region lookups didn't find a file in the manifest */
+	private AtomicLong manifestMisses = new AtomicLong(0);
+	
+	/** reads and writes the COMPRESSED storage format */
+	private CompressedRegionFile compressedRegionFile = new CompressedRegionFile();
+	/** reads the old text format */
+	private LodChunkTextParser legacyFileParser = new LodChunkTextParser();
+	
+	/** 
+	 * Holds every region when using the SINGLE_FILE format,
+	 * null until the first time it is needed.
+	 */
+	private LodDimensionDatabase database = null;
+	
+	/** 
+	 * Regions that were removed from the LodDimension's memory
+	 * before their changes were saved. They are written by the next save
+	 * and are handed back if they are loaded again before then. <br>
+	 * Key = ChunkPos.asLong(regionX, regionZ)
+	 */
+	private Map<Long, LodRegion> unloadedDirtyRegions = new ConcurrentHashMap<>();
+	/** 
+	 * Regions that are being written right now. Their changes
+	 * are no longer marked dirty, but might not be in the file yet,
+	 * so they are handed back if they are loaded again. <br>
+	 * Key = ChunkPos.asLong(regionX, regionZ)
+	 */
+	private Map<Long, LodRegion> savingRegions = new ConcurrentHashMap<>();
+	
+	/** 
+	 * How long to wait after a region is marked dirty before saving,
+	 * any other regions marked dirty in that time are saved together.
+	 */
+	private static final long SAVE_DELAY_IN_MS = 5000;
+	/** If this many regions are dirty they are saved right away. */
+	private static final int MAX_DIRTY_REGIONS_BEFORE_SAVE = 16;
+	
+	private ScheduledExecutorService fileWritingThreadPool = Executors.newSingleThreadScheduledExecutor();
+	/** 
+	 * The save that is waiting to run, null if no save is waiting. <br>
+	 * Only use this while synchronized on this object.
+	 */
+	private ScheduledFuture<?> scheduledSave = null;
+	
+	/** how many regions were written by the last save */
+	private volatile int lastSaveRegionCount = 0;
+	/** how many regions have been written since this handler was created */
+	private volatile long totalSaveRegionCount = 0;
+	/** 
+	 * how many LodChunk slots were written by the last save,
+	 * formats that rewrite the whole region count every slot
+	 */
+	private volatile int lastSaveChunkCount = 0;
+	/** how many LodChunk slots have been written since this handler was created */
+	private volatile long totalSaveChunkCount = 0;
+	
+	/** true once close has been called, nothing is read or written after that */
+	private volatile boolean closed = false;
+	
+	
+	/**
+	 * @param worldDirectory the world's save folder, 
+	 * the LODs are saved in its lod_data folder
+	 */
+	public LodDimensionFileHandler(File worldDirectory, LodDimension newLoadedDimension)
+	{
 		loadedDimension = newLoadedDimension;
 		// these two variable are used in sync with the LodDimension
 		regionLastWriteTime = new long[loadedDimension.getWidth()][loadedDimension.getWidth()];
@@ -49,8 +166,8 @@ public class LodDimensionFileHandler
 			for(int j = 0; j < loadedDimension.getWidth(); j++)
 				regionLastWriteTime[i][j] = -1;
 		
-		if (saveHandler != null && saveHandler.getWorldDirectory() != null)
-			save_dir = getWorldSaveDirectory();
+		if (worldDirectory != null)
+			save_dir = getWorldSaveDirectory(worldDirectory);
 	}
 	
 	
@@ -66,66 +183,164 @@ public class LodDimensionFileHandler
 	/**
 	 * Return the LodRegion at the given coordinates.
 	 * (null if the file doesn't exist)
+	 * <br>
+	 * The storage format the region was last saved in is read first,
+	 * if the region isn't there the other storage formats and then
+	 * the old text file will be read instead.
 	 */
 	public LodRegion loadRegionFromFile(int regionX, int regionZ)
 	{
 		// we don't currently support reading or writing
 		// files when connected to a server
-		if (!Minecraft.getMinecraft().isIntegratedServerRunning())
+		if (isConnectedToServer())
 			return null;
 		
 		if (!readyToReadAndWrite())
 			return null;
 		
-		String fileName = getFileNameForRegion(regionX, regionZ);
+		// a region that was unloaded before it could be
+		// saved is newer than what is on the disk
+		LodRegion unsavedRegion = unloadedDirtyRegions.get(ChunkPos.asLong(regionX, regionZ));
+		if (unsavedRegion == null)
+			unsavedRegion = savingRegions.get(ChunkPos.asLong(regionX, regionZ));
+		if (unsavedRegion != null)
+			return unsavedRegion;
 		
-		File f = new File(fileName);
-		
-		if (!f.exists())
+		StorageFormat savedFormat = getSavedStorageFormat(regionX, regionZ);
+		if (savedFormat == null)
 		{
-			// there wasn't a file, don't
-			// return anything
+			// there isn't a file for this region,
+			// don't bother checking the file system
 			return null;
 		}
 		
-		LodRegion region = new LodRegion(regionX, regionZ);
+		LodRegion region = readRegionInFormat(savedFormat, regionX, regionZ);
 		
-		try
+		for(StorageFormat format : StorageFormat.values())
 		{
-			BufferedReader br = new BufferedReader(new FileReader(f));
-			String s = br.readLine();
+			if (region != null)
+				break;
 			
-			while(s != null && !s.isEmpty())
+			if (format != savedFormat)
+				region = readRegionInFormat(format, regionX, regionZ);
+		}
+		
+		if (region == null)
+		{
+			File f = new File(getFileNameForRegion(regionX, regionZ, LEGACY_FILE_EXTENSION));
+			if (f.exists())
+				region = readLegacyRegionFile(f, regionX, regionZ);
+		}
+		
+		// nothing in a region that was 
+		// just read needs to be saved
+		if (region != null)
+			region.clearDirtyChunks();
+		
+		return region;
+	}
+	
+	/**
+	 * Return the LodRegion at the given coordinates
+	 * saved in the given storage format.
+	 * (null if it isn't saved in that format)
+	 */
+	private LodRegion readRegionInFormat(StorageFormat format, int regionX, int regionZ)
+	{
+		switch(format)
+		{
+		case SINGLE_FILE:
+			LodDimensionDatabase db = getDatabase(false);
+			if (db == null)
+				return null;
+			
+			try
 			{
-				try
-				{
-					// convert each line into an LOD object and add it to the region
-					LodChunk lod = new LodChunk(s);
-					
-					region.addLod(lod);
-				}
-				catch(IllegalArgumentException e)
-				{
-					// we were unable to create this chunk
-					// for whatever reason.
-					// skip to the next chunk
-				}
-				
-				s = br.readLine();
+				return db.readRegion(regionX, regionZ);
 			}
+			catch (IOException e)
+			{
+				// the region couldn't be read
+				return null;
+			}
+			
+		case COMPRESSED:
+			File compressedFile = new File(getFileNameForRegion(regionX, regionZ, COMPRESSED_FILE_EXTENSION));
+			if (!compressedFile.exists())
+				return null;
 			
-			br.close();
+			return readCompressedRegionFile(compressedFile, regionX, regionZ);
+			
+		case MAPPED:
+		default:
+			File mappedFile = new File(getFileNameForRegion(regionX, regionZ, MAPPED_FILE_EXTENSION));
+			if (!mappedFile.exists())
+				return null;
+			
+			return readBinaryRegionFile(mappedFile, regionX, regionZ);
+		}
+	}
+	
+	/**
+	 * Read a region saved in the binary format,
+	 * the LodChunks are read straight from the memory mapped file.
+	 * <br>
+	 * Returns null if the file couldn't be read or isn't a valid region file.
+	 */
+	private LodRegion readBinaryRegionFile(File f, int regionX, int regionZ)
+	{
+		synchronized (openRegionFiles)
+		{
+			try
+			{
+				return getRegionFile(f, regionX, regionZ, false).readRegion();
+			}
+			catch (IOException e)
+			{
+				// the file couldn't be mapped
+				return null;
+			}
+		}
+	}
+	
+	/**
+	 * Read a region saved in the compressed format.
+	 * <br>
+	 * Returns null if the file couldn't be read or isn't a valid region file.
+	 */
+	private LodRegion readCompressedRegionFile(File f, int regionX, int regionZ)
+	{
+		try
+		{
+			return compressedRegionFile.readRegion(f, regionX, regionZ);
+		}
+		catch (IOException e)
+		{
+			// the file couldn't be read
+			return null;
+		}
+	}
+	
+	/**
+	 * Read a region saved in the old text format,
+	 * where each line is a LodChunk.
+	 * <br>
+	 * Returns null if the file couldn't be read.
+	 */
+	private LodRegion readLegacyRegionFile(File f, int regionX, int regionZ)
+	{
+		try
+		{
+			return legacyFileParser.readRegion(f, regionX, regionZ);
 		}
 		catch (IOException e)
 		{
 			// File not found
 			
-			// or the buffered reader encountered a 
+			// or the reader encountered a 
 			// problem reading the file
 			return null;
 		}
-		
-		return region;
 	}
 	
 	
@@ -140,74 +355,435 @@ public class LodDimensionFileHandler
 	//==============//
 	
 	/**
-	 * Save all dirty regions in this LodDimension to file.
+	 * Request that all dirty regions in this LodDimension
+	 * are saved to file.
+	 * <br><br>
+	 * Requests are coalesced: the first request schedules a save
+	 * SAVE_DELAY_IN_MS in the future and any requests before then
+	 * are handled by that same save. If MAX_DIRTY_REGIONS_BEFORE_SAVE
+	 * regions are dirty the save is started right away instead.
 	 */
 	public synchronized void saveDirtyRegionsToFileAsync()
 	{
 		// we don't currently support reading or writing
 		// files when connected to a server
-		if (!Minecraft.getMinecraft().isIntegratedServerRunning())
+		if (isConnectedToServer())
 			return;
 		
 		if (!readyToReadAndWrite())
 			// we aren't ready to read and write yet
 			return;
 		
-		fileWritingThreadPool.execute(saveDirtyRegionsThread);
+		boolean saveNow = loadedDimension.getNumberOfDirtyRegions() >= MAX_DIRTY_REGIONS_BEFORE_SAVE;
+		
+		if (scheduledSave != null)
+		{
+			// a save is already waiting,
+			// only move it up if there are too many dirty regions
+			if (!saveNow || scheduledSave.getDelay(TimeUnit.MILLISECONDS) <= 0 || !scheduledSave.cancel(false))
+				return;
+		}
+		
+		scheduledSave = fileWritingThreadPool.schedule(saveDirtyRegionsThread, saveNow ? 0 : SAVE_DELAY_IN_MS, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * Queue a dirty region that is being removed from
+	 * the LodDimension to be saved, so its changes aren't lost.
+	 */
+	public void saveUnloadedRegionAsync(LodRegion region)
+	{
+		unloadedDirtyRegions.put(ChunkPos.asLong(region.x, region.z), region);
+		saveDirtyRegionsToFileAsync();
 	}
+	
+	/**
+	 * Save all dirty regions in this LodDimension to file
+	 * and wait for the save to finish. <br>
+	 * This should be called when the world is unloaded
+	 * so no dirty regions are lost.
+	 * 
+	 * @returns how many regions were written
+	 */
+	public int saveDirtyRegionsToFile()
+	{
+		if (!readyToReadAndWrite())
+			return 0;
+		
+		synchronized (this)
+		{
+			// the save below will handle any waiting save
+			if (scheduledSave != null)
+			{
+				scheduledSave.cancel(false);
+				scheduledSave = null;
+			}
+		}
+		
+		// run on the file writing thread so this
+		// save can't run at the same time as another
+		Future<?> save = fileWritingThreadPool.submit(saveDirtyRegionsThread);
+		try
+		{
+			save.get();
+		}
+		catch (InterruptedException | ExecutionException e)
+		{
+			System.err.println("LOD file save error: " + e.getMessage());
+		}
+		
+		return lastSaveRegionCount;
+	}
+	
 	private Thread saveDirtyRegionsThread = new Thread(() -> 
 	{
-		for(int i = 0; i < loadedDimension.getWidth(); i++)
+		synchronized (this)
 		{
-			for(int j = 0; j < loadedDimension.getWidth(); j++)
+			// any region marked dirty from now on
+			// will need another save
+			scheduledSave = null;
+		}
+		
+		ArrayList<MappedRegionFile> writtenFiles = new ArrayList<>();
+		ArrayList<LodRegion> databaseRegions = new ArrayList<>();
+		int regionsWritten = 0;
+		int chunksWritten = 0;
+		
+		LodRegion[][] regions = loadedDimension.regions;
+		for(int i = 0; i < regions.length; i++)
+		{
+			for(int j = 0; j < regions[i].length; j++)
 			{
-				if(loadedDimension.isRegionDirty[i][j])
+				LodRegion region = regions[i][j];
+				if (region == null)
+					continue;
+				
+				int regionChunksWritten = saveDirtyChunks(region, writtenFiles, databaseRegions);
+				if (regionChunksWritten != -1)
 				{
-					saveRegionToDisk(loadedDimension.regions[i][j]);
-					loadedDimension.isRegionDirty[i][j] = false;
+					chunksWritten += regionChunksWritten;
+					regionsWritten++;
 				}
 			}
 		}
+		
+		// regions that left the loaded area but are still in memory
+		for(LodRegion region : loadedDimension.getCachedRegions())
+		{
+			int regionChunksWritten = saveDirtyChunks(region, writtenFiles, databaseRegions);
+			if (regionChunksWritten != -1)
+			{
+				chunksWritten += regionChunksWritten;
+				regionsWritten++;
+			}
+		}
+		
+		// regions that were removed from memory before they could be saved
+		for(LodRegion region : unloadedDirtyRegions.values())
+		{
+			int regionChunksWritten = saveDirtyChunks(region, writtenFiles, databaseRegions);
+			if (regionChunksWritten != -1)
+			{
+				chunksWritten += regionChunksWritten;
+				regionsWritten++;
+			}
+			
+			// only remove the region if it wasn't replaced or
+			// loaded, changed and unloaded again while it was being saved
+			unloadedDirtyRegions.computeIfPresent(ChunkPos.asLong(region.x, region.z), 
+					(key, unloadedRegion) -> (unloadedRegion == region && !region.isDirty()) ? null : unloadedRegion);
+		}
+		loadedDimension.removeDirtyRegions(regionsWritten);
+		
+		// make sure the changed slots actually make it to the disk
+		for(MappedRegionFile file : writtenFiles)
+			file.force();
+		
+		// make the regions written to the database findable
+		LodDimensionDatabase db = getDatabase(false);
+		if (db != null)
+		{
+			try
+			{
+				db.commit();
+				
+				// the regions can only be found in the database
+				// after the commit, so their old files are kept until now
+				for(LodRegion region : databaseRegions)
+					deleteRegionFiles(region.x, region.z);
+			}
+			catch (IOException e)
+			{
+				// the old files are still the newest
+				// copy the next time the world is opened
+				System.err.println("LOD database commit error: " + e.getMessage());
+			}
+		}
+		
+		lastSaveRegionCount = regionsWritten;
+		totalSaveRegionCount += regionsWritten;
+		lastSaveChunkCount = chunksWritten;
+		totalSaveChunkCount += chunksWritten;
 	});
  	
+	/**
+	 * Save the LodChunks of the given region that have changed.
+	 * <br>
+	 * The region is marked clean before saving so any changes made
+	 * while saving aren't lost. Until the save is done the region
+	 * is in savingRegions, so if it is unloaded and loaded again
+	 * in the meantime the old file isn't read instead.
+	 * 
+	 * If the region couldn't be written its slots are marked
+	 * dirty again, so the next save tries them again.
+	 * 
+	 * @returns how many LodChunk slots were written, -1 if the region 
+	 *          wasn't dirty or couldn't be written
+	 */
+	private int saveDirtyChunks(LodRegion region, ArrayList<MappedRegionFile> writtenFiles, ArrayList<LodRegion> databaseRegions)
+	{
+		if (!region.isDirty())
+			return -1;
+		
+		long key = ChunkPos.asLong(region.x, region.z);
+		savingRegions.put(key, region);
+		
+		try
+		{
+			BitSet dirtyChunks = region.takeDirtyChunks();
+			if (dirtyChunks.isEmpty())
+				return -1;
+			
+			int chunksWritten = saveRegionToDisk(region, dirtyChunks, writtenFiles, databaseRegions);
+			if (chunksWritten == -1)
+			{
+				// if the region was changed while it was being 
+				// written it has been counted as dirty twice
+				if (!region.restoreDirtyChunks(dirtyChunks))
+					loadedDimension.removeDirtyRegions(1);
+			}
+			
+			return chunksWritten;
+		}
+		finally
+		{
+			savingRegions.remove(key, region);
+		}
+	}
+	
 	/**
 	 * Save a specific region to disk.<br>
 	 * Note: it will save to the LodDimension that this
 	 * handler is associated with.
+	 * <br><br>
+	 * The region is saved in the storage format from the config,
+	 * if the MAPPED format is used only the dirty slots
+	 * are written, the other formats rewrite the whole region.
+	 * 
+	 * @param dirtyChunks the region's slots that have changed
+	 * @param writtenFiles the memory mapped file is added to this if it was written to
+	 * @param databaseRegions the region is added to this if it was written to the database,
+	 * its other files are deleted once the database is committed
+	 * @returns how many LodChunk slots were written, -1 if the region couldn't be written
 	 */
-	private void saveRegionToDisk(LodRegion region)
+	private int saveRegionToDisk(LodRegion region, BitSet dirtyChunks, ArrayList<MappedRegionFile> writtenFiles, ArrayList<LodRegion> databaseRegions)
 	{
 		if (!readyToReadAndWrite() || region == null)
-			return;
+			return -1;
 		
 		// convert chunk coordinates to region
 		// coordinates
 		int x = region.x;
 		int z = region.z;
 		
-		File f = new File(getFileNameForRegion(x, z));
+		File mappedFile = new File(getFileNameForRegion(x, z, MAPPED_FILE_EXTENSION));
+		File compressedFile = new File(getFileNameForRegion(x, z, COMPRESSED_FILE_EXTENSION));
+		StorageFormat storageFormat = LodConfig.storageFormat;
+		int chunksWritten = 0;
 		
 		try
 		{
-			// make sure the file and folder exists
-			if (!f.exists())
-				if(!f.getParentFile().exists())
-					f.getParentFile().mkdirs();
-				f.createNewFile();
-			
-			FileWriter fw = new FileWriter(f);
+			// make sure the folder exists
+			if(!mappedFile.getParentFile().exists())
+				mappedFile.getParentFile().mkdirs();
 			
-			for(LodChunk[] chunkArray : region.getAllLods())
-				for(LodChunk chunk : chunkArray)
-					if(chunk != null)
-						fw.write(chunk.toData() + "\n");
+			switch(storageFormat)
+			{
+			case SINGLE_FILE:
+				getDatabase(true).writeRegion(region, LodConfig.compressionLevel);
+				chunksWritten = LodRegion.SIZE * LodRegion.SIZE;
+				
+				// the database replaces the region files,
+				// but only after it is committed
+				databaseRegions.add(region);
+				break;
+				
+			case COMPRESSED:
+				compressedRegionFile.writeRegion(compressedFile, region, LodConfig.compressionLevel);
+				chunksWritten = LodRegion.SIZE * LodRegion.SIZE;
+				
+				// the compressed file replaces the mapped file
+				deleteMappedFile(mappedFile, x, z);
+				removeFromDatabase(x, z);
+				deleteRegionFile(new File(getFileNameForRegion(x, z, LEGACY_FILE_EXTENSION)));
+				break;
+				
+			case MAPPED:
+			default:
+				synchronized (openRegionFiles)
+				{
+					MappedRegionFile writtenFile = getRegionFile(mappedFile, x, z, true);
+					
+					// a new file doesn't have any of the
+					// region's clean slots yet
+					if (writtenFile.isEmpty())
+						chunksWritten = writtenFile.writeRegion(region);
+					else
+						chunksWritten = writtenFile.writeChunks(region, dirtyChunks);
+					
+					writtenFiles.add(writtenFile);
+				}
+				
+				// the mapped file replaces the compressed file
+				deleteRegionFile(compressedFile);
+				removeFromDatabase(x, z);
+				deleteRegionFile(new File(getFileNameForRegion(x, z, LEGACY_FILE_EXTENSION)));
+				break;
+			}
 			
-			fw.close();
+			getRegionFileManifest().put(ChunkPos.asLong(x, z), storageFormat);
 		}
 		catch(Exception e)
 		{
 			System.err.println("LOD file write error: " + e.getMessage());
+			return -1;
 		}
+		
+		return chunksWritten;
+	}
+	
+	/**
+	 * Close every file this handler has open and stop the file
+	 * writing thread. This should be called when the world is unloaded,
+	 * after the last save, otherwise the files stay open (and mapped)
+	 * after the LodDimension is gone. <br>
+	 * Nothing is read or written after this, 
+	 * any save that hasn't started is skipped.
+	 */
+	public void close()
+	{
+		synchronized (this)
+		{
+			closed = true;
+			
+			if (scheduledSave != null)
+			{
+				scheduledSave.cancel(false);
+				scheduledSave = null;
+			}
+		}
+		
+		// let a save that is already running finish
+		// before its files are closed
+		fileWritingThreadPool.shutdown();
+		try
+		{
+			if (!fileWritingThreadPool.awaitTermination(10, TimeUnit.SECONDS))
+				System.err.println("LOD file save didn't finish before closing.");
+		}
+		catch (InterruptedException e)
+		{
+			System.err.println("LOD file close error: " + e.getMessage());
+		}
+		
+		synchronized (openRegionFiles)
+		{
+			for(MappedRegionFile file : openRegionFiles.values())
+			{
+				file.force();
+				closeRegionFile(file);
+			}
+			openRegionFiles.clear();
+		}
+		
+		synchronized (this)
+		{
+			if (database != null)
+			{
+				try
+				{
+					database.close();
+				}
+				catch (IOException e)
+				{
+					System.err.println("LOD database close error: " + e.getMessage());
+				}
+				database = null;
+			}
+		}
+	}
+	
+	/**
+	 * Close and delete the given region's memory mapped file.
+	 */
+	private void deleteMappedFile(File mappedFile, int regionX, int regionZ)
+	{
+		synchronized (openRegionFiles)
+		{
+			// the file has to be unmapped before
+			// Windows will let it be deleted
+			MappedRegionFile oldFile = openRegionFiles.remove(ChunkPos.asLong(regionX, regionZ));
+			if (oldFile != null)
+				closeRegionFile(oldFile);
+		}
+		
+		deleteRegionFile(mappedFile);
+	}
+	
+	/**
+	 * Delete the given region file if it exists, printing
+	 * an error if it couldn't be deleted. <br>
+	 * A file that is left behind won't be read instead of
+	 * the region's newer file, since the manifest records the
+	 * format each region was saved in, and when the manifest
+	 * is created the newest file is used.
+	 * 
+	 * @returns true if the file doesn't exist anymore
+	 */
+	private boolean deleteRegionFile(File f)
+	{
+		if (!f.exists() || f.delete())
+			return true;
+		
+		System.err.println("LOD file delete error: " + f.getName() + " couldn't be deleted.");
+		return false;
+	}
+	
+	/**
+	 * Delete every file of the given region, 
+	 * used once it is saved in the database.
+	 */
+	private void deleteRegionFiles(int regionX, int regionZ)
+	{
+		deleteMappedFile(new File(getFileNameForRegion(regionX, regionZ, MAPPED_FILE_EXTENSION)), regionX, regionZ);
+		deleteRegionFile(new File(getFileNameForRegion(regionX, regionZ, COMPRESSED_FILE_EXTENSION)));
+		deleteRegionFile(new File(getFileNameForRegion(regionX, regionZ, LEGACY_FILE_EXTENSION)));
+	}
+	
+	/**
+	 * Remove the given region from the database,
+	 * if this dimension has a database. <br>
+	 * The removal is saved by the next commit.
+	 */
+	private void removeFromDatabase(int regionX, int regionZ)
+	{
+		LodDimensionDatabase db = getDatabase(false);
+		if (db != null)
+			db.removeRegion(regionX, regionZ);
+		else if (new File(getDimensionDirectoryName() + File.separator + DATABASE_FILE_NAME).exists())
+			// the database couldn't be opened, the manifest will
+			// use the region's newer file the next time it is created
+			System.err.println("LOD database error: the region (" + regionX + "," + regionZ + ") couldn't be removed from " + DATABASE_FILE_NAME + ".");
 	}
 	
 	
@@ -223,16 +799,291 @@ public class LodDimensionFileHandler
 	
 	/**
 	 * Return the name of the file that should contain the 
-	 * region at the given x and z. <br>
+	 * region at the given x and z, with the given file extension. <br>
 	 * Returns null if this object isn't ready to read and write.
 	 */
-	private String getFileNameForRegion(int regionX, int regionZ)
+	private String getFileNameForRegion(int regionX, int regionZ, String fileExtension)
 	{
 		if (!readyToReadAndWrite())
 			return null;
 		
-		return save_dir + "\\lod_data\\DIM" + loadedDimension.dimension.getId() + "\\" +
-				FILE_NAME_PREFIX + "." + regionX + "." + regionZ + FILE_EXTENSION;
+		return getDimensionDirectoryName() + File.separator +
+				FILE_NAME_PREFIX + "." + regionX + "." + regionZ + fileExtension;
+	}
+	
+	/**
+	 * Return the name of the folder that holds
+	 * every region file for this dimension. <br>
+	 * Returns null if this object isn't ready to read and write.
+	 */
+	private String getDimensionDirectoryName()
+	{
+		if (!readyToReadAndWrite())
+			return null;
+		
+		return save_dir + File.separator + "lod_data" + File.separator + "DIM" + loadedDimension.dimension.getId();
+	}
+	
+	
+	/**
+	 * Returns the storage format the region at the given x and z
+	 * was last saved in, null if it doesn't have a file (in any format). <br>
+	 * This only checks the manifest, not the file system.
+	 */
+	private StorageFormat getSavedStorageFormat(int regionX, int regionZ)
+	{
+		StorageFormat savedFormat = getRegionFileManifest().get(ChunkPos.asLong(regionX, regionZ));
+		if (savedFormat != null)
+			manifestHits.incrementAndGet();
+		else
+			manifestMisses.incrementAndGet();
+		
+		return savedFormat;
+	}
+	
+	/**
+	 * Returns the manifest of every region that has a file,
+	 * creating it by listing the dimension's folder
+	 * if this is the first time it is needed.
+	 * <br><br>
+	 * If a region has files in more than one format (because an
+	 * old one couldn't be deleted) the most recently modified
+	 * file's format is used. Regions that only have a file in
+	 * the old text format use the format from the config,
+	 * since the text file is read after every other format.
+	 */
+	private Map<Long, StorageFormat> getRegionFileManifest()
+	{
+		Map<Long, StorageFormat> manifest = regionFileManifest;
+		if (manifest != null)
+			return manifest;
+		
+		synchronized (this)
+		{
+			if (regionFileManifest != null)
+				return regionFileManifest;
+			
+			manifest = new ConcurrentHashMap<>();
+			// when each region's newest file was modified
+			HashMap<Long, Long> lastModifiedTimes = new HashMap<>();
+			
+			File[] files = new File(getDimensionDirectoryName()).listFiles();
+			if (files != null)
+			{
+				for(File file : files)
+				{
+					// file names look like: lod.-3.12.lod
+					String[] parts = file.getName().split("\\.");
+					
+					if (parts.length != 4 || !parts[0].equals(FILE_NAME_PREFIX))
+						continue;
+					
+					String extension = "." + parts[3];
+					StorageFormat format;
+					if (extension.equals(MAPPED_FILE_EXTENSION))
+						format = StorageFormat.MAPPED;
+					else if (extension.equals(COMPRESSED_FILE_EXTENSION))
+						format = StorageFormat.COMPRESSED;
+					else if (extension.equals(LEGACY_FILE_EXTENSION))
+						format = null;
+					else
+						continue;
+					
+					long key;
+					try
+					{
+						key = ChunkPos.asLong(Integer.parseInt(parts[1]), Integer.parseInt(parts[2]));
+					}
+					catch (NumberFormatException e)
+					{
+						// this isn't a region file
+						continue;
+					}
+					
+					if (format == null)
+					{
+						manifest.putIfAbsent(key, LodConfig.storageFormat);
+					}
+					else if (file.lastModified() > lastModifiedTimes.getOrDefault(key, Long.MIN_VALUE))
+					{
+						manifest.put(key, format);
+						lastModifiedTimes.put(key, file.lastModified());
+					}
+				}
+			}
+			
+			// regions in the database don't have their own file
+			LodDimensionDatabase db = getDatabase(false);
+			if (db != null)
+			{
+				long databaseLastModified = new File(getDimensionDirectoryName() + File.separator + DATABASE_FILE_NAME).lastModified();
+				
+				for(long key : db.getRegionKeys())
+					if (databaseLastModified > lastModifiedTimes.getOrDefault(key, Long.MIN_VALUE))
+						manifest.put(key, StorageFormat.SINGLE_FILE);
+			}
+			
+			regionFileManifest = manifest;
+			return manifest;
+		}
+	}
+	
+	/**
+	 * Returns how many region lookups found a
+	 * file in the manifest.
+	 */
+	public long getManifestHits()
+	{
+		return manifestHits.get();
+	}
+	
+	/**
+	 * Returns how many region lookups were answered
+	 * by the manifest without asking the file system,
+	 * because the region doesn't have a file.
+	 */
+	public long getManifestMisses()
+	{
+		return manifestMisses.get();
+	}
+	
+	
+	/**
+	 * Returns the memory mapped file for the given region,
+	 * mapping (and creating if needed) the file if it isn't already open.
+	 * <br>
+	 * The caller must be synchronized on openRegionFiles.
+	 * 
+	 * @param replaceInvalidFile if true and the file isn't a valid region file
+	 * (wrong size or header) it is renamed with CORRUPT_FILE_EXTENSION and
+	 * a new empty file is created, otherwise the region could never be saved.
+	 * @throws IOException if the file couldn't be mapped
+	 */
+	private MappedRegionFile getRegionFile(File f, int regionX, int regionZ, boolean replaceInvalidFile) throws IOException
+	{
+		long key = ChunkPos.asLong(regionX, regionZ);
+		
+		MappedRegionFile file = openRegionFiles.get(key);
+		if (file == null)
+		{
+			try
+			{
+				file = new MappedRegionFile(f, regionX, regionZ);
+			}
+			catch (IOException e)
+			{
+				if (!replaceInvalidFile || !f.exists() || MappedRegionFile.isRegionFile(f, regionX, regionZ))
+					throw e;
+				
+				// keep the bad file in case someone wants to look at it
+				File corruptFile = new File(f.getPath() + CORRUPT_FILE_EXTENSION);
+				Files.move(f.toPath(), corruptFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+				System.err.println("LOD file error: " + e.getMessage() + " It was renamed to " + corruptFile.getName() + " and will be replaced.");
+				
+				file = new MappedRegionFile(f, regionX, regionZ);
+			}
+			
+			openRegionFiles.put(key, file);
+		}
+		
+		return file;
+	}
+	
+	/**
+	 * Returns this dimension's database, opening it if it isn't already open.
+	 * <br>
+	 * Returns null if the database doesn't exist and create is false,
+	 * or if it couldn't be opened.
+	 */
+	private synchronized LodDimensionDatabase getDatabase(boolean create)
+	{
+		if (database != null || !readyToReadAndWrite())
+			return database;
+		
+		File databaseFile = new File(getDimensionDirectoryName() + File.separator + DATABASE_FILE_NAME);
+		if (!databaseFile.exists() && !create)
+			return null;
+		
+		try
+		{
+			// make sure the folder exists
+			if (!databaseFile.getParentFile().exists())
+				databaseFile.getParentFile().mkdirs();
+			
+			database = new LodDimensionDatabase(databaseFile);
+		}
+		catch (IOException e)
+		{
+			System.err.println("LOD database open error: " + e.getMessage());
+		}
+		
+		return database;
+	}
+	
+	/**
+	 * Close the given region file, 
+	 * printing an error if it couldn't be closed.
+	 */
+	private void closeRegionFile(MappedRegionFile file)
+	{
+		try
+		{
+			if (!file.close())
+				System.err.println("LOD file close error: the region file (" + file.regionX + "," + file.regionZ + ") is still mapped until it is garbage collected.");
+		}
+		catch (IOException e)
+		{
+			System.err.println("LOD file close error: " + e.getMessage());
+		}
+	}
+	
+	
+	/**
+	 * Returns how many regions were written 
+	 * by the most recent save.
+	 */
+	public int getLastSaveRegionCount()
+	{
+		return lastSaveRegionCount;
+	}
+	
+	/**
+	 * Returns how many regions have been written
+	 * since this handler was created.
+	 */
+	public long getTotalSaveRegionCount()
+	{
+		return totalSaveRegionCount;
+	}
+	
+	/**
+	 * Returns how many LodChunk slots were written
+	 * by the most recent save. Formats that rewrite the
+	 * whole region count every slot in the region.
+	 */
+	public int getLastSaveChunkCount()
+	{
+		return lastSaveChunkCount;
+	}
+	
+	/**
+	 * Returns how many LodChunk slots have been written
+	 * since this handler was created.
+	 */
+	public long getTotalSaveChunkCount()
+	{
+		return totalSaveChunkCount;
+	}
+	
+	/**
+	 * Returns how many times smaller regions saved in the
+	 * COMPRESSED format are compared to their uncompressed records.
+	 * <br>
+	 * Returns 0 if nothing has been compressed yet.
+	 */
+	public double getCompressionRatio()
+	{
+		return compressedRegionFile.getCompressionRatio();
 	}
 	
 	
@@ -240,12 +1091,24 @@ public class LodDimensionFileHandler
 	 * Returns if this FileHandler is ready to read
 	 * and write files.
 	 * <br>
-	 * This returns true when the world save directory is known.
+	 * This returns true when the world save directory is known
+	 * and this handler hasn't been closed.
 	 */
 	public boolean readyToReadAndWrite()
 	{
-		return saveHandler != null && saveHandler.getWorldDirectory() != null && 
-				save_dir != null && !save_dir.isEmpty();
+		return !closed && save_dir != null && !save_dir.isEmpty();
+	}
+	
+	/**
+	 * Returns true if we are connected to a server
+	 * instead of playing single player. <br>
+	 * Returns false if Minecraft isn't running, 
+	 * like in the headless tools.
+	 */
+	private static boolean isConnectedToServer()
+	{
+		Minecraft mc = Minecraft.getMinecraft();
+		return mc != null && !mc.isIntegratedServerRunning();
 	}
 	
 	
@@ -273,15 +1136,15 @@ public class LodDimensionFileHandler
 	
 	
 	/**
-	 * Gets the canonical path to the world save folder.
+	 * Gets the canonical path to the given world save folder.
 	 * <br>
 	 * Returns null if there was an IO Exception
 	 */
-	private String getWorldSaveDirectory()
+	private static String getWorldSaveDirectory(File worldDirectory)
 	{
 		try
 		{
-			return saveHandler.getWorldDirectory().getCanonicalPath();
+			return worldDirectory.getCanonicalPath();
 		}
 		catch (IOException e) 
 		{
@@ -0,0 +1,355 @@
+package com.backsun.lod.handlers;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.BitSet;
+
+import com.backsun.lod.objects.LodRegion;
+
+/**
+ * This object is a binary region file that is
+ * memory mapped, with one fixed size slot for every
+ * LodChunk in the region.
+ * <br><br>
+ * Since every slot is in a fixed location,
+ * updating a LodChunk only changes that slot's bytes
+ * and reading a region is done straight from the mapping.
+ * 
+ * @author James Seibel
+ * @version 10-16-2026
+ */
+public class MappedRegionFile
+{
+	/** "LODR", used to make sure we are reading a region file */
+	public static final int REGION_FILE_MAGIC = 0x4C4F4452;
+	/** increment this if the binary region format changes */
+	public static final int REGION_FILE_VERSION = 1;
+	/** magic, version, region x, region z, region size, record size */
+	public static final int REGION_FILE_HEADER_SIZE = 6 * Integer.BYTES;
+	/** a flag byte (is there a LodChunk in this slot) followed by the LodChunk's data */
+	public static final int REGION_FILE_RECORD_SIZE = LodRegion.RECORD_SIZE;
+	/** how big every region file is */
+	public static final int REGION_FILE_SIZE = REGION_FILE_HEADER_SIZE + (LodRegion.SIZE * LodRegion.SIZE * REGION_FILE_RECORD_SIZE);
+	
+	
+	/**	X coordinate of the region in this file */
+	public final int regionX;
+	/**	Z coordinate of the region in this file */
+	public final int regionZ;
+	
+	private final RandomAccessFile file;
+	private final MappedByteBuffer mappedBuffer;
+	/** 
+	 * true once the file is closed, the mapping is
+	 * released then so it can't be used after that
+	 */
+	private boolean closed = false;
+	/** true until the first whole region is written to a new file */
+	private boolean empty;
+	
+	/** used to compare a new record with what is already in the file */
+	private final ByteBuffer recordBuffer = ByteBuffer.allocate(REGION_FILE_RECORD_SIZE);
+	
+	
+	
+	/**
+	 * Map the given file, if the file doesn't exist
+	 * it will be created with every slot empty.
+	 * 
+	 * @throws IOException if the file couldn't be mapped or
+	 * isn't a region file for the given region (see isRegionFile)
+	 */
+	public MappedRegionFile(File regionFile, int newRegionX, int newRegionZ) throws IOException
+	{
+		regionX = newRegionX;
+		regionZ = newRegionZ;
+		
+		file = new RandomAccessFile(regionFile, "rw");
+		
+		try
+		{
+			FileChannel channel = file.getChannel();
+			long oldSize = channel.size();
+			
+			if (oldSize != 0 && oldSize != REGION_FILE_SIZE)
+				throw new IOException("The file " + regionFile.getName() + " isn't a valid region file, it is " + oldSize + " bytes long.");
+			
+			// mapping past the end of the file will grow the file,
+			// the new bytes will be zero (empty slots)
+			mappedBuffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, REGION_FILE_SIZE);
+			
+			empty = (oldSize == 0);
+			if (empty)
+				writeHeader();
+			else if (!isHeaderValid(mappedBuffer, regionX, regionZ))
+			{
+				unmap(mappedBuffer);
+				throw new IOException("The file " + regionFile.getName() + " isn't a region file for the region (" + regionX + "," + regionZ + ").");
+			}
+		}
+		catch (IOException e)
+		{
+			file.close();
+			throw e;
+		}
+	}
+	
+	
+	
+	
+	
+	//=========//
+	// reading //
+	//=========//
+	
+	/**
+	 * Create a LodRegion from the LodChunks in this file.
+	 * The file's records are the same as the region's,
+	 * so they are copied straight out of the mapping.
+	 * 
+	 * @throws IOException if the file has been closed
+	 */
+	public synchronized LodRegion readRegion() throws IOException
+	{
+		throwIfClosed();
+		
+		LodRegion region = new LodRegion(regionX, regionZ);
+		
+		ByteBuffer view = mappedBuffer.duplicate();
+		view.position(REGION_FILE_HEADER_SIZE);
+		view.limit(REGION_FILE_SIZE);
+		region.putRecords(0, view);
+		
+		return region;
+	}
+	
+	
+	
+	
+	
+	//=========//
+	// writing //
+	//=========//
+	
+	/**
+	 * Write every slot of the given region to this file.
+	 * Only slots that are different from what is already in the
+	 * file are written, so unchanged parts of the file aren't touched.
+	 * 
+	 * @returns how many slots were written
+	 * @throws IOException if the file has been closed
+	 */
+	public synchronized int writeRegion(LodRegion region) throws IOException
+	{
+		throwIfClosed();
+		
+		int slotsWritten = 0;
+		
+		for(int slot = 0; slot < LodRegion.SIZE * LodRegion.SIZE; slot++)
+			if (writeSlot(region, slot))
+				slotsWritten++;
+		
+		empty = false;
+		return slotsWritten;
+	}
+	
+	/**
+	 * Write the given slots of the given region to this file,
+	 * every other slot is left alone.
+	 * 
+	 * @param slots Index = (xIndex * LodRegion.SIZE) + zIndex
+	 * @returns how many slots were written
+	 * @throws IOException if the file has been closed
+	 */
+	public synchronized int writeChunks(LodRegion region, BitSet slots) throws IOException
+	{
+		throwIfClosed();
+		
+		int slotsWritten = 0;
+		
+		for(int i = slots.nextSetBit(0); i >= 0; i = slots.nextSetBit(i + 1))
+			if (writeSlot(region, i))
+				slotsWritten++;
+		
+		return slotsWritten;
+	}
+	
+	/**
+	 * Write the given region's record for the given slot
+	 * to this file, if the slot's bytes are different.
+	 * 
+	 * @param slot Index = (xIndex * LodRegion.SIZE) + zIndex
+	 * @returns true if the slot changed
+	 */
+	private boolean writeSlot(LodRegion region, int slot)
+	{
+		recordBuffer.clear();
+		region.copyRecords(slot, 1, recordBuffer);
+		recordBuffer.flip();
+		
+		int offset = REGION_FILE_HEADER_SIZE + (slot * REGION_FILE_RECORD_SIZE);
+		ByteBuffer fileSlot = mappedBuffer.duplicate();
+		fileSlot.position(offset);
+		fileSlot.limit(offset + REGION_FILE_RECORD_SIZE);
+		
+		if (fileSlot.equals(recordBuffer))
+			// nothing changed, don't dirty the page
+			return false;
+		
+		fileSlot.put(recordBuffer);
+		return true;
+	}
+	
+	/**
+	 * Make sure every change to the mapping
+	 * has been written to the disk. <br>
+	 * Does nothing if the file has been closed.
+	 */
+	public synchronized void force()
+	{
+		if (!closed)
+			mappedBuffer.force();
+	}
+	
+	/**
+	 * Returns true if this file was created empty and
+	 * writeRegion hasn't been called yet, so none of the
+	 * region's slots are in it.
+	 */
+	public synchronized boolean isEmpty()
+	{
+		return empty;
+	}
+	
+	/**
+	 * Close the file and release the mapping. <br>
+	 * Changes written before closing will still be saved.
+	 * <br><br>
+	 * The mapping is released right away instead of when it is
+	 * garbage collected, because Windows won't delete or rename
+	 * a file while it is mapped. If it can't be released
+	 * this returns false and the file can't be deleted until
+	 * the garbage collector releases it.
+	 * 
+	 * @returns true if the mapping was released
+	 */
+	public synchronized boolean close() throws IOException
+	{
+		if (closed)
+			return true;
+		
+		closed = true;
+		file.close();
+		return unmap(mappedBuffer);
+	}
+	
+	
+	
+	
+	
+	//================//
+	// helper methods //
+	//================//
+	
+	private void writeHeader()
+	{
+		mappedBuffer.putInt(0, REGION_FILE_MAGIC);
+		mappedBuffer.putInt(4, REGION_FILE_VERSION);
+		mappedBuffer.putInt(8, regionX);
+		mappedBuffer.putInt(12, regionZ);
+		mappedBuffer.putInt(16, LodRegion.SIZE);
+		mappedBuffer.putInt(20, REGION_FILE_RECORD_SIZE);
+	}
+	
+	private void throwIfClosed() throws IOException
+	{
+		if (closed)
+			throw new IOException("The region file (" + regionX + "," + regionZ + ") has been closed.");
+	}
+	
+	/**
+	 * Returns true if the given file is the right size and its
+	 * header is for the given region and was written in this format.
+	 * If it isn't the constructor will always fail for this file.
+	 * 
+	 * @throws IOException if the file couldn't be read
+	 */
+	public static boolean isRegionFile(File regionFile, int regionX, int regionZ) throws IOException
+	{
+		try (RandomAccessFile file = new RandomAccessFile(regionFile, "r"))
+		{
+			if (file.length() != REGION_FILE_SIZE)
+				return false;
+			
+			byte[] header = new byte[REGION_FILE_HEADER_SIZE];
+			file.readFully(header);
+			return isHeaderValid(ByteBuffer.wrap(header), regionX, regionZ);
+		}
+	}
+	
+	/**
+	 * Returns true if the given header is for the given
+	 * region and was written in this format.
+	 */
+	private static boolean isHeaderValid(ByteBuffer header, int regionX, int regionZ)
+	{
+		return header.getInt(0) == REGION_FILE_MAGIC &&
+				header.getInt(4) == REGION_FILE_VERSION &&
+				header.getInt(8) == regionX &&
+				header.getInt(12) == regionZ &&
+				header.getInt(16) == LodRegion.SIZE &&
+				header.getInt(20) == REGION_FILE_RECORD_SIZE;
+	}
+	
+	/**
+	 * Release the given mapping now, instead of
+	 * waiting for it to be garbage collected. Nothing
+	 * can use the buffer (or its duplicates) after this.
+	 * <br><br>
+	 * Java doesn't have a public way to do this, so
+	 * the buffer's cleaner is called: through Unsafe.invokeCleaner
+	 * on Java 9 and newer, or DirectBuffer.cleaner on Java 8.
+	 * 
+	 * @returns true if the mapping was released
+	 */
+	private static boolean unmap(MappedByteBuffer buffer)
+	{
+		try
+		{
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			Method invokeCleaner;
+			try
+			{
+				invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+			}
+			catch (NoSuchMethodException e)
+			{
+				// Java 8
+				Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+				cleanerMethod.setAccessible(true);
+				Object cleaner = cleanerMethod.invoke(buffer);
+				if (cleaner == null)
+					return false;
+				
+				cleaner.getClass().getMethod("clean").invoke(cleaner);
+				return true;
+			}
+			
+			Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+			theUnsafe.setAccessible(true);
+			invokeCleaner.invoke(theUnsafe.get(null), buffer);
+			return true;
+		}
+		catch (ReflectiveOperationException | RuntimeException e)
+		{
+			// the garbage collector will release it
+			return false;
+		}
+	}
+}
@@ -1,21 +1,21 @@
 package com.backsun.lod.objects;
 
-import java.awt.Color;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 import com.backsun.lod.util.enums.ColorDirection;
 import com.backsun.lod.util.enums.LodCorner;
 
-import net.minecraft.block.Block;
-import net.minecraft.client.Minecraft;
-import net.minecraft.client.renderer.color.BlockColors;
-import net.minecraft.util.math.BlockPos;
-import net.minecraft.world.World;
-import net.minecraft.world.chunk.Chunk;
-import net.minecraft.world.chunk.storage.ExtendedBlockStorage;
-
 /**
  * This object contains position
  * and color data for an LOD object.
+ * <br><br>
+ * The heights are packed into two longs (4 shorts each)
+ * and the colors are stored as ARGB ints, so each LodChunk
+ * is only this object and one int array.
+ * <br><br>
+ * LodChunks are created from Minecraft's chunks
+ * by the LodChunkGenerator.
  * 
  * @author James Seibel
  * @version 02-13-2021
@@ -23,42 +23,36 @@ import net.minecraft.world.chunk.storage.ExtendedBlockStorage;
 public class LodChunk
 {
 	/** how many different pieces of data are in one line */
-	private static final int DATA_DELIMITER_COUNT = 28;
+	public static final int DATA_DELIMITER_COUNT = 28;
 
 	/** This is what separates each piece of data in the toData method */
 	public static final char DATA_DELIMITER = ',';
 	
-	public static final int WIDTH = 16;
-	
-	private static final int CHUNK_DATA_WIDTH = WIDTH;
-	private static final int CHUNK_DATA_HEIGHT = WIDTH;
+	/** 
+	 * how many bytes the writeData method uses 
+	 * (4 top shorts, 4 bottom shorts, 6 ARGB ints) 
+	 */
+	public static final int DATA_SIZE_IN_BYTES = (4 * Short.BYTES) + (4 * Short.BYTES) + (6 * Integer.BYTES);
 	
-	private final int airBlockId = Block.getIdFromBlock(Block.getBlockFromName("air"));
-	private final int waterBlockId = Block.getIdFromBlock(Block.getBlockFromName("water"));
-	private final int waterColor = colorToInt(new Color(36, 50, 171));
+	public static final int WIDTH = 16;
 	
-	/**
-	 * This is how many blocks are
-	 * required at a specific y-value
-	 * to constitute a LOD point
-	 */
-	private final int LOD_BLOCK_REQ = 16;
-	// the max number of blocks per layer = 64 (8*8)
-	// since each layer is 1/4 the chunk
+	/** ARGB color that can't be seen */
+	public static final int INVISIBLE_COLOR = 0;
 	
 	
 	/** The x coordinate of the chunk. */
-	public int x;
+	public final int x;
 	/** The z coordinate of the chunk. */
-	public int z;
+	public final int z;
 	
 	// each short is the height of
 	// that 8th of the chunk.
-	public short top[];
-	public short bottom[];
+	// Index = LodCorner.value * 16 bits
+	private long topHeights;
+	private long bottomHeights;
 	
-	/** The average color of each 6 cardinal directions */
-	public Color colors[];
+	/** The average ARGB color of each 6 cardinal directions */
+	private int colors[];
 	
 	
 	
@@ -80,14 +74,14 @@ public class LodChunk
 		x = 0;
 		z = 0;
 		
-		top = new short[4];
-		bottom = new short[4];
-		colors = new Color[6];
+		topHeights = 0;
+		bottomHeights = 0;
 		
 		// by default have the colors invisible
+		colors = new int[6];
 		for(ColorDirection dir : ColorDirection.values())
 		{
-			colors[dir.value] = new Color(0, 0, 0, 0);
+			colors[dir.value] = INVISIBLE_COLOR;
 		}
 	}
 	
@@ -144,29 +138,27 @@ public class LodChunk
 		
 		
 		// top
-		top = new short[4];
 		for(LodCorner loc : LodCorner.values())
 		{
 			lastIndex = index;
 			index = data.indexOf(DATA_DELIMITER, lastIndex + 1);
 			
-			top[loc.value] = Short.parseShort(data.substring(lastIndex+1,index));
+			topHeights = setHeight(topHeights, loc, Short.parseShort(data.substring(lastIndex+1,index)));
 		}
 		
 		
 		// bottom
-		bottom = new short[4];
 		for(LodCorner loc : LodCorner.values())
 		{
 			lastIndex = index;
 			index = data.indexOf(DATA_DELIMITER, lastIndex + 1);
 			
-			bottom[loc.value] = Short.parseShort(data.substring(lastIndex+1,index));
+			bottomHeights = setHeight(bottomHeights, loc, Short.parseShort(data.substring(lastIndex+1,index)));
 		}
 		
 		
 		// color
-		colors = new Color[6];
+		colors = new int[6];
 		for(ColorDirection dir : ColorDirection.values())
 		{
 			int red = 0;
@@ -197,503 +189,86 @@ public class LodChunk
 				}
 			}
 			
-			colors[dir.value] = new Color(red, green, blue);
+			colors[dir.value] = colorToInt(red, green, blue);
 		}
 	}
 	
 	/**
-	 * Creates a LodChunk for a chunk in the given world. <br>
-	 * Note: The world is required to determine each block's color
+	 * Creates a LodChunk from the binary data written
+	 * by the writeData method. The chunk coordinates
+	 * aren't stored in the binary data, so they must be given.
+	 * <br>
+	 * The buffer's position will be moved to the end of the read data.
 	 * 
-	 * @throws IllegalArgumentException 
-	 * thrown if either the chunk or world is null.
+	 * @throws java.nio.BufferUnderflowException if the buffer doesn't have DATA_SIZE_IN_BYTES remaining
 	 */
-	public LodChunk(Chunk chunk, World world) throws IllegalArgumentException
+	public LodChunk(ByteBuffer data, int chunkX, int chunkZ)
 	{
-		if(chunk == null)
-		{
-			throw new IllegalArgumentException("LodChunk constructor given a null chunk");
-		}
-		if(world == null)
-		{
-			throw new IllegalArgumentException("LodChunk constructor given a null world");
-		}
+		x = chunkX;
+		z = chunkZ;
 		
+		for(LodCorner loc : LodCorner.values())
+			topHeights = setHeight(topHeights, loc, data.getShort());
 		
-		x = chunk.x;
-		z = chunk.z;
-		
-		top = new short[4];
-		bottom = new short[4];
-		colors = new Color[6];
-		
-		// generate the top and bottom points of this LOD
 		for(LodCorner loc : LodCorner.values())
-		{
-			top[loc.value] = generateLodCorner(chunk, SectionGenerationMode.GENERATE_TOP, loc);
-			bottom[loc.value] = generateLodCorner(chunk, SectionGenerationMode.GENERATE_BOTTOM, loc);
-		}
+			bottomHeights = setHeight(bottomHeights, loc, data.getShort());
 		
-		// determine the average color for each direction
+		colors = new int[6];
 		for(ColorDirection dir : ColorDirection.values())
-		{
-			colors[dir.value] = generateLodColor(chunk, world, dir);
-		}
-	}
-	
-	
-	
-	
-	
-	
-	
-	//=====================//
-	// constructor helpers //
-	//=====================//
-	
-	
-	/**
-	 * Generate the height for the given LodLocation, either the top or bottom.
-	 * <br><br>
-	 * If invalid/null/empty chunks are given 
-	 * crashes may occur.
-	 */
-	private short generateLodCorner(Chunk chunk, SectionGenerationMode generationMode, LodCorner lodLoc)
-	{
-		// should have a length of 16
-		// (each storage is 16x16x16 and the
-		// world height is 256)
-		ExtendedBlockStorage[] blockStorage = chunk.getBlockStorageArray();
-		
-		
-		
-		int startX = 0;
-		int endX = 0;
-		
-		int startZ = 0;
-		int endZ = 0;
-		
-		// determine where we should look in this
-		// chunk
-		switch(lodLoc)
-		{
-			case NE:
-				// -N
-				startZ = 0;
-				endZ = (CHUNK_DATA_WIDTH / 2) - 1;
-				// +E
-				startX = CHUNK_DATA_WIDTH / 2;
-				endX = CHUNK_DATA_WIDTH - 1;
-				break;
-				
-			case SE:
-				// +S
-				startZ = CHUNK_DATA_WIDTH / 2;
-				endZ = CHUNK_DATA_WIDTH;
-				// +E
-				startX = CHUNK_DATA_WIDTH / 2;
-				endX = CHUNK_DATA_WIDTH;
-				break;
-				
-			case SW:
-				// +S
-				startZ = CHUNK_DATA_WIDTH / 2;
-				endZ = CHUNK_DATA_WIDTH;
-				// -W
-				startX = 0;
-				endX = (CHUNK_DATA_WIDTH / 2) - 1;
-				break;
-				
-			case NW:
-				// -N
-				startZ = 0;
-				endZ = CHUNK_DATA_WIDTH / 2;
-				// -W
-				startX = 0;
-				endX = CHUNK_DATA_WIDTH / 2;
-				break;
-		}
-		
-		
-		if(generationMode == SectionGenerationMode.GENERATE_TOP)
-			return determineTopPoint(blockStorage, startX, endX, startZ, endZ);
-		else
-			return determineBottomPoint(blockStorage, startX, endX, startZ, endZ);
-	}
-	/** GENERATE_TOP, GENERATE_BOTTOM */
-	private enum SectionGenerationMode
-	{
-		GENERATE_TOP,
-		GENERATE_BOTTOM;
-	}
-	
-	/**
-	 * Find the lowest valid point from the bottom.
-	 */
-	private short determineBottomPoint(ExtendedBlockStorage[] blockStorage, int startX, int endX, int startZ, int endZ)
-	{
-		// search from the bottom up
-		for(int i = 0; i < blockStorage.length; i++)
-		{
-			for(int y = 0; y < CHUNK_DATA_HEIGHT; y++)
-			{
-				if(isLayerValidLodPoint(blockStorage, startX, endX, startZ, endZ, i, y))
-				{
-					// we found
-					// enough blocks in this
-					// layer to count as an
-					// LOD point
-					return (short) (y + (i * CHUNK_DATA_HEIGHT));
-				}
-			}
-		}
-		
-		// we never found a valid LOD point
-		return -1;
-	}
-	
-	/**
-	 * Find the highest valid point from the Top
-	 */
-	private short determineTopPoint(ExtendedBlockStorage[] blockStorage, int startX, int endX, int startZ, int endZ)
-	{
-		// search from the top down
-		for(int i = blockStorage.length - 1; i >= 0; i--)
-		{
-			for(int y = CHUNK_DATA_WIDTH - 1; y >= 0; y--)
-			{
-				if(isLayerValidLodPoint(blockStorage, startX, endX, startZ, endZ, i, y))
-				{
-					// we found
-					// enough blocks in this
-					// layer to count as an
-					// LOD point
-					return (short) (y + (i * CHUNK_DATA_HEIGHT));
-				}
-			}
-		}
-		
-		// we never found a valid LOD point
-		return -1;
-	}
-	
-	/**
-	 * Is the layer between the given X, Z, and dataIndex
-	 * values a valid LOD point?
-	 */
-	private boolean isLayerValidLodPoint(
-			ExtendedBlockStorage[] blockStorage, 
-			int startX, int endX, 
-			int startZ, int endZ, 
-			int dataIndex, int y)
-	{
-		// search through this layer
-		int layerBlocks = 0;
-		
-		for(int x = startX; x < endX; x++)
-		{
-			for(int z = startZ; z < endZ; z++)
-			{
-				if(blockStorage[dataIndex] == null)
-				{
-					// this section doesn't have any blocks,
-					// it is not a valid section
-					return false;
-				}
-				else
-				{
-					if(blockStorage[dataIndex].get(x, y, z) != null && Block.getIdFromBlock(blockStorage[dataIndex].get(x, y, z).getBlock()) != airBlockId)
-					{
-						// we found a valid block in
-						// in this layer
-						layerBlocks++;
-						
-						if(layerBlocks >= LOD_BLOCK_REQ)
-						{
-							return true;
-						}
-					}
-				}
-				
-			} // z
-		} // x
-		
-		return false;
-	}
-	
-	/**
-	 * Generate the color of the given ColorDirection at the given chunk
-	 * in the given world.
-	 */
-	private Color generateLodColor(Chunk chunk, World world, ColorDirection colorDir)
-	{
-		Minecraft mc =  Minecraft.getMinecraft();
-		BlockColors bc = mc.getBlockColors();
-		
-		switch (colorDir)
-		{
-			case TOP:
-				return generateLodColorVertical(chunk, colorDir, world, bc);
-			case BOTTOM:
-				return generateLodColorVertical(chunk, colorDir, world, bc);
-				
-			case N:
-				return generateLodColorHorizontal(chunk, colorDir, world, bc);
-			case S:
-				return generateLodColorHorizontal(chunk, colorDir, world, bc);
-				
-			case E:
-				return generateLodColorHorizontal(chunk, colorDir, world, bc);
-			case W:
-				return generateLodColorHorizontal(chunk, colorDir, world, bc);
-		}
-		
-		return new Color(0, 0, 0, 0);
+			colors[dir.value] = data.getInt();
 	}
 	
 	/**
-	 * Generates the color of the top or bottom of a given chunk in the given world.
+	 * Creates a LodChunk from already parsed data.
+	 * <br>
+	 * The heights are copied, the colors
+	 * array is used directly.
 	 * 
-	 * @throws IllegalArgumentException if given a ColorDirection other than TOP or BOTTOM
+	 * @param newTop the height of each LodCorner's top
+	 * @param newBottom the height of each LodCorner's bottom
+	 * @param newColors the ARGB color of each ColorDirection
 	 */
-	private Color generateLodColorVertical(Chunk chunk, ColorDirection colorDir, World world, BlockColors bc)
+	public LodChunk(int chunkX, int chunkZ, short[] newTop, short[] newBottom, int[] newColors)
 	{
-		if(colorDir != ColorDirection.TOP && colorDir != ColorDirection.BOTTOM)
-		{
-			throw new IllegalArgumentException("generateLodColorVertical only accepts the ColorDirection TOP or BOTTOM");
-		}
-		
-		ExtendedBlockStorage[] blockStorage = chunk.getBlockStorageArray();
-		
-		int numbOfBlocks = 0;
-		int red = 0;
-		int green = 0;
-		int blue = 0;
-		
-		boolean goTopDown = (colorDir == ColorDirection.TOP);
-		
-		
-		// either go top down or bottom up
-		int dataStart = goTopDown? blockStorage.length - 1 : 0;
-		int dataMax = blockStorage.length; 
-		int dataMin = 0;
-		int dataIncrement = goTopDown? -1 : 1;
-		
-		int topStart = goTopDown? CHUNK_DATA_HEIGHT - 1 : 0;
-		int topMax = CHUNK_DATA_HEIGHT;
-		int topMin = 0;
-		int topIncrement =  goTopDown? -1 : 1;
+		x = chunkX;
+		z = chunkZ;
 		
-		for(int x = 0; x < CHUNK_DATA_WIDTH; x++)
+		for(LodCorner loc : LodCorner.values())
 		{
-			for(int z = 0; z < CHUNK_DATA_WIDTH; z++)
-			{
-				boolean foundBlock = false;
-				
-				for(int di = dataStart; !foundBlock && di >= dataMin && di < dataMax; di += dataIncrement)
-				{
-					if(!foundBlock && blockStorage[di] != null)
-					{
-						for(int y = topStart; !foundBlock && y >= topMin && y < topMax; y += topIncrement)
-						{
-							int ci;
-							if(Block.getIdFromBlock(blockStorage[di].get(x, y, z).getBlock()) == waterBlockId)
-								// this is a special case since getColor on water generally returns white
-								ci = waterColor;
-							else
-								ci = bc.getColor(blockStorage[di].get(x, y, z), world, new BlockPos(x,y,z));
-							
-							if(ci == 0)
-							{
-								// skip air or invisible blocks
-								continue;
-							}
-							
-							Color c = intToColor(ci);
-							
-							red += c.getRed();
-							green += c.getGreen();
-							blue += c.getBlue();
-							
-							numbOfBlocks++;
-							
-							
-							// we found a valid block, skip to the
-							// next x and z
-							foundBlock = true;
-						}
-					}
-				}
-				
-			}
+			topHeights = setHeight(topHeights, loc, newTop[loc.value]);
+			bottomHeights = setHeight(bottomHeights, loc, newBottom[loc.value]);
 		}
 		
-		if(numbOfBlocks == 0)
-			numbOfBlocks = 1;
-		
-		red /= numbOfBlocks;
-		green /= numbOfBlocks;
-		blue /= numbOfBlocks;
-		
-		return new Color(red, green, blue);
+		colors = newColors;
 	}
 	
 	/**
-	 * Generates the color of the side of a given chunk in the given world for the given ColorDirection.
+	 * Convert the given red, green and blue 
+	 * into an opaque ARGB int.
 	 * 
-	 * @throws IllegalArgumentException if given a ColorDirection other than N, S, W, E (North, South, East, West)
+	 * @throws IllegalArgumentException if any value is outside 0 - 255
 	 */
-	private Color generateLodColorHorizontal(Chunk chunk, ColorDirection colorDir, World world, BlockColors bc)
+	public static int colorToInt(int red, int green, int blue) throws IllegalArgumentException
 	{
-		if(colorDir != ColorDirection.N && colorDir != ColorDirection.S && colorDir != ColorDirection.E && colorDir != ColorDirection.W)
-		{
-			throw new IllegalArgumentException("generateLodColorHorizontal only accepts the ColorDirection N (North), S (South), E (East), or W (West)");
-		}
+		if (red < 0 || red > 255 || green < 0 || green > 255 || blue < 0 || blue > 255)
+			throw new IllegalArgumentException("Color parameter outside of expected range: (" + red + "," + green + "," + blue + ")");
 		
-		ExtendedBlockStorage[] blockStorage = chunk.getBlockStorageArray();
-		
-		int numbOfBlocks = 0;
-		int red = 0;
-		int green = 0;
-		int blue = 0;
-		
-		
-		// these don't change since the over direction doesn't matter
-		int overStart = 0;
-		int overIncrement = 1;
-		
-		// determine which direction is "in"
-		int inStart = 0;
-		int inIncrement = 1;
-		switch (colorDir)
-		{
-		case N:
-			inStart = 0;
-			inIncrement = 1;
-			break;
-		case S:
-			inStart = CHUNK_DATA_WIDTH - 1;
-			inIncrement = -1;
-			break;
-		case E:
-			inStart = 0;
-			inIncrement = 1;
-			break;
-		case W:
-			inStart = CHUNK_DATA_WIDTH - 1;
-			inIncrement = -1;
-			break;
-		default:
-			// we were given an invalid position, return invisible.
-			// this shouldn't happen and is mostly here to make the
-			// compiler happy
-			return new Color(0,0,0,0);
-		}
-		
-		
-		for (int di = 0; di < blockStorage.length; di++)
-		{
-			if (blockStorage[di] != null)
-			{
-				for (int y = 0; y < CHUNK_DATA_HEIGHT; y++)
-				{
-					boolean foundBlock = false;
-					
-					// over moves "over" the side of the chunk
-					// in moves "into" the chunk until it finds a block
-					
-					for (int over = overStart; !foundBlock && over >= 0 && over < CHUNK_DATA_WIDTH; over += overIncrement)
-					{
-						for (int in = inStart; !foundBlock && in >= 0 && in < CHUNK_DATA_WIDTH; in += inIncrement)
-						{
-							int x = -1;
-							int z = -1;
-							
-							// determine which should be X and Z							
-							switch(colorDir)
-							{
-							case N:
-								x = over;
-								z = in;
-								break;
-							case S:
-								x = over;
-								z = in;
-								break;
-							case E:
-								x = in;
-								z = over;
-								break;
-							case W:
-								x = in;
-								z = over;
-								break;
-							default:
-								// this will never happen, it would have
-								// been caught by the switch before the loops
-								break;
-							}
-							
-							int ci;
-							if(Block.getIdFromBlock(blockStorage[di].get(x, y, z).getBlock()) == waterBlockId)
-								// this is a special case since getColor on water generally returns white
-								ci = waterColor;
-							else
-								ci = bc.getColor(blockStorage[di].get(x, y, z), world, new BlockPos(x,y,z));
-							
-							if (ci == 0) {
-								// skip air or invisible blocks
-								continue;
-							}
-							
-							Color c = intToColor(ci);
-							
-							red += c.getRed();
-							green += c.getGreen();
-							blue += c.getBlue();
-							
-							numbOfBlocks++;
-							
-							// we found a valid block, skip to the
-							// next x and z
-							foundBlock = true;
-						}
-					}
-				}
-				
-			}
-		}
-		
-		if(numbOfBlocks == 0)
-			numbOfBlocks = 1;
-		
-		red /= numbOfBlocks;
-		green /= numbOfBlocks;
-		blue /= numbOfBlocks;
-		
-		return new Color(red, green, blue);
+		return (0xFF << 24) | (red << 16) | (green << 8) | blue;
 	}
 	
 	/**
-	 * Convert a BlockColors int into a Color object.
+	 * Returns the given heights with the 
+	 * given LodCorner's height replaced.
 	 */
-	private Color intToColor(int num)
+	private static long setHeight(long heights, LodCorner corner, short height)
 	{
-		int filter = 0b11111111;
-		
-		int red = (num >> 16 ) & filter;
-		int green = (num >> 8 ) & filter;
-		int blue = num & filter;
-		
-		return new Color(red, green, blue);
+		int shift = corner.value * Short.SIZE;
+		return (heights & ~(0xFFFFL << shift)) | ((height & 0xFFFFL) << shift);
 	}
 	
-	/**
-	 * Convert a Color into a BlockColors object.
-	 */
-	private int colorToInt(Color color)
+	private static short getHeight(long heights, LodCorner corner)
 	{
-		return color.getRGB();
+		return (short) (heights >>> (corner.value * Short.SIZE));
 	}
 	
 	
@@ -711,13 +286,12 @@ public class LodChunk
 	public boolean isLodEmpty()
 	{
 		for(LodCorner corner : LodCorner.values())
-			if(top[corner.value] != -1 || bottom[corner.value] != -1)
+			if(getTop(corner) != -1 || getBottom(corner) != -1)
 				// at least one corner is valid
 				return false;
 		
-		Color invisible = new Color(0,0,0,0);
 		for(ColorDirection dir : ColorDirection.values())
-			if(!colors[dir.value].equals(invisible))
+			if(colors[dir.value] != INVISIBLE_COLOR)
 				// at least one direction has a non-invisible color
 				return false;
 		
@@ -728,6 +302,40 @@ public class LodChunk
 	
 	
 	
+	//===========//
+	// accessors //
+	//===========//
+	
+	/**
+	 * Returns the height of the top of the given corner,
+	 * -1 if the corner doesn't have a valid height.
+	 */
+	public short getTop(LodCorner corner)
+	{
+		return getHeight(topHeights, corner);
+	}
+	
+	/**
+	 * Returns the height of the bottom of the given corner,
+	 * -1 if the corner doesn't have a valid height.
+	 */
+	public short getBottom(LodCorner corner)
+	{
+		return getHeight(bottomHeights, corner);
+	}
+	
+	/**
+	 * Returns the ARGB color of the given direction.
+	 */
+	public int getColor(ColorDirection direction)
+	{
+		return colors[direction.value];
+	}
+	
+	
+	
+	
+	
 	//========//
 	// output //
 	//========//
@@ -752,25 +360,77 @@ public class LodChunk
 		
 		s += Integer.toString(x) + DATA_DELIMITER +  Integer.toString(z) + DATA_DELIMITER;
 		
-		for(int i = 0; i < top.length; i++)
+		for(LodCorner loc : LodCorner.values())
 		{
-			s += Short.toString(top[i]) + DATA_DELIMITER;
+			s += Short.toString(getTop(loc)) + DATA_DELIMITER;
 		}
 		
-		for(int i = 0; i < bottom.length; i++)
+		for(LodCorner loc : LodCorner.values())
 		{
-			s += Short.toString(bottom[i]) + DATA_DELIMITER;
+			s += Short.toString(getBottom(loc)) + DATA_DELIMITER;
 		}
 		
 		for(int i = 0; i < colors.length; i++)
 		{
-			s += Integer.toString(colors[i].getRed()) + DATA_DELIMITER + Integer.toString(colors[i].getGreen()) + DATA_DELIMITER + Integer.toString(colors[i].getBlue()) + DATA_DELIMITER;
+			s += Integer.toString((colors[i] >> 16) & 0xFF) + DATA_DELIMITER + Integer.toString((colors[i] >> 8) & 0xFF) + DATA_DELIMITER + Integer.toString(colors[i] & 0xFF) + DATA_DELIMITER;
 		}
 		
 		return s;
 	}
 	
 	
+	/**
+	 * Writes the heights and colors of this LodChunk
+	 * to the given buffer, the x and z coordinates are not written.
+	 * <br>
+	 * Exactly DATA_SIZE_IN_BYTES will be written in the form:
+	 * <br>
+	 * top data (4 shorts), bottom data (4 shorts), ARGB color data (6 ints)
+	 * 
+	 * @throws java.nio.BufferOverflowException if the buffer doesn't have DATA_SIZE_IN_BYTES remaining
+	 */
+	public void writeData(ByteBuffer buffer)
+	{
+		for(LodCorner loc : LodCorner.values())
+			buffer.putShort(getTop(loc));
+		
+		for(LodCorner loc : LodCorner.values())
+			buffer.putShort(getBottom(loc));
+		
+		for(ColorDirection dir : ColorDirection.values())
+			buffer.putInt(colors[dir.value]);
+	}
+	
+	
+	/**
+	 * Two LodChunks are equal if they have the same
+	 * coordinates, heights and colors.
+	 */
+	@Override
+	public boolean equals(Object obj)
+	{
+		if (this == obj)
+			return true;
+		if (!(obj instanceof LodChunk))
+			return false;
+		
+		LodChunk other = (LodChunk) obj;
+		return x == other.x && z == other.z &&
+				topHeights == other.topHeights && 
+				bottomHeights == other.bottomHeights &&
+				Arrays.equals(colors, other.colors);
+	}
+	
+	@Override
+	public int hashCode()
+	{
+		int hash = (31 * x) + z;
+		hash = (31 * hash) + Long.hashCode(topHeights);
+		hash = (31 * hash) + Long.hashCode(bottomHeights);
+		return (31 * hash) + Arrays.hashCode(colors);
+	}
+	
+	
 	@Override
 	public String toString()
 	{
@@ -778,7 +438,8 @@ public class LodChunk
 		
 		s += "x: " + x + " z: " + z + "\t";
 		
-		s += "(" + colors[ColorDirection.TOP.value].getRed() + ", " + colors[ColorDirection.TOP.value].getGreen() + ", " + colors[ColorDirection.TOP.value].getBlue() + ")";
+		int topColor = colors[ColorDirection.TOP.value];
+		s += "(" + ((topColor >> 16) & 0xFF) + ", " + ((topColor >> 8) & 0xFF) + ", " + (topColor & 0xFF) + ")";
 		
 		return s;
 	}
@@ -1,13 +1,29 @@
 package com.backsun.lod.objects;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.StampedLock;
+
 import com.backsun.lod.handlers.LodDimensionFileHandler;
+import com.backsun.lod.util.enums.LodUpdate;
 
 import net.minecraft.client.Minecraft;
+import net.minecraft.util.math.ChunkPos;
 import net.minecraft.world.DimensionType;
 
 /**
  * This object holds all loaded LOD regions
  * for a given dimension.
+ * <br><br>
+ * It is changed by the LOD generator and the render thread,
+ * and read by the renderer and the file handler, see lock.
  * 
  * @author James Seibel
  * @version 02-23-2021
@@ -19,30 +35,92 @@ public class LodDimension
 	private volatile int width;
 	private volatile int halfWidth;
 	
-	public LodRegion regions[][];
-	public boolean isRegionDirty[][];
+	/** 
+	 * Index = region coordinate modulo the width (see getArrayIndex) <br>
+	 * This wraps around, so the first index isn't the smallest region coordinate.
+	 */
+	public volatile LodRegion regions[][];
+	/** how many regions have LodChunks that haven't been saved */
+	private AtomicInteger numbDirtyRegions = new AtomicInteger(0);
+	
+	private volatile int centerX;
+	private volatile int centerZ;
 	
-	private int centerX;
-	private int centerZ;
+	/**
+	 * Guards the regions array, the width and the center. <br>
+	 * Anything that changes them holds the write lock. Readers use
+	 * an optimistic read and only take the read lock if something was
+	 * changed while they were reading, so the renderer almost never waits.
+	 */
+	private final StampedLock lock = new StampedLock();
+	/** 
+	 * How many regions have left the regions array, only changed while
+	 * holding the write lock. Used to tell if a region read from file
+	 * may be older than a region that was unloaded while it was being read.
+	 */
+	private volatile int numbUnloadedRegions = 0;
 	
 	private LodDimensionFileHandler fileHandler;
 	
+	/** 
+	 * Holds regions that have left the loaded area,
+	 * so they don't have to be read from file if the player comes back.
+	 */
+	private LodRegionCache regionCache;
+	
+	/** This holds the thread used to read regions from file off the render thread. */
+	private ExecutorService regionLoaderThreadPool = Executors.newSingleThreadExecutor();
+	/** 
+	 * The regions that are queued to be read from file. <br>
+	 * Key = ChunkPos.asLong(regionX, regionZ)
+	 */
+	private Set<Long> loadingRegions = ConcurrentHashMap.newKeySet();
+	/** how many regions have been read from file asynchronously */
+	private volatile int numbAsyncLoadedRegions = 0;
+	
+	/** 
+	 * How far ahead (in ticks) of the player regions 
+	 * should be prefetched, based on the player's velocity. 
+	 */
+	private static final int PREFETCH_LOOKAHEAD_TICKS = 200;
+	/** 
+	 * How far (in regions) from the player's path regions
+	 * are prefetched, regions further away are only read
+	 * once the renderer asks for them.
+	 */
+	private static final double PREFETCH_BAND_RADIUS = 2;
+	/** the most prefetched regions that can be waiting to be read at once */
+	private static final int MAX_QUEUED_PREFETCHES = 16;
+	/** how many prefetched regions are waiting to be read */
+	private AtomicInteger queuedPrefetches = new AtomicInteger(0);
+	/** 
+	 * The area the last prefetchRegions call covered,
+	 * older prefetches outside of it are dropped before they are read.
+	 * null until the first prefetch.
+	 */
+	private volatile PrefetchBand prefetchBand = null;
+	
 	
 	public LodDimension(DimensionType newDimension, int newMaxWidth)
+	{
+		// dimension 0 works here since we are just looking for the save handler anyway
+		this(newDimension, newMaxWidth, Minecraft.getMinecraft().getIntegratedServer().getWorld(0).getSaveHandler().getWorldDirectory());
+	}
+	
+	/**
+	 * Create a LodDimension that saves to the given world save folder,
+	 * this doesn't need Minecraft to be running.
+	 */
+	public LodDimension(DimensionType newDimension, int newMaxWidth, File worldDirectory)
 	{
 		dimension = newDimension;
 		width = newMaxWidth;
 		
-		// dimension 0 works here since we are just looking for the save handler anyway
-		fileHandler = new LodDimensionFileHandler(Minecraft.getMinecraft().getIntegratedServer().getWorld(0).getSaveHandler(), this);
+		fileHandler = new LodDimensionFileHandler(worldDirectory, this);
+		// dirty regions pushed out of the cache are saved before they are dropped
+		regionCache = new LodRegionCache(region -> fileHandler.saveUnloadedRegionAsync(region));
 		
 		regions = new LodRegion[width][width];
-		isRegionDirty = new boolean[width][width];
-		
-		// populate isRegionDirty
-		for(int i = 0; i < width; i++)
-			for(int j = 0; j < width; j++)
-				isRegionDirty[i][j] = false;
 		
 		centerX = 0;
 		centerZ = 0;
@@ -52,99 +130,80 @@ public class LodDimension
 	
 	
 	/**
-	 * Move the center of this LodDimension and move all owned
-	 * regions over by the given x and z offset.
+	 * Move the center of this LodDimension by the given x and z offset.
+	 * <br><br>
+	 * The regions array wraps around (see getArrayIndex),
+	 * so regions never have to be moved. Only the regions
+	 * that are no longer in range are removed, they are 
+	 * moved to the regionCache.
 	 */
 	public void move(int xOffset, int zOffset)
-	{		
-		// if the x or z offset is equal to or greater than
-		// the total size, just delete the current data
-		// and update the centerX and/or centerZ
-		if (Math.abs(xOffset) >= width || Math.abs(zOffset) >= width)
+	{
+		long stamp = lock.writeLock();
+		try
 		{
-			for(int x = 0; x < width; x++)
-			{
-				for(int z = 0; z < width; z++)
-				{
-					regions[x][z] = null;
-				}
-			}
+			int oldMinX = centerX - halfWidth;
+			int oldMinZ = centerZ - halfWidth;
 			
 			// update the new center
 			centerX += xOffset;
 			centerZ += zOffset;
 			
-			return;
-		}
-		
-		
-		// X
-		if(xOffset > 0)
-		{
-			// move everything over to the left (as the center moves to the right)
-			for(int x = 0; x < width; x++)
+			// if the x or z offset is equal to or greater than
+			// the total size, every region is out of range
+			if (Math.abs(xOffset) >= width || Math.abs(zOffset) >= width)
 			{
-				for(int z = 0; z < width; z++)
-				{
-					if(x + xOffset < width)
-						regions[x][z] = regions[x + xOffset][z];
-					else
-						regions[x][z] = null;
-				}
+				for(int x = 0; x < width; x++)
+					for(int z = 0; z < width; z++)
+						unloadRegionIfOutOfRange(x, z);
+				
+				return;
 			}
-		}
-		else
-		{
-			// move everything over to the right (as the center moves to the left)
-			for(int x = width - 1; x >= 0; x--)
+			
+			
+			// X
+			// the columns that were on the side
+			// the center moved away from are out of range now
+			for(int i = 0; i < Math.abs(xOffset); i++)
 			{
+				int oldRegionX = (xOffset > 0) ? oldMinX + i : oldMinX + width - 1 - i;
+				int xIndex = getArrayIndex(oldRegionX);
+				
 				for(int z = 0; z < width; z++)
-				{
-					if(x + xOffset >= 0)
-						regions[x][z] = regions[x + xOffset][z];
-					else
-						regions[x][z] = null;
-				}
+					unloadRegionIfOutOfRange(xIndex, z);
 			}
-		}
-		
-		
-		
-		// Z
-		if(zOffset > 0)
-		{
-			// move everything up (as the center moves down)
-			for(int x = 0; x < width; x++)
+			
+			// Z
+			for(int i = 0; i < Math.abs(zOffset); i++)
 			{
-				for(int z = 0; z < width; z++)
-				{
-					if(z + zOffset < width)
-						regions[x][z] = regions[x][z + zOffset];
-					else
-						regions[x][z] = null;
-				}
+				int oldRegionZ = (zOffset > 0) ? oldMinZ + i : oldMinZ + width - 1 - i;
+				int zIndex = getArrayIndex(oldRegionZ);
+				
+				for(int x = 0; x < width; x++)
+					unloadRegionIfOutOfRange(x, zIndex);
 			}
 		}
-		else
+		finally
 		{
-			// move everything down (as the center moves up)
-			for(int x = 0; x < width; x++)
-			{
-				for(int z = width - 1; z >= 0; z--)
-				{
-					if(z + zOffset >= 0)
-						regions[x][z] = regions[x][z + zOffset];
-					else
-						regions[x][z] = null;
-				}
-			}
+			lock.unlockWrite(stamp);
 		}
+	}
+	
+	/**
+	 * Move the region at the given array index to the 
+	 * regionCache if it is no longer in range. 
+	 * Dirty regions stay dirty, they are saved by the next save
+	 * or when the cache runs out of room.
+	 */
+	private void unloadRegionIfOutOfRange(int xIndex, int zIndex)
+	{
+		LodRegion region = regions[xIndex][zIndex];
+		if (region == null || regionIsInRange(region.x, region.z))
+			return;
 		
-		
-		
-		// update the new center
-		centerX += xOffset;
-		centerZ += zOffset;
+		regions[xIndex][zIndex] = null;
+		regionCache.put(region);
+		numbUnloadedRegions++;
 	}
 	
 	
@@ -155,28 +214,302 @@ public class LodDimension
 	/**
 	 * Gets the region at the given X and Z
 	 * <br>
+	 * If the region hasn't been loaded it is read from
+	 * file on this thread, so this shouldn't be used by 
+	 * the renderer (see getRegionIfLoaded).
+	 * <br>
 	 * Returns null if the region doesn't exist
 	 * or is outside the loaded area.
 	 */
 	public LodRegion getRegion(int regionX, int regionZ)
 	{
-		int xIndex = (regionX - centerX) + halfWidth;
-		int zIndex = (regionZ - centerZ) + halfWidth;
+		if (!isRegionInRange(regionX, regionZ))
+			// out of range
+			return null;
+		
+		if (getLoadedRegion(regionX, regionZ) == null)
+			loadRegion(regionX, regionZ);
 		
-		if (!regionIsInRange(regionX, regionZ))
+		return getLoadedRegion(regionX, regionZ);
+	}
+	
+	/**
+	 * Gets the region at the given X and Z without waiting
+	 * for it to be read from file.
+	 * <br>
+	 * If the region hasn't been loaded yet it will be queued
+	 * to be read on the region loader thread and null 
+	 * will be returned, try again later.
+	 * <br>
+	 * Returns null if the region is outside the loaded area.
+	 */
+	public LodRegion getRegionIfLoaded(int regionX, int regionZ)
+	{
+		if (!isRegionInRange(regionX, regionZ))
 			// out of range
 			return null;
 		
-		if (regions[xIndex][zIndex] == null)
+		LodRegion region = getLoadedRegion(regionX, regionZ);
+		if (region == null)
+			loadRegionAsync(regionX, regionZ, null);
+		
+		return region;
+	}
+	
+	/**
+	 * Returns the region at the given X and Z if it is
+	 * in the regions array, null otherwise.
+	 * <br>
+	 * This doesn't wait for the lock unless a
+	 * writer changed the array while it was being read.
+	 */
+	private LodRegion getLoadedRegion(int regionX, int regionZ)
+	{
+		long stamp = lock.tryOptimisticRead();
+		LodRegion region = getRegionFromArray(regionX, regionZ);
+		
+		if (!lock.validate(stamp))
 		{
-			regions[xIndex][zIndex] = getRegionFromFile(regionX, regionZ);
-			if (regions[xIndex][zIndex] == null)
+			stamp = lock.readLock();
+			try
 			{
-				regions[xIndex][zIndex] = new LodRegion(regionX, regionZ);
+				region = getRegionFromArray(regionX, regionZ);
 			}
+			finally
+			{
+				lock.unlockRead(stamp);
+			}
+		}
+		
+		return region;
+	}
+	
+	/**
+	 * Returns the region at the given X and Z if it is
+	 * in the regions array, null otherwise.
+	 * <br>
+	 * This doesn't lock, during an optimistic read the 
+	 * array and width may not match, so the array's own 
+	 * length is used to make sure the index is always valid.
+	 */
+	private LodRegion getRegionFromArray(int regionX, int regionZ)
+	{
+		LodRegion[][] currentRegions = regions;
+		LodRegion region = currentRegions[Math.floorMod(regionX, currentRegions.length)][Math.floorMod(regionZ, currentRegions.length)];
+		
+		if (region == null || region.x != regionX || region.z != regionZ)
+			return null;
+		
+		return region;
+	}
+	
+	/**
+	 * Queue the region at the given X and Z to be read from file
+	 * on the region loader thread, if it isn't already queued.
+	 * <br><br>
+	 * When the read comes off the queue it is dropped, before
+	 * the file is touched, if the region left the loaded area or
+	 * it was prefetched and a newer prefetch's band doesn't have it.
+	 * 
+	 * @param band the prefetch that queued this region,
+	 * null if the region is needed now
+	 */
+	private void loadRegionAsync(int regionX, int regionZ, PrefetchBand band)
+	{
+		long key = ChunkPos.asLong(regionX, regionZ);
+		
+		// don't queue the same region twice
+		if (!loadingRegions.add(key))
+			return;
+		
+		if (band != null)
+			queuedPrefetches.incrementAndGet();
+		
+		regionLoaderThreadPool.execute(() ->
+		{
+			try
+			{
+				// the player changed direction
+				PrefetchBand newestBand = prefetchBand;
+				if (band != null && band != newestBand && !newestBand.contains(regionX, regionZ))
+					return;
+				
+				// loadRegion won't read regions that left the loaded area
+				if (loadRegion(regionX, regionZ))
+					numbAsyncLoadedRegions++;
+			}
+			finally
+			{
+				loadingRegions.remove(key);
+				
+				if (band != null)
+					queuedPrefetches.decrementAndGet();
+			}
+		});
+	}
+	
+	/**
+	 * Put the region at the given X and Z into its slot,
+	 * taking it from the regionCache if it is there, otherwise
+	 * reading it from file (or creating it if there isn't a file).
+	 * 
+	 * @returns true if the region was added
+	 */
+	private boolean loadRegion(int regionX, int regionZ)
+	{
+		// keep trying until the region is loaded
+		// by us or someone else, or leaves the loaded area
+		while(isRegionInRange(regionX, regionZ) && getLoadedRegion(regionX, regionZ) == null)
+		{
+			int unloadsBeforeRead = numbUnloadedRegions;
+			
+			// cached regions don't need to be read
+			LodRegion regionFromFile = null;
+			if (!regionCache.contains(regionX, regionZ))
+				regionFromFile = readRegion(regionX, regionZ);
+			
+			if (putLoadedRegion(regionX, regionZ, regionFromFile, unloadsBeforeRead))
+				return true;
 		}
 		
-		return regions[xIndex][zIndex];
+		return false;
+	}
+	
+	/**
+	 * Returns the region at the given X and Z from file,
+	 * or an empty region if it doesn't have a file.
+	 */
+	private LodRegion readRegion(int regionX, int regionZ)
+	{
+		LodRegion region = getRegionFromFile(regionX, regionZ);
+		if (region == null)
+			region = new LodRegion(regionX, regionZ);
+		
+		return region;
+	}
+	
+	/**
+	 * Put a loaded region into its slot. <br>
+	 * If the region is in the regionCache the cached region is used
+	 * instead, since it may have changes that haven't been saved.
+	 * <br><br>
+	 * Nothing is done if the region is no longer in range,
+	 * the slot was filled while the region was being read,
+	 * or the region is null and isn't cached. <br>
+	 * The region from file isn't used if any region was unloaded 
+	 * while it was being read, since that could have been this region
+	 * with changes the file doesn't have yet.
+	 * 
+	 * @param unloadsBeforeRead numbUnloadedRegions before the region was read
+	 * @returns true if a region was added
+	 */
+	private boolean putLoadedRegion(int regionX, int regionZ, LodRegion regionFromFile, int unloadsBeforeRead)
+	{
+		long stamp = lock.writeLock();
+		try
+		{
+			if (!regionIsInRange(regionX, regionZ))
+				return false;
+			
+			int xIndex = getArrayIndex(regionX);
+			int zIndex = getArrayIndex(regionZ);
+			
+			if (regions[xIndex][zIndex] != null)
+				return false;
+			
+			LodRegion region = regionCache.take(regionX, regionZ);
+			if (region == null)
+			{
+				if (unloadsBeforeRead != numbUnloadedRegions)
+					return false;
+				
+				region = regionFromFile;
+			}
+			if (region == null)
+				return false;
+			
+			regions[xIndex][zIndex] = region;
+			return true;
+		}
+		finally
+		{
+			lock.unlockWrite(stamp);
+		}
+	}
+	
+	/**
+	 * Queue the regions in front of the player (based on the given
+	 * velocity in blocks per tick) that haven't been loaded yet
+	 * to be read from file, so they are ready before the player gets there.
+	 * <br><br>
+	 * Only regions within PREFETCH_BAND_RADIUS of the player's path
+	 * for the next PREFETCH_LOOKAHEAD_TICKS are queued, closest first,
+	 * and no more than MAX_QUEUED_PREFETCHES can be waiting at once.
+	 */
+	public void prefetchRegions(double velocityX, double velocityZ)
+	{
+		// the area has to be read all at once
+		// in case it is moved or resized
+		int currentCenterX;
+		int currentCenterZ;
+		int minX;
+		int minZ;
+		int currentWidth;
+		long stamp = lock.readLock();
+		try
+		{
+			currentCenterX = centerX;
+			currentCenterZ = centerZ;
+			minX = centerX - halfWidth;
+			minZ = centerZ - halfWidth;
+			currentWidth = width;
+		}
+		finally
+		{
+			lock.unlockRead(stamp);
+		}
+		
+		// where the player will be in PREFETCH_LOOKAHEAD_TICKS,
+		// in region coordinates
+		double regionWidthInBlocks = LodRegion.SIZE * LodChunk.WIDTH;
+		double aheadX = currentCenterX + ((velocityX * PREFETCH_LOOKAHEAD_TICKS) / regionWidthInBlocks);
+		double aheadZ = currentCenterZ + ((velocityZ * PREFETCH_LOOKAHEAD_TICKS) / regionWidthInBlocks);
+		
+		PrefetchBand band = new PrefetchBand(currentCenterX, currentCenterZ, aheadX, aheadZ);
+		prefetchBand = band;
+		
+		ArrayList<ChunkPos> missingRegions = new ArrayList<>();
+		for(int regionX = minX; regionX < minX + currentWidth; regionX++)
+			for(int regionZ = minZ; regionZ < minZ + currentWidth; regionZ++)
+				if (band.contains(regionX, regionZ) && getLoadedRegion(regionX, regionZ) == null)
+					missingRegions.add(new ChunkPos(regionX, regionZ));
+		
+		if (missingRegions.isEmpty())
+			return;
+		
+		// closest to the player first, 
+		// since the player will get there first
+		missingRegions.sort((a, b) -> Double.compare(
+				((a.x - currentCenterX) * (a.x - currentCenterX)) + ((a.z - currentCenterZ) * (a.z - currentCenterZ)),
+				((b.x - currentCenterX) * (b.x - currentCenterX)) + ((b.z - currentCenterZ) * (b.z - currentCenterZ))));
+		
+		for(ChunkPos pos : missingRegions)
+		{
+			if (queuedPrefetches.get() >= MAX_QUEUED_PREFETCHES)
+				break;
+			
+			loadRegionAsync(pos.x, pos.z, band);
+		}
+	}
+	
+	/**
+	 * Returns how many regions have been read from file
+	 * asynchronously. This can be used to determine if there is
+	 * new data to draw.
+	 */
+	public int getNumberOfAsyncLoadedRegions()
+	{
+		return numbAsyncLoadedRegions;
 	}
 	
 	/**
@@ -185,14 +518,19 @@ public class LodDimension
 	 */
 	public void setRegion(LodRegion newRegion) throws ArrayIndexOutOfBoundsException
 	{
-		int xIndex = (newRegion.x - centerX) + halfWidth;
-		int zIndex = (centerZ - newRegion.z) + halfWidth;
-		
-		if (!regionIsInRange(newRegion.x, newRegion.z))
-			// out of range
-			throw new ArrayIndexOutOfBoundsException();
-		
-		regions[xIndex][zIndex] = newRegion;
+		long stamp = lock.writeLock();
+		try
+		{
+			if (!regionIsInRange(newRegion.x, newRegion.z))
+				// out of range
+				throw new ArrayIndexOutOfBoundsException();
+			
+			regions[getArrayIndex(newRegion.x)][getArrayIndex(newRegion.z)] = newRegion;
+		}
+		finally
+		{
+			lock.unlockWrite(stamp);
+		}
 	}
 	
 	
@@ -206,72 +544,151 @@ public class LodDimension
 	 */
 	public void addLod(LodChunk lod)
 	{
-		int regionX = lod.x / LodRegion.SIZE;
-		int regionZ = lod.z / LodRegion.SIZE;
+		int regionX = LodRegion.getRegionCoordinate(lod.x);
+		int regionZ = LodRegion.getRegionCoordinate(lod.z);
+		
+		// don't continue if the region can't be saved,
+		// getRegion creates the region if it doesn't exist
+		LodRegion region = getRegion(regionX, regionZ);
+		if (region == null)
+			return;
 		
-		// prevent issues if X/Z is negative and less than 16
-		if (lod.x < 0)
+		// the read lock keeps the region from being unloaded
+		// (and possibly dropped from the cache) while we write to it
+		LodUpdate update;
+		long stamp = lock.readLock();
+		try
 		{
-			regionX = (Math.abs(regionX) * -1) - 1; 
+			// the region left the loaded area after we got it
+			if (getRegionFromArray(regionX, regionZ) != region)
+				return;
+			
+			// the region marks the LOD's slot as dirty
+			// so it will be saved to disk
+			update = region.addLod(lod);
 		}
-		if (lod.z < 0)
+		finally
 		{
-			regionZ = (Math.abs(regionZ) * -1) - 1; 
+			lock.unlockRead(stamp);
 		}
 		
-		// don't continue if the region can't be saved
-		if (!regionIsInRange(regionX, regionZ))
+		// the same LOD was already stored,
+		// so there is nothing to save
+		if (update == LodUpdate.UNCHANGED)
 			return;
 		
-		LodRegion region = getRegion(regionX, regionZ);
+		if (update == LodUpdate.DIRTIED)
+			numbDirtyRegions.incrementAndGet();
 		
-		if (region == null)
+		// this doesn't save right away, the file handler
+		// will combine this with any other save requests
+		fileHandler.saveDirtyRegionsToFileAsync();
+	}
+	
+	/**
+	 * Add the given LODs to this dimension at the coordinates
+	 * stored in each LOD. If an LOD already exists at the given
+	 * coordinates it will be overwritten.
+	 * <br><br>
+	 * The LODs are grouped by region, so each region is only looked up,
+	 * locked and marked dirty once, and only one save is requested.
+	 */
+	public void addLods(List<LodChunk> lods)
+	{
+		// Key = ChunkPos.asLong(regionX, regionZ)
+		HashMap<Long, ArrayList<LodChunk>> lodsByRegion = new HashMap<>();
+		for(LodChunk lod : lods)
 		{
-			// if no region exists, create it
-			region = new LodRegion(regionX, regionZ);
-			setRegion(region);
+			long key = ChunkPos.asLong(LodRegion.getRegionCoordinate(lod.x), LodRegion.getRegionCoordinate(lod.z));
+			lodsByRegion.computeIfAbsent(key, k -> new ArrayList<>()).add(lod);
+		}
+		
+		boolean anyChanged = false;
+		for(ArrayList<LodChunk> regionLods : lodsByRegion.values())
+		{
+			LodChunk firstLod = regionLods.get(0);
+			if (addLodsToRegion(LodRegion.getRegionCoordinate(firstLod.x), LodRegion.getRegionCoordinate(firstLod.z), regionLods))
+				anyChanged = true;
 		}
 		
-		region.addLod(lod);
+		// every LOD was already stored,
+		// so there is nothing to save
+		if (!anyChanged)
+			return;
 		
-		// mark the region as dirty so it will be saved to disk
-		int xIndex = (regionX - centerX) + halfWidth;
-		int zIndex = (regionZ - centerZ) + halfWidth;
-		isRegionDirty[xIndex][zIndex] = true;
+		// this doesn't save right away, the file handler
+		// will combine this with any other save requests
 		fileHandler.saveDirtyRegionsToFileAsync();
 	}
 	
 	/**
-	 * Get the LodChunk at the given X and Z coordinates
-	 * in this dimension.
-	 * <br>
-	 * Returns null if the LodChunk doesn't exist or 
-	 * is outside the loaded area.
+	 * Add the given LODs to the region at the given X and Z,
+	 * every LOD must be in that region. See addLod.
+	 * 
+	 * @returns true if any LOD was written
 	 */
-	public LodChunk getLodFromCoordinates(int chunkX, int chunkZ)
+	private boolean addLodsToRegion(int regionX, int regionZ, List<LodChunk> lods)
 	{
-		int regionX = chunkX / LodRegion.SIZE;
-		int regionZ = chunkZ / LodRegion.SIZE;
+		LodRegion region = getRegion(regionX, regionZ);
+		if (region == null)
+			return false;
 		
-		// prevent issues if chunkX/Z is negative and less than width
-		if (chunkX < 0)
+		LodUpdate update;
+		long stamp = lock.readLock();
+		try
 		{
-			regionX = (Math.abs(regionX) * -1) - 1; 
+			if (getRegionFromArray(regionX, regionZ) != region)
+				return false;
+			
+			update = region.addLods(lods);
 		}
-		if (chunkZ < 0)
+		finally
 		{
-			regionZ = (Math.abs(regionZ) * -1) - 1; 
+			lock.unlockRead(stamp);
 		}
 		
-		LodRegion region = getRegion(regionX, regionZ);
+		if (update == LodUpdate.DIRTIED)
+			numbDirtyRegions.incrementAndGet();
 		
-		// TODO fix small render distances sometimes not having all regions loaded
+		return update != LodUpdate.UNCHANGED;
+	}
+	
+	/**
+	 * Get the LodChunk at the given X and Z coordinates
+	 * in this dimension.
+	 * <br>
+	 * Returns null if the LodChunk doesn't exist, 
+	 * is outside the loaded area, or its region hasn't been
+	 * read from file yet. This won't wait for the disk.
+	 * <br><br>
+	 * This creates a new LodChunk every time, when reading a lot 
+	 * of LodChunks use getRegionFromChunkCoordinates and the region's
+	 * primitive getters instead.
+	 */
+	public LodChunk getLodFromCoordinates(int chunkX, int chunkZ)
+	{
+		LodRegion region = getRegionFromChunkCoordinates(chunkX, chunkZ);
+		
+		// the region is out of range or is still being read
+		// from file, it will be there on a later frame
 		if(region == null)
 			return null;
 		
 		return region.getLod(chunkX, chunkZ);
 	}
 	
+	/**
+	 * Get the region that holds the given chunk coordinates.
+	 * <br>
+	 * Returns null if the region is outside the loaded 
+	 * area or hasn't been read from file yet.
+	 * This won't wait for the disk.
+	 */
+	public LodRegion getRegionFromChunkCoordinates(int chunkX, int chunkZ)
+	{
+		return getRegionIfLoaded(LodRegion.getRegionCoordinate(chunkX), LodRegion.getRegionCoordinate(chunkZ));
+	}
+	
 	
 	/**
 	 * Get the region at the given X and Z coordinates from the
@@ -283,9 +700,134 @@ public class LodDimension
 	}
 	
 	
+	/**
+	 * Save every dirty region to file and wait
+	 * for the save to finish.
+	 * 
+	 * @returns how many regions were written
+	 */
+	public int saveDirtyRegionsToFile()
+	{
+		return fileHandler.saveDirtyRegionsToFile();
+	}
+	
+	/**
+	 * Stop reading regions and close every file this 
+	 * dimension has open. Call saveDirtyRegionsToFile first, 
+	 * nothing is read or written after this.
+	 */
+	public void close()
+	{
+		regionLoaderThreadPool.shutdown();
+		fileHandler.close();
+	}
+	
+	/**
+	 * Returns every region that has left the loaded
+	 * area but is still in memory.
+	 */
+	public ArrayList<LodRegion> getCachedRegions()
+	{
+		return regionCache.getRegions();
+	}
+	
+	/**
+	 * Returns the cache that holds regions 
+	 * that have left the loaded area.
+	 */
+	public LodRegionCache getRegionCache()
+	{
+		return regionCache;
+	}
+	
+	/**
+	 * Returns how many bytes the loaded and cached regions take up.
+	 */
+	public long getRegionMemoryInBytes()
+	{
+		long bytes = 0;
+		
+		LodRegion[][] loadedRegions = regions;
+		for(int i = 0; i < loadedRegions.length; i++)
+			for(int j = 0; j < loadedRegions[i].length; j++)
+				if (loadedRegions[i][j] != null)
+					bytes += loadedRegions[i][j].getMemorySizeInBytes();
+		
+		return bytes + regionCache.getSizeInBytes();
+	}
+	
+	/**
+	 * Returns how many bytes the loaded and cached regions save by
+	 * sharing payloads between LodChunks with the same heights and colors,
+	 * compared to every LodChunk having its own record. <br>
+	 * Regions only share payloads when it takes less memory,
+	 * so this is never negative.
+	 */
+	public long getMemorySavedBySharedPayloads()
+	{
+		long regionCount = regionCache.size();
+		
+		LodRegion[][] loadedRegions = regions;
+		for(int i = 0; i < loadedRegions.length; i++)
+			for(int j = 0; j < loadedRegions[i].length; j++)
+				if (loadedRegions[i][j] != null)
+					regionCount++;
+		
+		return (regionCount * LodRegion.UNSHARED_MEMORY_SIZE_IN_BYTES) - getRegionMemoryInBytes();
+	}
+	
+	/**
+	 * Returns how many regions are waiting
+	 * to be saved to file.
+	 */
+	public int getNumberOfDirtyRegions()
+	{
+		return numbDirtyRegions.get();
+	}
+	
+	/**
+	 * Called by the file handler after it
+	 * has saved the given number of dirty regions.
+	 */
+	public void removeDirtyRegions(int numbSavedRegions)
+	{
+		numbDirtyRegions.addAndGet(-numbSavedRegions);
+	}
+	
+	
+	/**
+	 * Returns whether the region at the given X and Z coordinates
+	 * is within the loaded range.
+	 * <br>
+	 * Like getLoadedRegion this only waits for the
+	 * lock if a writer changed the range while it was being read.
+	 */
+	private boolean isRegionInRange(int regionX, int regionZ)
+	{
+		long stamp = lock.tryOptimisticRead();
+		boolean inRange = regionIsInRange(regionX, regionZ);
+		
+		if (!lock.validate(stamp))
+		{
+			stamp = lock.readLock();
+			try
+			{
+				inRange = regionIsInRange(regionX, regionZ);
+			}
+			finally
+			{
+				lock.unlockRead(stamp);
+			}
+		}
+		
+		return inRange;
+	}
+	
 	/**
 	 * Returns whether the region at the given X and Z coordinates
 	 * is within the loaded range.
+	 * <br>
+	 * Only use this while holding the lock.
 	 */
 	private boolean regionIsInRange(int regionX, int regionZ)
 	{
@@ -294,13 +836,25 @@ public class LodDimension
 		
 		return xIndex >= 0 && xIndex < width && zIndex >= 0 && zIndex < width;
 	}
-
+	
+	/**
+	 * Returns where in the regions array the given region 
+	 * X or Z coordinate is stored. <br>
+	 * The array wraps around, each region is always stored at its
+	 * coordinate modulo the width, so when the center moves the regions
+	 * that are still in range don't have to be moved.
+	 */
+	private int getArrayIndex(int regionCoordinate)
+	{
+		return Math.floorMod(regionCoordinate, width);
+	}
+	
+	
 	
 	
 	
 	
 	
-
 	public int getCenterX()
 	{
 		return centerX;
@@ -318,18 +872,69 @@ public class LodDimension
 		return width;
 	}
 	
+	/**
+	 * Change how many regions wide this LodDimension is.
+	 * <br><br>
+	 * Regions that are still in range are moved to their
+	 * new index (along with their last write time in the
+	 * file handler), the rest are moved to the regionCache.
+	 * Dirty regions stay dirty, they are saved by the next save
+	 * or when the cache runs out of room.
+	 */
 	public void setRegionWidth(int newWidth)
 	{
-		width = newWidth;
-		halfWidth = (int)Math.floor(width / 2);
-		
-		regions = new LodRegion[width][width];
-		isRegionDirty = new boolean[width][width];
-		
-		// populate isRegionDirty
-		for(int i = 0; i < width; i++)
-			for(int j = 0; j < width; j++)
-				isRegionDirty[i][j] = false;
+		long stamp = lock.writeLock();
+		try
+		{
+			if (newWidth == width)
+				return;
+			
+			int oldWidth = width;
+			LodRegion[][] oldRegions = regions;
+			long[][] oldWriteTimes = fileHandler.regionLastWriteTime;
+			
+			LodRegion[][] newRegions = new LodRegion[newWidth][newWidth];
+			long[][] newWriteTimes = new long[newWidth][newWidth];
+			for(int x = 0; x < newWidth; x++)
+				for(int z = 0; z < newWidth; z++)
+					newWriteTimes[x][z] = -1;
+			
+			// the range has to be updated before
+			// we can tell which regions are still in it
+			width = newWidth;
+			halfWidth = (int)Math.floor(width / 2);
+			
+			for(int x = 0; x < oldWidth; x++)
+			{
+				for(int z = 0; z < oldWidth; z++)
+				{
+					LodRegion region = oldRegions[x][z];
+					if (region == null)
+						continue;
+					
+					if (regionIsInRange(region.x, region.z))
+					{
+						int xIndex = getArrayIndex(region.x);
+						int zIndex = getArrayIndex(region.z);
+						
+						newRegions[xIndex][zIndex] = region;
+						newWriteTimes[xIndex][zIndex] = oldWriteTimes[x][z];
+					}
+					else
+					{
+						regionCache.put(region);
+						numbUnloadedRegions++;
+					}
+				}
+			}
+			
+			regions = newRegions;
+			fileHandler.regionLastWriteTime = newWriteTimes;
+		}
+		finally
+		{
+			lock.unlockWrite(stamp);
+		}
 	}
 	
 	
@@ -343,6 +948,47 @@ public class LodDimension
 		
 		return s;
 	}
+	
+	
+	/**
+	 * The path from the player to where they will be in
+	 * PREFETCH_LOOKAHEAD_TICKS, in region coordinates.
+	 */
+	private static class PrefetchBand
+	{
+		public final double startX;
+		public final double startZ;
+		public final double endX;
+		public final double endZ;
+		
+		public PrefetchBand(double newStartX, double newStartZ, double newEndX, double newEndZ)
+		{
+			startX = newStartX;
+			startZ = newStartZ;
+			endX = newEndX;
+			endZ = newEndZ;
+		}
+		
+		/**
+		 * Returns true if the given region is 
+		 * within PREFETCH_BAND_RADIUS of the path.
+		 */
+		public boolean contains(int regionX, int regionZ)
+		{
+			double pathX = endX - startX;
+			double pathZ = endZ - startZ;
+			double pathLengthSquared = (pathX * pathX) + (pathZ * pathZ);
+			
+			// how far along the path the closest point to the region is (0 - 1)
+			double along = 0;
+			if (pathLengthSquared != 0)
+				along = Math.max(0, Math.min(1, (((regionX - startX) * pathX) + ((regionZ - startZ) * pathZ)) / pathLengthSquared));
+			
+			double distanceX = regionX - (startX + (along * pathX));
+			double distanceZ = regionZ - (startZ + (along * pathZ));
+			return (distanceX * distanceX) + (distanceZ * distanceZ) <= PREFETCH_BAND_RADIUS * PREFETCH_BAND_RADIUS;
+		}
+	}
 }
 
 
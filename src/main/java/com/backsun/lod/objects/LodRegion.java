@@ -1,10 +1,53 @@
 package com.backsun.lod.objects;
 
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.StampedLock;
+
+import com.backsun.lod.util.LodConfig;
+import com.backsun.lod.util.enums.ColorDirection;
+import com.backsun.lod.util.enums.LodCorner;
+import com.backsun.lod.util.enums.LodUpdate;
+import com.backsun.lod.util.enums.RegionMemory;
+
 /**
  * A LodRegion is the a 32x32
- * 2D array of LodChunk objects.
+ * 2D array of LodChunks.
  * Each LodRegion corresponds to
  * one file in the file system.
+ * <br><br>
+ * The LodChunks aren't stored as objects, their payloads (the heights
+ * and colors, in the format used by LodChunk.writeData) are in one
+ * ByteBuffer. The heights and colors can be read straight out of the
+ * buffer with the primitive getters, so scanning a region doesn't
+ * create any objects.
+ * <br><br>
+ * A region starts with the plain layout, one record per slot
+ * (the records copyRecords and the region files use), so reading
+ * and saving it are single copies. <br>
+ * Once enough LodChunks have been written that match their neighbor
+ * (oceans, deserts, superflat worlds) the region counts its different
+ * payloads. If there are at most MAX_PAYLOADS_TO_SHARE it switches to
+ * the shared layout, where each slot points to a payload that every
+ * slot with the same heights and colors uses, similar to the palettes
+ * Minecraft uses for block states. A shared region that would need
+ * more than MAX_SHARED_PAYLOADS payloads switches back, so a region
+ * never uses more memory than it would with the plain layout.
+ * <br><br>
+ * Each region also has mip levels, level 1 has one record for every
+ * 2x2 group of LodChunks, level 2 for every 4x4 group and so on, up to
+ * MAX_MIP_LEVEL where one record covers the whole region.
+ * They are built from the LodChunks (see updateMipRecord) and are
+ * updated whenever a LodChunk changes, so far away areas can be
+ * drawn with fewer, bigger LODs.
+ * <br><br>
+ * Writing to the slots, payloads or mip records holds the region's write lock.
+ * Readers of many records (like the renderer) should 
+ * use tryOptimisticRead and validate around their reads,
+ * and only take the read lock if validate fails. 
  * 
  * @author James Seibel
  * @version 1-22-2021
@@ -14,68 +57,1512 @@ public class LodRegion
 	/** number of chunks wide */
 	public static final int SIZE = 32;
 	
+	/** 
+	 * a flag byte (is there a LodChunk in this slot) followed by the LodChunk's data, 
+	 * used by the mip levels, copyRecords and putRecords 
+	 */
+	public static final int RECORD_SIZE = 1 + LodChunk.DATA_SIZE_IN_BYTES;
+	/** where in a record the LodChunk's data starts */
+	private static final int DATA_OFFSET = 1;
+	/** a LodChunk's data without the flag */
+	private static final int PAYLOAD_SIZE = LodChunk.DATA_SIZE_IN_BYTES;
+	/** where in a payload the top heights start */
+	private static final int TOP_OFFSET = 0;
+	/** where in a payload the bottom heights start */
+	private static final int BOTTOM_OFFSET = TOP_OFFSET + (4 * Short.BYTES);
+	/** where in a payload the colors start */
+	private static final int COLOR_OFFSET = BOTTOM_OFFSET + (4 * Short.BYTES);
+	
+	/** 
+	 * A region with the plain layout counts its different payloads
+	 * (to see if sharing them would save memory) once this many
+	 * LodChunks matching their neighbor were written since it last counted.
+	 */
+	private static final int SHARE_CHECK_NEIGHBOR_MATCHES = 256;
+	/** 
+	 * A region only switches to the shared layout if it has at most
+	 * this many different payloads, so it has room for new ones before
+	 * it reaches MAX_SHARED_PAYLOADS and has to switch back.
+	 */
+	public static final int MAX_PAYLOADS_TO_SHARE = 256;
+	/** 
+	 * The most payloads a region with the shared layout holds, one
+	 * that needs more switches back to the plain layout. <br>
+	 * With this many payloads a shared region still takes up
+	 * about 40% less memory than a plain one.
+	 */
+	public static final int MAX_SHARED_PAYLOADS = 512;
+	/** the fewest payloads a shared region has room for, including the empty payload 0 */
+	private static final int MIN_PAYLOAD_CAPACITY = 8;
+	
+	/** the highest mip level, one record at this level covers the whole region */
+	public static final int MAX_MIP_LEVEL = 5;
+	/** 
+	 * Where each mip level's records start in mipRecords. <br>
+	 * Index = mip level (level 0 is the records buffer, not mipRecords)
+	 */
+	private static final int[] MIP_LEVEL_START = createMipLevelStarts();
+	/** 
+	 * how many bytes of records a region with the 
+	 * plain layout holds, including the mip levels 
+	 */
+	public static final int UNSHARED_MEMORY_SIZE_IN_BYTES = ((SIZE * SIZE) + MIP_LEVEL_START[MAX_MIP_LEVEL + 1]) * RECORD_SIZE + 
+			(MIP_LEVEL_START[MAX_MIP_LEVEL + 1] * Short.BYTES);
+	
 	/**	X coordinate of this region */
 	public final int x;
 	/** Z coordinate of this region */
 	public final int z;
 	
-	private LodChunk chunks[][];
+	/**
+	 * The heights and colors of every LodChunk in this region. <br>
+	 * Plain layout: every slot's record (in the format used by copyRecords),
+	 * Index = slot * RECORD_SIZE <br>
+	 * Shared layout: every payload, Index = payload * PAYLOAD_SIZE,
+	 * payload 0 is never written so empty slots read as 0. <br><br>
+	 * 
+	 * The buffer is replaced when the layout changes or the shared payloads
+	 * are full, the old buffer is left as is for any optimistic readers.
+	 * Only absolute gets and puts are used, so the position
+	 * is never changed. Hold the write lock when writing to it.
+	 */
+	private ByteBuffer lodData;
 	
+	/** 
+	 * Which payload each slot uses, 0 if the slot is empty.
+	 * Null while the region has the plain layout. <br>
+	 * Index = (xIndex * SIZE) + zIndex <br><br>
+	 * 
+	 * Hold the write lock when writing to it.
+	 */
+	private short[] slotPayloads = null;
 	
+	/** 
+	 * How many slots use each payload, 0 if the payload is free,
+	 * null while the region has the plain layout. <br>
+	 * Index = payload
+	 */
+	private short[] payloadUses = null;
+	
+	/**
+	 * The payloads by their hash (see getPayloadHash), 0 is an empty entry.
+	 * Null while the region has the plain layout. <br>
+	 * Index = hash & (length - 1), then the next entries if that one is taken <br><br>
+	 * 
+	 * Entries aren't removed when their payload is freed or written over,
+	 * they just stop matching, so the table is rebuilt when it gets too full.
+	 */
+	private short[] payloadTable = null;
+	/** how many entries are in the payloadTable, including the ones that don't match anymore */
+	private int payloadTableEntries = 0;
+	
+	/** how many payloads have been handed out, including payload 0 */
+	private int payloadCount = 1;
+	
+	/** the payloads below payloadCount that no slot uses anymore */
+	private final BitSet freePayloads = new BitSet();
+	
+	/** 
+	 * How many LodChunks that match their neighbor were written
+	 * since the payloads were last counted, only used by the plain layout.
+	 */
+	private int neighborMatches = 0;
+	
+	/** holds the data of a LodChunk that is being added, use it under the write lock */
+	private final ByteBuffer newPayload = ByteBuffer.allocate(PAYLOAD_SIZE);
+	/** holds where a mip group's children start, use it under the write lock */
+	private final int[] childOffsets = new int[4];
+	/** holds how many LodChunks a mip group's children have, use it under the write lock */
+	private final int[] childLodCounts = new int[4];
+	
+	/** where the payloads are stored */
+	private final RegionMemory memory;
+	
+	/**
+	 * The records of every mip level above 0. <br>
+	 * Index = (MIP_LEVEL_START[level] + (xIndex * levelWidth) + zIndex) * RECORD_SIZE <br>
+	 * Where xIndex and zIndex are the slot's indexes shifted right by the level. <br><br>
+	 * 
+	 * Hold the write lock when writing to it.
+	 */
+	private final ByteBuffer mipRecords;
+	/**
+	 * How many LodChunks are in each mip record's group,
+	 * used to weight its color when averaging it with its neighbors. <br>
+	 * Index = MIP_LEVEL_START[level] + (xIndex * levelWidth) + zIndex <br><br>
+	 * 
+	 * Only used under the write lock.
+	 */
+	private final short[] mipLodCounts = new short[MIP_LEVEL_START[MAX_MIP_LEVEL + 1]];
+	
+	/** 
+	 * Which LodChunks have changed since this region was last saved. <br>
+	 * Index = (xIndex * SIZE) + zIndex <br><br>
+	 * 
+	 * Synchronize on this region when using it.
+	 */
+	private BitSet dirtyChunks = new BitSet(SIZE * SIZE);
+	
+	/** guards the slots, payloads and mipRecords */
+	private final StampedLock lock = new StampedLock();
+	
+	/** how many LODs weren't written because they were already stored, in every region */
+	private static final LongAdder numbUnchangedLods = new LongAdder();
+	
+	
+	/**
+	 * Create an empty region, stored in
+	 * the memory chosen in the LodConfig.
+	 */
 	public LodRegion(int regionX, int regionZ)
+	{
+		this(regionX, regionZ, LodConfig.regionMemory);
+	}
+	
+	public LodRegion(int regionX, int regionZ, RegionMemory newMemory)
 	{
 		x = regionX;
 		z = regionZ;
+		memory = newMemory;
 		
-		chunks = new LodChunk[SIZE][SIZE];
+		lodData = allocate(SIZE * SIZE * RECORD_SIZE);
+		mipRecords = allocate(MIP_LEVEL_START[MAX_MIP_LEVEL + 1] * RECORD_SIZE);
+	}
+	
+	/**
+	 * Returns a new buffer with the given capacity,
+	 * in this region's memory.
+	 */
+	private ByteBuffer allocate(int capacity)
+	{
+		switch(memory)
+		{
+		case DIRECT:
+			return ByteBuffer.allocateDirect(capacity);
+		default:
+		case HEAP:
+			return ByteBuffer.allocate(capacity);
+		}
 	}
 	
 	
+	
+	
+	
+	//=========//
+	// writing //
+	//=========//
+	
 	/**
 	 * Add the given LOD to this region at the coordinate
 	 * stored in the LOD. If an LOD already exists at the given
 	 * coordinates it will be overwritten.
+	 * <br>
+	 * The LOD's slot is marked dirty. If the stored LOD
+	 * is the same as the given one nothing is written.
 	 */
-	public void addLod(LodChunk lod)
+	public LodUpdate addLod(LodChunk lod)
 	{
-		// we use ABS since LODs can be negative, but if they are
-		// the region will negative first, therefore we don't have to
-		// store the LOD chunks at negative indexes since we search 
-		// LOD the region first
-		int xIndex = Math.abs(lod.x % SIZE);
-		int zIndex = Math.abs(lod.z % SIZE);
+		int slot = getSlot(lod.x, lod.z);
+		
+		// the same LOD is often generated again, checking it under 
+		// the read lock doesn't interrupt any optimistic reads
+		long stamp = lock.readLock();
+		try
+		{
+			if (slotMatches(slot, lod))
+			{
+				numbUnchangedLods.increment();
+				return LodUpdate.UNCHANGED;
+			}
+			
+			stamp = getWriteLock(stamp);
+			if (slotMatches(slot, lod))
+			{
+				numbUnchangedLods.increment();
+				return LodUpdate.UNCHANGED;
+			}
+			
+			setSlot(slot, lod);
+			
+			// only the groups holding this slot changed
+			int xIndex = slot / SIZE;
+			int zIndex = slot % SIZE;
+			for(int level = 1; level <= MAX_MIP_LEVEL; level++)
+				updateMipRecord(level, xIndex >> level, zIndex >> level);
+			
+			sharePayloadsIfSmaller();
+		}
+		finally
+		{
+			lock.unlock(stamp);
+		}
+		
+		// the slot is marked after the record is written,
+		// so a save that sees the mark will see the record
+		synchronized (this)
+		{
+			boolean wasClean = dirtyChunks.isEmpty();
+			dirtyChunks.set(slot);
+			return wasClean ? LodUpdate.DIRTIED : LodUpdate.CHANGED;
+		}
+	}
+	
+	/**
+	 * Add every given LOD to this region, the same as calling
+	 * addLod for each of them, but the region is only locked once
+	 * and each mip group is only rebuilt once.
+	 * <br>
+	 * Every LOD must be in this region.
+	 */
+	public LodUpdate addLods(List<LodChunk> lods)
+	{
+		BitSet changedSlots = new BitSet(SIZE * SIZE);
+		
+		long stamp = lock.readLock();
+		try
+		{
+			boolean anyChanged = false;
+			for(LodChunk lod : lods)
+			{
+				if (!slotMatches(getSlot(lod.x, lod.z), lod))
+				{
+					anyChanged = true;
+					break;
+				}
+			}
+			
+			if (!anyChanged)
+			{
+				numbUnchangedLods.add(lods.size());
+				return LodUpdate.UNCHANGED;
+			}
+			
+			stamp = getWriteLock(stamp);
+			for(LodChunk lod : lods)
+			{
+				int slot = getSlot(lod.x, lod.z);
+				
+				if (slotMatches(slot, lod))
+				{
+					numbUnchangedLods.increment();
+					continue;
+				}
+				
+				setSlot(slot, lod);
+				changedSlots.set(slot);
+			}
+			
+			// each level's changed groups are the
+			// parents of the level below's changed groups
+			BitSet changedGroups = changedSlots;
+			for(int level = 1; level <= MAX_MIP_LEVEL; level++)
+			{
+				int childWidth = SIZE >> (level - 1);
+				int levelWidth = SIZE >> level;
+				BitSet changedParents = new BitSet(levelWidth * levelWidth);
+				
+				for(int child = changedGroups.nextSetBit(0); child != -1; child = changedGroups.nextSetBit(child + 1))
+					changedParents.set(((child / childWidth) >> 1) * levelWidth + ((child % childWidth) >> 1));
+				
+				for(int group = changedParents.nextSetBit(0); group != -1; group = changedParents.nextSetBit(group + 1))
+					updateMipRecord(level, group / levelWidth, group % levelWidth);
+				
+				changedGroups = changedParents;
+			}
+			
+			sharePayloadsIfSmaller();
+		}
+		finally
+		{
+			lock.unlock(stamp);
+		}
+		
+		if (changedSlots.isEmpty())
+			return LodUpdate.UNCHANGED;
+		
+		synchronized (this)
+		{
+			boolean wasClean = dirtyChunks.isEmpty();
+			dirtyChunks.or(changedSlots);
+			return wasClean ? LodUpdate.DIRTIED : LodUpdate.CHANGED;
+		}
+	}
+	
+	/**
+	 * Turn the given read lock into a write lock,
+	 * waiting for any other readers to finish if needed.
+	 * <br>
+	 * Anything checked under the read lock has to be
+	 * checked again if the lock had to be released.
+	 */
+	private long getWriteLock(long readStamp)
+	{
+		long writeStamp = lock.tryConvertToWriteLock(readStamp);
+		if (writeStamp != 0)
+			return writeStamp;
+		
+		lock.unlockRead(readStamp);
+		return lock.writeLock();
+	}
+	
+	/**
+	 * Returns true if the given slot has a LOD
+	 * with the same heights and colors as the given LOD.
+	 */
+	private boolean slotMatches(int slot, LodChunk lod)
+	{
+		int offset = getSlotOffset(slot);
+		if (offset == -1)
+			return false;
+		
+		for(LodCorner corner : LodCorner.values())
+			if (lodData.getShort(offset + TOP_OFFSET + (corner.value * Short.BYTES)) != lod.getTop(corner) ||
+				lodData.getShort(offset + BOTTOM_OFFSET + (corner.value * Short.BYTES)) != lod.getBottom(corner))
+				return false;
+		
+		for(ColorDirection dir : ColorDirection.values())
+			if (lodData.getInt(offset + COLOR_OFFSET + (dir.value * Integer.BYTES)) != lod.getColor(dir))
+				return false;
+		
+		return true;
+	}
+	
+	/**
+	 * Point the given slot at a payload with the given LOD's
+	 * heights and colors. The write lock has to be held.
+	 */
+	private void setSlot(int slot, LodChunk lod)
+	{
+		newPayload.clear();
+		lod.writeData(newPayload);
+		setSlot(slot, newPayload, 0);
+	}
+	
+	/**
+	 * Write the data (in the format used by LodChunk.writeData) at the
+	 * given offset into the given slot, or empty it if the data is null.
+	 * The write lock has to be held.
+	 */
+	private void setSlot(int slot, ByteBuffer data, int dataOffset)
+	{
+		if (slotPayloads == null)
+			setPlainSlot(slot, data, dataOffset);
+		else
+			setSharedSlot(slot, data, dataOffset);
+	}
+	
+	/**
+	 * Write the data into the given slot's record, or empty it if the data is null.
+	 * <br>
+	 * Counts the LodChunk in neighborMatches if it is the same as the
+	 * one before it in its row or column, since most repeated LodChunks
+	 * are next to each other that is enough to tell when counting
+	 * the payloads is worth it.
+	 */
+	private void setPlainSlot(int slot, ByteBuffer data, int dataOffset)
+	{
+		int offset = slot * RECORD_SIZE;
+		
+		if (data == null)
+		{
+			// empty records are all 0, like the empty payload 0
+			for(int i = 0; i < RECORD_SIZE; i++)
+				lodData.put(offset + i, (byte) 0);
+			return;
+		}
+		
+		lodData.put(offset, (byte) 1);
+		
+		// a payload is 5 longs
+		for(int i = 0; i < PAYLOAD_SIZE; i += Long.BYTES)
+			lodData.putLong(offset + DATA_OFFSET + i, data.getLong(dataOffset + i));
+		
+		if (matchesNeighbor(slot))
+			neighborMatches++;
+	}
+	
+	/**
+	 * Point the given slot at a payload with the data, or empty it if the
+	 * data is null. An identical payload is used if there is one, otherwise
+	 * the slot's payload is written over if no other slot uses it.
+	 * <br>
+	 * Switches to the plain layout if this would 
+	 * need more than MAX_SHARED_PAYLOADS payloads.
+	 */
+	private void setSharedSlot(int slot, ByteBuffer data, int dataOffset)
+	{
+		int oldPayload = slotPayloads[slot];
+		
+		if (data == null)
+		{
+			releasePayload(oldPayload);
+			slotPayloads[slot] = 0;
+			return;
+		}
+		
+		int hash = getPayloadHash(data, dataOffset);
+		int match = findPayload(hash, data, dataOffset);
+		if (match != 0)
+		{
+			if (match != oldPayload)
+			{
+				payloadUses[match]++;
+				releasePayload(oldPayload);
+				slotPayloads[slot] = (short) match;
+			}
+			return;
+		}
+		
+		int payload = oldPayload;
+		if (payload == 0 || payloadUses[payload] != 1)
+		{
+			payload = takeFreePayload();
+			if (payload == 0)
+			{
+				// sharing wouldn't save enough memory anymore
+				usePlainLayout();
+				setPlainSlot(slot, data, dataOffset);
+				return;
+			}
+			
+			releasePayload(oldPayload);
+			payloadUses[payload] = 1;
+		}
+		
+		// a payload is 5 longs
+		for(int i = 0; i < PAYLOAD_SIZE; i += Long.BYTES)
+			lodData.putLong((payload * PAYLOAD_SIZE) + i, data.getLong(dataOffset + i));
+		
+		addToPayloadTable(payload, hash);
+		slotPayloads[slot] = (short) payload;
+	}
+	
+	/**
+	 * Returns the payload that is the same as the data at 
+	 * the given offset, 0 if there isn't one.
+	 */
+	private int findPayload(int hash, ByteBuffer data, int dataOffset)
+	{
+		int mask = payloadTable.length - 1;
+		for(int i = hash & mask; payloadTable[i] != 0; i = (i + 1) & mask)
+		{
+			int payload = payloadTable[i];
+			if (payloadUses[payload] != 0 && payloadMatches(payload, data, dataOffset))
+				return payload;
+		}
+		
+		return 0;
+	}
+	
+	/**
+	 * Returns true if the given payload is the same 
+	 * as the data at the given offset.
+	 */
+	private boolean payloadMatches(int payload, ByteBuffer data, int dataOffset)
+	{
+		for(int i = 0; i < PAYLOAD_SIZE; i += Long.BYTES)
+			if (lodData.getLong((payload * PAYLOAD_SIZE) + i) != data.getLong(dataOffset + i))
+				return false;
+		
+		return true;
+	}
+	
+	/**
+	 * Add the given payload to the payloadTable, rebuilding
+	 * the table instead if it is more than 3/4 full.
+	 */
+	private void addToPayloadTable(int payload, int hash)
+	{
+		if ((payloadTableEntries + 1) * 4 > payloadTable.length * 3)
+		{
+			// the rebuilt table includes this payload
+			rebuildPayloadTable(payloadTable.length);
+			return;
+		}
+		
+		int mask = payloadTable.length - 1;
+		int i = hash & mask;
+		while(payloadTable[i] != 0)
+			i = (i + 1) & mask;
+		
+		payloadTable[i] = (short) payload;
+		payloadTableEntries++;
+	}
+	
+	/**
+	 * Replace the payloadTable with one of the given length
+	 * that only has the payloads that are in use.
+	 */
+	private void rebuildPayloadTable(int length)
+	{
+		payloadTable = new short[length];
+		payloadTableEntries = 0;
+		
+		for(int payload = 1; payload < payloadCount; payload++)
+			if (payloadUses[payload] != 0)
+				addToPayloadTable(payload, getPayloadHash(lodData, payload * PAYLOAD_SIZE));
+	}
+	
+	/**
+	 * Returns how long the payloadTable should be for the given
+	 * payload capacity, so it is never more than half full
+	 * after it is rebuilt.
+	 */
+	private static int getPayloadTableLength(int payloadCapacity)
+	{
+		return Math.max(16, Integer.highestOneBit(payloadCapacity) * 2);
+	}
+	
+	/**
+	 * Remove one use of the given payload,
+	 * freeing it if no other slot uses it.
+	 */
+	private void releasePayload(int payload)
+	{
+		if (payload == 0)
+			return;
+		
+		payloadUses[payload]--;
+		if (payloadUses[payload] == 0)
+			freePayloads.set(payload);
+	}
+	
+	/**
+	 * Returns a payload no slot uses, growing the payloads if every 
+	 * payload is in use. Returns 0 if this would be more than MAX_SHARED_PAYLOADS.
+	 */
+	private int takeFreePayload()
+	{
+		int payload = freePayloads.nextSetBit(0);
+		if (payload != -1)
+		{
+			freePayloads.clear(payload);
+			return payload;
+		}
+		
+		if (payloadCount > MAX_SHARED_PAYLOADS)
+			return 0;
+		
+		if (payloadCount == payloadUses.length)
+		{
+			int newCapacity = Math.min(payloadUses.length * 2, MAX_SHARED_PAYLOADS + 1);
+			
+			ByteBuffer newPayloads = allocate(newCapacity * PAYLOAD_SIZE);
+			ByteBuffer oldPayloads = lodData.duplicate();
+			oldPayloads.clear();
+			newPayloads.put(oldPayloads);
+			
+			payloadUses = Arrays.copyOf(payloadUses, newCapacity);
+			
+			// readers may still be using the old buffer,
+			// it is left as is so they don't read a half written payload
+			lodData = newPayloads;
+			
+			if (payloadTable.length != getPayloadTableLength(newCapacity))
+				rebuildPayloadTable(getPayloadTableLength(newCapacity));
+		}
+		
+		payload = payloadCount;
+		payloadCount++;
+		return payload;
+	}
+	
+	/**
+	 * Returns a hash of the data (in the format used by LodChunk.writeData)
+	 * at the given offset, used to skip most payloads that don't match.
+	 */
+	private static int getPayloadHash(ByteBuffer data, int dataOffset)
+	{
+		int hash = 0;
+		for(int i = 0; i < PAYLOAD_SIZE; i += Integer.BYTES)
+			hash = (31 * hash) + data.getInt(dataOffset + i);
+		
+		// the low bits pick the payloadTable entry, mix the high bits into them
+		return hash ^ (hash >>> 16);
+	}
+	
+	
+	
+	
+	
+	/**
+	 * Copy records (in the format used by copyRecords)
+	 * into this region, starting at the given slot.
+	 * Every byte remaining in the source is copied.
+	 * <br>
+	 * Used when reading a region from file, so the
+	 * slots aren't marked dirty. The mip levels are updated.
+	 * <br>
+	 * With the plain layout the records are copied as they are.
+	 * 
+	 * @param firstSlot Index = (xIndex * SIZE) + zIndex
+	 */
+	public void putRecords(int firstSlot, ByteBuffer source)
+	{
+		long stamp = lock.writeLock();
+		try
+		{
+			int slot = firstSlot;
+			if (slotPayloads == null)
+			{
+				int lastSlot = firstSlot + (source.remaining() / RECORD_SIZE);
+				
+				ByteBuffer destination = lodData.duplicate();
+				destination.position(firstSlot * RECORD_SIZE);
+				destination.put(source);
+				
+				for(; slot < lastSlot; slot++)
+					if (lodData.get(slot * RECORD_SIZE) != 0 && matchesNeighbor(slot))
+						neighborMatches++;
+			}
+			else
+			{
+				for(; source.hasRemaining(); slot++)
+				{
+					boolean hasLod = (source.get() != 0);
+					setSlot(slot, hasLod ? source : null, source.position());
+					source.position(source.position() + PAYLOAD_SIZE);
+				}
+			}
+			
+			// update every group in the rows that were written
+			int firstRow = firstSlot / SIZE;
+			int lastRow = (slot - 1) / SIZE;
+			
+			for(int level = 1; level <= MAX_MIP_LEVEL; level++)
+				for(int xIndex = firstRow >> level; xIndex <= lastRow >> level; xIndex++)
+					for(int zIndex = 0; zIndex < SIZE >> level; zIndex++)
+						updateMipRecord(level, xIndex, zIndex);
+			
+			sharePayloadsIfSmaller();
+		}
+		finally
+		{
+			lock.unlockWrite(stamp);
+		}
+	}
+	
+	/**
+	 * Rebuild the record of a group at the given mip level from
+	 * its 4 children one level below.
+	 * <br>
+	 * The group has a LOD if any child does. Each corner's top is the
+	 * highest top of the children's same corner and the bottom is the lowest
+	 * valid bottom. Each color is the average of the children's visible colors,
+	 * weighted by how many LodChunks each child covers, so a child that
+	 * only has one LodChunk doesn't count as much as one that is full.
+	 * Missing children (and the unused column of negative regions,
+	 * see getMipGroupFirstChunk) don't count at all.
+	 * 
+	 * @param xIndex the group's x index at this level
+	 * @param zIndex the group's z index at this level
+	 */
+	private void updateMipRecord(int level, int xIndex, int zIndex)
+	{
+		// level 0's data is in the lodData, the rest are mip records
+		ByteBuffer children = (level == 1) ? lodData : mipRecords;
+		int childStart = (level == 1) ? 0 : MIP_LEVEL_START[level - 1];
+		int childWidth = SIZE >> (level - 1);
+		
+		int record = MIP_LEVEL_START[level] + (xIndex * (SIZE >> level)) + zIndex;
+		int offset = record * RECORD_SIZE;
+		int firstChild = childStart + (xIndex * 2 * childWidth) + (zIndex * 2);
+		
+		int lodCount = 0;
+		for(int child = 0; child < 4; child++)
+		{
+			childOffsets[child] = getChildOffset(level - 1, firstChild, childWidth, child);
+			childLodCounts[child] = getChildLodCount(level - 1, firstChild, childWidth, child);
+			lodCount += childLodCounts[child];
+		}
+		mipLodCounts[record] = (short) lodCount;
+		
+		if (lodCount == 0)
+		{
+			mipRecords.put(offset, (byte) 0);
+			return;
+		}
+		mipRecords.put(offset, (byte) 1);
+		offset += DATA_OFFSET;
+		
+		for(LodCorner corner : LodCorner.values())
+		{
+			short top = -1;
+			short bottom = -1;
+			
+			for(int child = 0; child < 4; child++)
+			{
+				int childOffset = childOffsets[child];
+				if (childOffset == -1)
+					continue;
+				
+				short childTop = children.getShort(childOffset + TOP_OFFSET + (corner.value * Short.BYTES));
+				short childBottom = children.getShort(childOffset + BOTTOM_OFFSET + (corner.value * Short.BYTES));
+				
+				top = (short) Math.max(top, childTop);
+				if (childBottom != -1 && (bottom == -1 || childBottom < bottom))
+					bottom = childBottom;
+			}
+			
+			mipRecords.putShort(offset + TOP_OFFSET + (corner.value * Short.BYTES), top);
+			mipRecords.putShort(offset + BOTTOM_OFFSET + (corner.value * Short.BYTES), bottom);
+		}
+		
+		for(ColorDirection dir : ColorDirection.values())
+		{
+			int alpha = 0;
+			int red = 0;
+			int green = 0;
+			int blue = 0;
+			int totalWeight = 0;
+			
+			for(int child = 0; child < 4; child++)
+			{
+				int childOffset = childOffsets[child];
+				if (childOffset == -1)
+					continue;
+				
+				int color = children.getInt(childOffset + COLOR_OFFSET + (dir.value * Integer.BYTES));
+				if (color == LodChunk.INVISIBLE_COLOR)
+					continue;
+				
+				int weight = childLodCounts[child];
+				alpha += ((color >> 24) & 0xFF) * weight;
+				red += ((color >> 16) & 0xFF) * weight;
+				green += ((color >> 8) & 0xFF) * weight;
+				blue += (color & 0xFF) * weight;
+				totalWeight += weight;
+			}
+			
+			int color = LodChunk.INVISIBLE_COLOR;
+			if (totalWeight != 0)
+				color = ((alpha / totalWeight) << 24) | ((red / totalWeight) << 16) | ((green / totalWeight) << 8) | (blue / totalWeight);
+			
+			mipRecords.putInt(offset + COLOR_OFFSET + (dir.value * Integer.BYTES), color);
+		}
+	}
+	
+	/**
+	 * Returns where the data of the given child (0 - 3) of a group starts,
+	 * in the lodData if the child level is 0 otherwise in the mipRecords.
+	 * <br>
+	 * Returns -1 if the child doesn't have a LOD.
+	 * 
+	 * @param firstChild the slot or record index of the group's first child
+	 * @param childWidth how many records wide the child level is
+	 */
+	private int getChildOffset(int childLevel, int firstChild, int childWidth, int child)
+	{
+		int index = firstChild + ((child / 2) * childWidth) + (child % 2);
+		
+		if (childLevel == 0)
+			return getSlotOffset(index);
+		
+		int offset = index * RECORD_SIZE;
+		return (mipRecords.get(offset) == 0) ? -1 : offset + DATA_OFFSET;
+	}
+	
+	/**
+	 * Returns how many LodChunks are in the given child (0 - 3) of a group,
+	 * the child's offset has to be in childOffsets already.
+	 * 
+	 * @param firstChild the slot or record index of the group's first child
+	 * @param childWidth how many records wide the child level is
+	 */
+	private int getChildLodCount(int childLevel, int firstChild, int childWidth, int child)
+	{
+		int index = firstChild + ((child / 2) * childWidth) + (child % 2);
+		
+		if (childLevel == 0)
+			return (childOffsets[child] == -1) ? 0 : 1;
+		
+		return mipLodCounts[index];
+	}
+	
+	
+	
+	
+	
+	//========//
+	// layout //
+	//========//
+	
+	/**
+	 * If this region has the plain layout and at least SHARE_CHECK_NEIGHBOR_MATCHES
+	 * LodChunks that match their neighbor were written since the payloads
+	 * were last counted, count them and switch to the shared layout
+	 * if there are at most MAX_PAYLOADS_TO_SHARE.
+	 * The write lock has to be held.
+	 */
+	private void sharePayloadsIfSmaller()
+	{
+		if (slotPayloads != null || neighborMatches < SHARE_CHECK_NEIGHBOR_MATCHES)
+			return;
+		neighborMatches = 0;
+		
+		int differentPayloads = countDifferentPayloads();
+		if (differentPayloads != -1)
+			useSharedLayout(differentPayloads);
+	}
+	
+	/**
+	 * Returns how many different payloads the records of a plain
+	 * region have, -1 if there are more than MAX_PAYLOADS_TO_SHARE.
+	 */
+	private int countDifferentPayloads()
+	{
+		// the first slot (plus 1) with each payload,
+		// Index = hash & (length - 1), like the payloadTable
+		short[] firstSlots = new short[getPayloadTableLength(MAX_PAYLOADS_TO_SHARE + 1)];
+		int mask = firstSlots.length - 1;
+		int count = 0;
+		
+		for(int slot = 0; slot < SIZE * SIZE; slot++)
+		{
+			int offset = slot * RECORD_SIZE;
+			if (lodData.get(offset) == 0)
+				continue;
+			
+			int i = getPayloadHash(lodData, offset + DATA_OFFSET) & mask;
+			while(firstSlots[i] != 0 && !recordsMatch(slot, firstSlots[i] - 1))
+				i = (i + 1) & mask;
+			
+			if (firstSlots[i] == 0)
+			{
+				count++;
+				if (count > MAX_PAYLOADS_TO_SHARE)
+					return -1;
+				
+				firstSlots[i] = (short) (slot + 1);
+			}
+		}
+		
+		return count;
+	}
+	
+	/**
+	 * Returns true if the record of the given slot of a plain region
+	 * is the same as the one before it in its row or column.
+	 */
+	private boolean matchesNeighbor(int slot)
+	{
+		return (slot % SIZE != 0 && recordsMatch(slot, slot - 1)) ||
+				(slot >= SIZE && recordsMatch(slot, slot - SIZE));
+	}
+	
+	/**
+	 * Returns true if the other slot of a plain region has a LodChunk
+	 * and it is the same as the one in the given slot.
+	 */
+	private boolean recordsMatch(int slot, int otherSlot)
+	{
+		int offset = slot * RECORD_SIZE;
+		int otherOffset = otherSlot * RECORD_SIZE;
+		
+		if (lodData.get(otherOffset) == 0)
+			return false;
 		
-		chunks[xIndex][zIndex] = lod;
+		// a payload is 5 longs
+		for(int i = DATA_OFFSET; i < RECORD_SIZE; i += Long.BYTES)
+			if (lodData.getLong(offset + i) != lodData.getLong(otherOffset + i))
+				return false;
+		
+		return true;
 	}
 	
+	/**
+	 * Move every LodChunk of a plain region into shared payloads.
+	 * The write lock has to be held.
+	 * 
+	 * @param differentPayloads how many payloads the region needs
+	 */
+	private void useSharedLayout(int differentPayloads)
+	{
+		ByteBuffer records = lodData;
+		int capacity = Math.max(MIN_PAYLOAD_CAPACITY, Math.min(Integer.highestOneBit(differentPayloads) * 2, MAX_SHARED_PAYLOADS + 1));
+		
+		// direct buffers are slow to allocate and are only 
+		// freed by the garbage collector, so they start at 
+		// their biggest size instead of growing
+		if (memory == RegionMemory.DIRECT)
+			capacity = MAX_SHARED_PAYLOADS + 1;
+		
+		payloadUses = new short[capacity];
+		payloadTable = new short[getPayloadTableLength(capacity)];
+		payloadTableEntries = 0;
+		payloadCount = 1;
+		freePayloads.clear();
+		
+		// readers may still be using the records,
+		// they are left as is
+		lodData = allocate(capacity * PAYLOAD_SIZE);
+		slotPayloads = new short[SIZE * SIZE];
+		
+		for(int slot = 0; slot < SIZE * SIZE; slot++)
+			if (records.get(slot * RECORD_SIZE) != 0)
+				setSharedSlot(slot, records, (slot * RECORD_SIZE) + DATA_OFFSET);
+	}
+	
+	/**
+	 * Give every LodChunk of a shared region its own record again.
+	 * The write lock has to be held.
+	 */
+	private void usePlainLayout()
+	{
+		ByteBuffer records = allocate(SIZE * SIZE * RECORD_SIZE);
+		
+		for(int slot = 0; slot < SIZE * SIZE; slot++)
+		{
+			int payload = slotPayloads[slot];
+			if (payload == 0)
+				continue;
+			
+			int offset = slot * RECORD_SIZE;
+			records.put(offset, (byte) 1);
+			for(int i = 0; i < PAYLOAD_SIZE; i += Long.BYTES)
+				records.putLong(offset + DATA_OFFSET + i, lodData.getLong((payload * PAYLOAD_SIZE) + i));
+		}
+		
+		// readers may still be using the payloads,
+		// they are left as is
+		lodData = records;
+		slotPayloads = null;
+		payloadUses = null;
+		payloadTable = null;
+		payloadTableEntries = 0;
+		payloadCount = 1;
+		freePayloads.clear();
+		neighborMatches = 0;
+	}
+	
+	/**
+	 * Returns where the given slot's heights and colors start 
+	 * in the lodData, -1 if the slot is empty. <br>
+	 * A lock has to be held.
+	 */
+	private int getSlotOffset(int slot)
+	{
+		if (slotPayloads == null)
+			return (lodData.get(slot * RECORD_SIZE) == 0) ? -1 : (slot * RECORD_SIZE) + DATA_OFFSET;
+		
+		int payload = slotPayloads[slot];
+		return (payload == 0) ? -1 : payload * PAYLOAD_SIZE;
+	}
+	
+	
+	
+	
+	
+	//=========//
+	// reading //
+	//=========//
+	
 	/**
 	 * Get the LodChunk at the given X and Z coordinates
 	 * in this region.
 	 * <br>
-	 * Returns null if the LodChunk doesn't exist or 
-	 * is outside the loaded area.
+	 * Returns null if the LodChunk doesn't exist.
+	 * <br><br>
+	 * This creates a new LodChunk every time,
+	 * use hasLod, getTop, getBottom and getColor
+	 * when reading a lot of LodChunks.
 	 */
 	public LodChunk getLod(int chunkX, int chunkZ)
 	{
-		// since we add LOD's with ABS, we get them the same way
-		int arrayX = Math.abs(chunkX % SIZE);
-		int arrayZ = Math.abs(chunkZ % SIZE);
+		int slot = getSlot(chunkX, chunkZ);
+		
+		long stamp = lock.tryOptimisticRead();
+		LodChunk lod = readLod(slot, chunkX, chunkZ);
 		
-		if(arrayX >= SIZE || arrayZ >= SIZE)
+		if (!lock.validate(stamp))
+		{
+			// the LOD was written while we were reading it
+			stamp = lock.readLock();
+			try
+			{
+				lod = readLod(slot, chunkX, chunkZ);
+			}
+			finally
+			{
+				lock.unlockRead(stamp);
+			}
+		}
+		
+		return lod;
+	}
+	
+	/**
+	 * Create a LodChunk from the given slot's payload,
+	 * returns null if the slot is empty.
+	 */
+	private LodChunk readLod(int slot, int chunkX, int chunkZ)
+	{
+		if (!hasLod(slot))
 			return null;
 		
-		return chunks[arrayX][arrayZ];
+		ByteBuffer data = lodData.duplicate();
+		data.position(getPayloadOffset(data, slotPayloads, slot));
+		return new LodChunk(data, chunkX, chunkZ);
+	}
+	
+	/**
+	 * Returns where the given slot's heights and colors start in the
+	 * given buffer, which should be the lodData read before calling this,
+	 * and slots should be the slotPayloads read before calling this.
+	 * <br>
+	 * During an optimistic read the buffer and slots can be from different
+	 * layouts, or the slot can point past the end of a buffer that has since
+	 * been replaced, then 0 is returned instead so nothing is read 
+	 * past the end of the buffer (validate will fail either way).
+	 */
+	private static int getPayloadOffset(ByteBuffer data, short[] slots, int slot)
+	{
+		int offset = (slots == null) ? (slot * RECORD_SIZE) + DATA_OFFSET : slots[slot] * PAYLOAD_SIZE;
+		return (offset + PAYLOAD_SIZE <= data.capacity()) ? offset : 0;
+	}
+	
+	/**
+	 * Returns true if there is a LodChunk
+	 * at the given X and Z coordinates.
+	 */
+	public boolean hasLod(int chunkX, int chunkZ)
+	{
+		return hasLod(getSlot(chunkX, chunkZ));
+	}
+	
+	/**
+	 * Returns true if there is a LodChunk in the given slot,
+	 * this can be called during an optimistic read.
+	 */
+	private boolean hasLod(int slot)
+	{
+		short[] slots = slotPayloads;
+		if (slots != null)
+			return slots[slot] != 0;
+		
+		ByteBuffer records = lodData;
+		int offset = slot * RECORD_SIZE;
+		return offset < records.capacity() && records.get(offset) != 0;
+	}
+	
+	/**
+	 * Returns the top height of the given corner
+	 * of the LodChunk at the given X and Z coordinates.
+	 * <br>
+	 * Only valid if hasLod is true.
+	 */
+	public short getTop(int chunkX, int chunkZ, LodCorner corner)
+	{
+		ByteBuffer data = lodData;
+		return data.getShort(getPayloadOffset(data, slotPayloads, getSlot(chunkX, chunkZ)) + TOP_OFFSET + (corner.value * Short.BYTES));
+	}
+	
+	/**
+	 * Returns the bottom height of the given corner
+	 * of the LodChunk at the given X and Z coordinates.
+	 * <br>
+	 * Only valid if hasLod is true.
+	 */
+	public short getBottom(int chunkX, int chunkZ, LodCorner corner)
+	{
+		ByteBuffer data = lodData;
+		return data.getShort(getPayloadOffset(data, slotPayloads, getSlot(chunkX, chunkZ)) + BOTTOM_OFFSET + (corner.value * Short.BYTES));
+	}
+	
+	/**
+	 * Returns the ARGB color of the given direction
+	 * of the LodChunk at the given X and Z coordinates.
+	 * <br>
+	 * Only valid if hasLod is true.
+	 */
+	public int getColor(int chunkX, int chunkZ, ColorDirection direction)
+	{
+		ByteBuffer data = lodData;
+		return data.getInt(getPayloadOffset(data, slotPayloads, getSlot(chunkX, chunkZ)) + COLOR_OFFSET + (direction.value * Integer.BYTES));
+	}
+	
+	/**
+	 * Returns true if the group at the given mip level that holds
+	 * the given X and Z coordinates has a LOD. <br>
+	 * Level 0 is the LodChunks themselves.
+	 */
+	public boolean hasMipLod(int level, int chunkX, int chunkZ)
+	{
+		if (level == 0)
+			return hasLod(chunkX, chunkZ);
+		
+		return mipRecords.get(getMipOffset(level, chunkX, chunkZ)) != 0;
 	}
 	
+	/**
+	 * Returns the top height of the given corner of the group 
+	 * at the given mip level that holds the given X and Z coordinates.
+	 * <br>
+	 * Only valid if hasMipLod is true.
+	 */
+	public short getMipTop(int level, int chunkX, int chunkZ, LodCorner corner)
+	{
+		if (level == 0)
+			return getTop(chunkX, chunkZ, corner);
+		
+		return mipRecords.getShort(getMipOffset(level, chunkX, chunkZ) + DATA_OFFSET + TOP_OFFSET + (corner.value * Short.BYTES));
+	}
 	
 	/**
-	 * Returns all LodChunks in this region
+	 * Returns the bottom height of the given corner of the group 
+	 * at the given mip level that holds the given X and Z coordinates.
+	 * <br>
+	 * Only valid if hasMipLod is true.
 	 */
-	public LodChunk[][] getAllLods()
+	public short getMipBottom(int level, int chunkX, int chunkZ, LodCorner corner)
 	{
-		return chunks;
+		if (level == 0)
+			return getBottom(chunkX, chunkZ, corner);
+		
+		return mipRecords.getShort(getMipOffset(level, chunkX, chunkZ) + DATA_OFFSET + BOTTOM_OFFSET + (corner.value * Short.BYTES));
 	}
 	
+	/**
+	 * Returns the ARGB color of the given direction of the group 
+	 * at the given mip level that holds the given X and Z coordinates.
+	 * <br>
+	 * Only valid if hasMipLod is true.
+	 */
+	public int getMipColor(int level, int chunkX, int chunkZ, ColorDirection direction)
+	{
+		if (level == 0)
+			return getColor(chunkX, chunkZ, direction);
+		
+		return mipRecords.getInt(getMipOffset(level, chunkX, chunkZ) + DATA_OFFSET + COLOR_OFFSET + (direction.value * Integer.BYTES));
+	}
+	
+	/**
+	 * Returns how many slots have a LodChunk in them.
+	 */
+	public int getLodCount()
+	{
+		int count = 0;
+		for(int slot = 0; slot < SIZE * SIZE; slot++)
+			if (hasLod(slot))
+				count++;
+		
+		return count;
+	}
+	
+	/**
+	 * Returns how many different payloads the LodChunks in
+	 * this region use, with the plain layout every LodChunk has its own.
+	 */
+	public int getPayloadCount()
+	{
+		long stamp = lock.readLock();
+		try
+		{
+			if (slotPayloads == null)
+				return getLodCount();
+			
+			return payloadCount - 1 - freePayloads.cardinality();
+		}
+		finally
+		{
+			lock.unlockRead(stamp);
+		}
+	}
+	
+	/**
+	 * Returns true if this region has the shared layout,
+	 * where LodChunks with the same heights and colors share a payload.
+	 */
+	public boolean isSharingPayloads()
+	{
+		return slotPayloads != null;
+	}
+	
+	/**
+	 * Returns how many bytes this region's records (or slots and payloads)
+	 * and mip levels take up (not counting object headers). <br>
+	 * Compare to UNSHARED_MEMORY_SIZE_IN_BYTES to see
+	 * how much sharing payloads saved.
+	 */
+	public int getMemorySizeInBytes()
+	{
+		long stamp = lock.readLock();
+		try
+		{
+			int size = lodData.capacity() + mipRecords.capacity() + (mipLodCounts.length * Short.BYTES);
+			if (slotPayloads != null)
+				size += (slotPayloads.length + payloadUses.length + payloadTable.length) * Short.BYTES;
+			
+			return size;
+		}
+		finally
+		{
+			lock.unlockRead(stamp);
+		}
+	}
+	
+	/**
+	 * Copy the records of the given slots into the destination
+	 * buffer, starting at its position. <br>
+	 * Each record is RECORD_SIZE bytes: a flag byte (0 if the slot is empty)
+	 * followed by the LodChunk's data in the format used by LodChunk.writeData.
+	 * 
+	 * @param firstSlot Index = (xIndex * SIZE) + zIndex
+	 * @throws java.nio.BufferOverflowException if the destination doesn't have enough space remaining
+	 */
+	public void copyRecords(int firstSlot, int slotCount, ByteBuffer destination)
+	{
+		long stamp = lock.readLock();
+		try
+		{
+			if (slotPayloads == null)
+			{
+				// the records are already in this format
+				ByteBuffer source = lodData.duplicate();
+				source.limit((firstSlot + slotCount) * RECORD_SIZE);
+				source.position(firstSlot * RECORD_SIZE);
+				destination.put(source);
+				return;
+			}
+			
+			for(int slot = firstSlot; slot < firstSlot + slotCount; slot++)
+			{
+				// empty slots use payload 0, which is all 0
+				int offset = slotPayloads[slot] * PAYLOAD_SIZE;
+				destination.put((slotPayloads[slot] == 0) ? (byte) 0 : (byte) 1);
+				
+				// a payload is 5 longs
+				for(int i = 0; i < PAYLOAD_SIZE; i += Long.BYTES)
+					destination.putLong(lodData.getLong(offset + i));
+			}
+		}
+		finally
+		{
+			lock.unlockRead(stamp);
+		}
+	}
+	
+	
+	/**
+	 * Returns where the record of the group at the given mip level
+	 * (above 0) that holds the given chunk coordinates starts in the mipRecords.
+	 */
+	private static int getMipOffset(int level, int chunkX, int chunkZ)
+	{
+		int xIndex = Math.abs(chunkX % SIZE) >> level;
+		int zIndex = Math.abs(chunkZ % SIZE) >> level;
+		
+		return (MIP_LEVEL_START[level] + (xIndex * (SIZE >> level)) + zIndex) * RECORD_SIZE;
+	}
+	
+	private static int[] createMipLevelStarts()
+	{
+		// the extra entry is the total number of mip records
+		int[] starts = new int[MAX_MIP_LEVEL + 2];
+		
+		for(int level = 1; level <= MAX_MIP_LEVEL; level++)
+			starts[level + 1] = starts[level] + ((SIZE >> level) * (SIZE >> level));
+		
+		return starts;
+	}
+	
+	/**
+	 * Returns which slot the given chunk coordinates are stored in. <br>
+	 * Index = (xIndex * SIZE) + zIndex
+	 */
+	private static int getSlot(int chunkX, int chunkZ)
+	{
+		// we use ABS since LODs can be negative, but if they are
+		// the region will negative first, therefore we don't have to
+		// store the LOD chunks at negative indexes since we search 
+		// LOD the region first
+		return (Math.abs(chunkX % SIZE) * SIZE) + Math.abs(chunkZ % SIZE);
+	}
+	
+	/**
+	 * Returns the chunk coordinate that is stored at the given
+	 * array index of the region at the given region coordinate.
+	 * <br>
+	 * This is the inverse of the ABS indexing used by addLod,
+	 * so it works for both the X and Z axis.
+	 */
+	public static int getChunkCoordinateFromIndex(int regionCoordinate, int index)
+	{
+		// negative regions are stored "backwards"
+		// since their indexes are found with ABS
+		if (regionCoordinate >= 0)
+			return (regionCoordinate * SIZE) + index;
+		else
+			return ((regionCoordinate + 1) * SIZE) - index;
+	}
+	
+	/**
+	 * Returns the region coordinate that holds the 
+	 * given chunk coordinate, works for both the X and Z axis.
+	 */
+	public static int getRegionCoordinate(int chunkCoordinate)
+	{
+		int regionCoordinate = chunkCoordinate / SIZE;
+		
+		// prevent issues if the coordinate is negative and less than SIZE
+		if (chunkCoordinate < 0)
+			regionCoordinate = (Math.abs(regionCoordinate) * -1) - 1;
+		
+		return regionCoordinate;
+	}
+	
+	/**
+	 * Returns the smallest chunk coordinate in the group at the
+	 * given mip level that holds the given chunk coordinate.
+	 * Works for both the X and Z axis.
+	 */
+	public static int getMipGroupStart(int chunkCoordinate, int level)
+	{
+		return Math.min(getMipGroupFirstChunk(chunkCoordinate, level), getMipGroupLastChunk(chunkCoordinate, level));
+	}
+	
+	/**
+	 * Returns how many chunks wide the group at the given mip level
+	 * that holds the given chunk coordinate is.
+	 * Works for both the X and Z axis.
+	 */
+	public static int getMipGroupWidth(int chunkCoordinate, int level)
+	{
+		return Math.abs(getMipGroupLastChunk(chunkCoordinate, level) - getMipGroupFirstChunk(chunkCoordinate, level)) + 1;
+	}
+	
+	/**
+	 * Returns the chunk coordinate of the first index of the group
+	 * at the given mip level that holds the given chunk coordinate.
+	 */
+	private static int getMipGroupFirstChunk(int chunkCoordinate, int level)
+	{
+		int regionCoordinate = getRegionCoordinate(chunkCoordinate);
+		int firstIndex = (Math.abs(chunkCoordinate % SIZE) >> level) << level;
+		
+		// index 0 of region -1 would be chunk 0,
+		// which is in region 0
+		if (regionCoordinate == -1 && firstIndex == 0)
+			firstIndex = 1;
+		
+		return getChunkCoordinateFromIndex(regionCoordinate, firstIndex);
+	}
+	
+	/**
+	 * Returns the chunk coordinate of the last index of the group
+	 * at the given mip level that holds the given chunk coordinate.
+	 */
+	private static int getMipGroupLastChunk(int chunkCoordinate, int level)
+	{
+		int regionCoordinate = getRegionCoordinate(chunkCoordinate);
+		int lastIndex = ((Math.abs(chunkCoordinate % SIZE) >> level) << level) + (1 << level) - 1;
+		
+		return getChunkCoordinateFromIndex(regionCoordinate, lastIndex);
+	}
+	
+	
+	
+	
+	
+	//=========//
+	// locking //
+	//=========//
+	
+	/**
+	 * Returns a stamp for an optimistic read of the records,
+	 * check it with validate after reading. <br>
+	 * Returns 0 if the records are being written.
+	 */
+	public long tryOptimisticRead()
+	{
+		return lock.tryOptimisticRead();
+	}
+	
+	/**
+	 * Returns true if nothing was written since the given stamp
+	 * was returned, meaning everything read since then is consistent.
+	 */
+	public boolean validate(long stamp)
+	{
+		return lock.validate(stamp);
+	}
+	
+	/**
+	 * Wait until nothing is writing to the records and keep them from
+	 * being written to until unlockRead is called with the returned stamp.
+	 */
+	public long readLock()
+	{
+		return lock.readLock();
+	}
+	
+	public void unlockRead(long stamp)
+	{
+		lock.unlockRead(stamp);
+	}
+	
+	
+	
+	
+	
+	//================//
+	// dirty tracking //
+	//================//
+	
+	/**
+	 * Returns how many LODs (in every region) weren't
+	 * written or marked dirty because the same LOD was already stored.
+	 */
+	public static long getNumberOfUnchangedLods()
+	{
+		return numbUnchangedLods.sum();
+	}
+	
+	
+	/**
+	 * Returns true if any LodChunk in this
+	 * region has changed since it was last saved.
+	 */
+	public synchronized boolean isDirty()
+	{
+		return !dirtyChunks.isEmpty();
+	}
+	
+	/**
+	 * Returns which LodChunks have changed since this region 
+	 * was last saved and marks them clean. <br>
+	 * Index = (xIndex * SIZE) + zIndex
+	 */
+	public synchronized BitSet takeDirtyChunks()
+	{
+		BitSet dirty = dirtyChunks;
+		dirtyChunks = new BitSet(SIZE * SIZE);
+		return dirty;
+	}
+	
+	/**
+	 * Mark the given LodChunks dirty again, used when
+	 * the slots returned by takeDirtyChunks couldn't be saved. <br>
+	 * Index = (xIndex * SIZE) + zIndex
+	 * 
+	 * @returns true if the region was clean before this call
+	 */
+	public synchronized boolean restoreDirtyChunks(BitSet unsavedChunks)
+	{
+		boolean wasClean = dirtyChunks.isEmpty();
+		dirtyChunks.or(unsavedChunks);
+		return wasClean;
+	}
+	
+	/**
+	 * Mark every LodChunk as clean, 
+	 * used after a region is read from file.
+	 */
+	public synchronized void clearDirtyChunks()
+	{
+		dirtyChunks.clear();
+	}
 	
 	
 	@Override
@@ -0,0 +1,187 @@
+package com.backsun.lod.objects;
+
+import java.util.ArrayList;
+import java.util.function.Consumer;
+
+import com.backsun.lod.util.LodConfig;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectLinkedOpenHashMap;
+import net.minecraft.util.math.ChunkPos;
+
+/**
+ * This object holds LodRegions that have left a
+ * LodDimension's loaded area, so if the player comes back
+ * they don't have to be read from file again.
+ * <br><br>
+ * The cache is limited to LodConfig.regionCacheSizeInMB,
+ * when it is full the least recently used region is removed.
+ * Regions that share a lot of payloads are smaller, 
+ * so more of them fit.
+ * Removed regions that still have changes that haven't been
+ * saved are handed to the given write back function.
+ * 
+ * @author James Seibel
+ * @version 10-16-2026
+ */
+public class LodRegionCache
+{
+	/**
+	 * Key = ChunkPos.asLong(regionX, regionZ) <br>
+	 * Ordered from least to most recently used.
+	 */
+	private final Long2ObjectLinkedOpenHashMap<LodRegion> regions = new Long2ObjectLinkedOpenHashMap<>();
+	
+	/** 
+	 * how many bytes the cached regions take up, a region
+	 * isn't written to while it is cached so its size doesn't change 
+	 */
+	private long sizeInBytes = 0;
+	
+	/** called with every dirty region that is removed to make room */
+	private final Consumer<LodRegion> writeBack;
+	
+	/** how many times a region was taken out of the cache */
+	private long hits = 0;
+	/** how many times a region wasn't in the cache */
+	private long misses = 0;
+	/** how many regions were removed to make room */
+	private long evictions = 0;
+	/** how many of the removed regions had to be saved */
+	private long writeBacks = 0;
+	
+	
+	
+	/**
+	 * @param newWriteBack called with every region that has unsaved
+	 * changes when it is removed from the cache to make room
+	 */
+	public LodRegionCache(Consumer<LodRegion> newWriteBack)
+	{
+		writeBack = newWriteBack;
+	}
+	
+	
+	
+	
+	
+	//=====================//
+	// adding and removing //
+	//=====================//
+	
+	/**
+	 * Add the given region to the cache as the most recently
+	 * used region, then remove the least recently used regions
+	 * until the cache fits in its size limit.
+	 */
+	public synchronized void put(LodRegion region)
+	{
+		LodRegion replacedRegion = regions.putAndMoveToLast(ChunkPos.asLong(region.x, region.z), region);
+		if (replacedRegion != null)
+			sizeInBytes -= replacedRegion.getMemorySizeInBytes();
+		sizeInBytes += region.getMemorySizeInBytes();
+		
+		long maxSizeInBytes = getMaxSizeInBytes();
+		while(sizeInBytes > maxSizeInBytes && !regions.isEmpty())
+		{
+			LodRegion oldestRegion = regions.removeFirst();
+			sizeInBytes -= oldestRegion.getMemorySizeInBytes();
+			evictions++;
+			
+			if (oldestRegion.isDirty())
+			{
+				writeBacks++;
+				writeBack.accept(oldestRegion);
+			}
+		}
+	}
+	
+	/**
+	 * Remove the region at the given coordinates from
+	 * the cache and return it, null if it isn't cached.
+	 */
+	public synchronized LodRegion take(int regionX, int regionZ)
+	{
+		LodRegion region = regions.remove(ChunkPos.asLong(regionX, regionZ));
+		
+		if (region != null)
+		{
+			sizeInBytes -= region.getMemorySizeInBytes();
+			hits++;
+		}
+		else
+			misses++;
+		
+		return region;
+	}
+	
+	/**
+	 * Returns true if the region at the given coordinates is cached.
+	 * This doesn't count as a hit or a miss.
+	 */
+	public synchronized boolean contains(int regionX, int regionZ)
+	{
+		return regions.containsKey(ChunkPos.asLong(regionX, regionZ));
+	}
+	
+	/**
+	 * Returns every cached region,
+	 * used to save the dirty ones.
+	 */
+	public synchronized ArrayList<LodRegion> getRegions()
+	{
+		return new ArrayList<>(regions.values());
+	}
+	
+	/**
+	 * Returns LodConfig.regionCacheSizeInMB in bytes.
+	 */
+	private static long getMaxSizeInBytes()
+	{
+		return (long) LodConfig.regionCacheSizeInMB * 1024 * 1024;
+	}
+	
+	
+	
+	
+	
+	//============//
+	// statistics //
+	//============//
+	
+	public synchronized int size()
+	{
+		return regions.size();
+	}
+	
+	public synchronized long getSizeInBytes()
+	{
+		return sizeInBytes;
+	}
+	
+	public synchronized long getHits()
+	{
+		return hits;
+	}
+	
+	public synchronized long getMisses()
+	{
+		return misses;
+	}
+	
+	public synchronized long getEvictions()
+	{
+		return evictions;
+	}
+	
+	public synchronized long getWriteBacks()
+	{
+		return writeBacks;
+	}
+	
+	
+	@Override
+	public synchronized String toString()
+	{
+		return "regions: " + regions.size() + " hits: " + hits + " misses: " + misses + " evictions: " + evictions + " write backs: " + writeBacks;
+	}
+}
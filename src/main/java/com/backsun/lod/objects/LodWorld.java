@@ -37,6 +37,15 @@ public class LodWorld
 		return lodDimensions.get(dimensionId);
 	}
 	
+	/**
+	 * Remove the LodDimension with the given id, a new one 
+	 * will be created the next time it is needed.
+	 */
+	public void removeLodDimension(int dimensionId)
+	{
+		lodDimensions.remove(dimensionId);
+	}
+	
 	/**
 	 * Resizes the max width in regions that each LodDimension
 	 * should use. 
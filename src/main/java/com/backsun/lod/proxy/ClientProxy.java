@@ -12,10 +12,11 @@ import com.backsun.lod.util.LodConfig;
 import com.backsun.lodCore.util.RenderGlobalHook;
 
 import net.minecraft.client.Minecraft;
-import net.minecraft.client.multiplayer.WorldClient;
+import net.minecraftforge.client.event.RenderGameOverlayEvent;
 import net.minecraftforge.client.event.RenderWorldLastEvent;
 import net.minecraftforge.event.terraingen.PopulateChunkEvent;
 import net.minecraftforge.event.world.ChunkEvent;
+import net.minecraftforge.event.world.WorldEvent;
 import net.minecraftforge.fml.common.eventhandler.SubscribeEvent;
 
 //TODO Find a way to replace getIntegratedServer so this mod could be used on non-local worlds.
@@ -31,9 +32,22 @@ import net.minecraftforge.fml.common.eventhandler.SubscribeEvent;
 public class ClientProxy extends CommonProxy
 {
 	private LodRenderer renderer;
-	private LodWorld lodWorld;
+	/** 
+	 * Chunks are given to the LodBuilder on both the client 
+	 * and server thread, and both update this.
+	 */
+	private volatile LodWorld lodWorld;
 	private LodBuilder lodBuilder;
 	
+	/** the LOD memory line shown on the debug screen */
+	private String lodMemoryDebugText = "";
+	/** the chunk snapshot line shown on the debug screen */
+	private String lodSnapshotDebugText = "";
+	/** when the debug lines were last updated */
+	private long lodMemoryDebugTime = 0;
+	/** how often (in milliseconds) the debug lines are updated */
+	private static final long DEBUG_TEXT_UPDATE_TIME_IN_MS = 1000;
+	
 	public ClientProxy()
 	{
 		lodBuilder = new LodBuilder();
@@ -94,6 +108,9 @@ public class ClientProxy extends CommonProxy
 		if (xOffset != 0 || zOffset != 0)
 		{
 			lodDim.move(xOffset, zOffset);
+			
+			// start reading the regions the player is moving towards
+			lodDim.prefetchRegions(mc.player.motionX, mc.player.motionZ);
 		}
 		
 		// we wait to create the renderer until the first frame
@@ -125,20 +142,88 @@ public class ClientProxy extends CommonProxy
 	}
 	
 	/**
-	 * this event is called whenever a chunk is created for the first time.
+	 * this event is called whenever a world is unloaded,
+	 * make sure nothing that was generated is lost.
 	 */
 	@SubscribeEvent
-	public void onChunkPopulate(PopulateChunkEvent event)
+	public void worldUnloadEvent(WorldEvent.Unload event)
 	{
-		Minecraft mc = Minecraft.getMinecraft();
-		if (mc != null && event != null)
+		if (lodWorld == null || event.getWorld() == null)
+			return;
+		
+		// LodChunks that are still being generated or
+		// haven't been added yet need to be in the
+		// dimension before the last save
+		lodBuilder.flushGeneratedLods();
+		
+		int dimId = event.getWorld().provider.getDimension();
+		LodDimension lodDim = lodWorld.getLodDimension(dimId);
+		if (lodDim != null)
 		{
-			WorldClient world = mc.world;
+			lodDim.saveDirtyRegionsToFile();
 			
-			if(world != null)
-			{
-				lodWorld = lodBuilder.generateLodChunkAsync(world.getChunkFromChunkCoords(event.getChunkX(), event.getChunkZ()));
-			}
+			// don't leave the region files open, if the world
+			// is loaded again a new LodDimension will be created
+			lodDim.close();
+			lodWorld.removeLodDimension(dimId);
+		}
+	}
+	
+	/**
+	 * Add how much memory the current dimension's LODs use
+	 * and how long chunk snapshots take to the debug screen (F3).
+	 */
+	@SubscribeEvent
+	public void debugTextEvent(RenderGameOverlayEvent.Text event)
+	{
+		Minecraft mc = Minecraft.getMinecraft();
+		if (!mc.gameSettings.showDebugInfo || mc.player == null || lodWorld == null)
+			return;
+		
+		LodDimension lodDim = lodWorld.getLodDimension(mc.player.dimension);
+		if (lodDim == null)
+			return;
+		
+		// this locks every region, so don't do it every frame
+		if (System.currentTimeMillis() - lodMemoryDebugTime >= DEBUG_TEXT_UPDATE_TIME_IN_MS)
+		{
+			lodMemoryDebugText = "LOD " + getMemoryText(lodDim);
+			lodSnapshotDebugText = "LOD chunk snapshots: " + lodBuilder.getNumberOfSnapshots() + 
+					", " + String.format("%.3f", lodBuilder.getAverageSnapshotTimeInMs()) + " ms on average";
+			lodMemoryDebugTime = System.currentTimeMillis();
+		}
+		
+		event.getLeft().add(lodMemoryDebugText);
+		event.getLeft().add(lodSnapshotDebugText);
+	}
+	
+	/**
+	 * Returns how much memory the given dimension's loaded and
+	 * cached regions use, and how much sharing payloads saved.
+	 */
+	private static String getMemoryText(LodDimension lodDim)
+	{
+		long usedBytes = lodDim.getRegionMemoryInBytes();
+		long savedBytes = lodDim.getMemorySavedBySharedPayloads();
+		long unsharedBytes = usedBytes + savedBytes;
+		
+		return "regions: " + (usedBytes / 1024) + " KB, shared payloads saved " + (savedBytes / 1024) + " KB" +
+				(unsharedBytes != 0 ? String.format(" (%.1f%%)", 100.0 * savedBytes / unsharedBytes) : "");
+	}
+	
+	/**
+	 * this event is called whenever a chunk is created for the first time,
+	 * after its trees, ores, etc. have been added.
+	 * <br>
+	 * It is fired on the server thread, so the server's copy
+	 * of the chunk is used, not the client's.
+	 */
+	@SubscribeEvent
+	public void onChunkPopulate(PopulateChunkEvent.Post event)
+	{
+		if (event != null && event.getWorld() != null)
+		{
+			lodWorld = lodBuilder.generateLodChunkAsync(event.getWorld().getChunkFromChunkCoords(event.getChunkX(), event.getChunkZ()));
 		}
 	}
 	
@@ -1,6 +1,5 @@
 package com.backsun.lod.renderer;
 
-import java.awt.Color;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
@@ -19,6 +18,7 @@ import com.backsun.lod.builders.BuildBufferThread;
 import com.backsun.lod.handlers.ReflectionHandler;
 import com.backsun.lod.objects.LodChunk;
 import com.backsun.lod.objects.LodDimension;
+import com.backsun.lod.objects.LodRegion;
 import com.backsun.lod.objects.NearFarBuffer;
 import com.backsun.lod.util.LodConfig;
 import com.backsun.lod.util.enums.ColorDirection;
@@ -54,6 +54,12 @@ public class LodRenderer
 	// make sure this is an even number, or else it won't align with the chunk grid
 	/** this is the total width of the LODs (I.E the diameter, not the radius) */
 	private static final int LOD_CHUNK_DISTANCE_RADIUS = 6;
+	/** 
+	 * Groups at mip level L are drawn when they are at least
+	 * (render distance * 2^L) chunks away from the player,
+	 * see getMipLevel.
+	 */
+	private static final int MIP_LEVEL_DISTANCE_MULTIPLIER = 1;
 	
 	private Tessellator tessellator;
 	private BufferBuilder bufferBuilder;
@@ -96,6 +102,8 @@ public class LodRenderer
 	private int prevChunkZ = 0;
 	/** This is used to determine if the LODs should be regenerated */
 	private FogDistance prevFogDistance = FogDistance.NEAR_AND_FAR;
+	/** This is used to determine if the LODs should be regenerated */
+	private int prevAsyncLoadedRegions = 0;
 	
 	/** if this is true the LOD buffers should be regenerated,
 	 * provided they aren't already being regenerated. */
@@ -168,7 +176,8 @@ public class LodRenderer
 			(int)player.posZ / LodChunk.WIDTH != prevChunkZ ||
 			previousChunkRenderDistance != mc.gameSettings.renderDistanceChunks ||
 			prevFogDistance != LodConfig.fogDistance ||
-			lodDimension != newDimension)
+			lodDimension != newDimension ||
+			(newDimension != null && prevAsyncLoadedRegions != newDimension.getNumberOfAsyncLoadedRegions()))
 		{
 			// yes
 			regen = true;
@@ -235,6 +244,10 @@ public class LodRenderer
 			mc.mcProfiler.endStartSection("LOD generation");
 			regenerating = true;
 			
+			// any regions read from file after this point
+			// will need another regeneration
+			prevAsyncLoadedRegions = lodDimension.getNumberOfAsyncLoadedRegions();
+			
 			// this will only be called once, unless the numbBufferThreads changes
 			if (numbBufferThreads != bufferThreads.size())
 				setupBufferThreads();
@@ -548,15 +561,52 @@ public class LodRenderer
 	/**
 	 * @Returns -1 if there are no valid points
 	 */
-	private int getValidHeightPoint(short[] heightPoints)
+	private int getValidHeightPoint(LodRegion region, int level, int chunkX, int chunkZ, boolean top)
 	{
-		if (heightPoints[LodCorner.NE.value] != -1)
-			return heightPoints[LodCorner.NE.value];
-		if (heightPoints[LodCorner.NW.value] != -1)
-			return heightPoints[LodCorner.NW.value];
-		if (heightPoints[LodCorner.SE.value] != -1)
-			return heightPoints[LodCorner.NE.value];
-		return heightPoints[LodCorner.NE.value];
+		short ne = top ? region.getMipTop(level, chunkX, chunkZ, LodCorner.NE) : region.getMipBottom(level, chunkX, chunkZ, LodCorner.NE);
+		short nw = top ? region.getMipTop(level, chunkX, chunkZ, LodCorner.NW) : region.getMipBottom(level, chunkX, chunkZ, LodCorner.NW);
+		short se = top ? region.getMipTop(level, chunkX, chunkZ, LodCorner.SE) : region.getMipBottom(level, chunkX, chunkZ, LodCorner.SE);
+		
+		if (ne != -1)
+			return ne;
+		if (nw != -1)
+			return nw;
+		if (se != -1)
+			return ne;
+		return ne;
+	}
+	
+	
+	/**
+	 * Returns which mip level the given chunk should be drawn at.
+	 * <br><br>
+	 * Starting at the highest level, the group that holds the chunk
+	 * is used if its closest chunk is at least 
+	 * (render distance * MIP_LEVEL_DISTANCE_MULTIPLIER * 2^level) chunks from the player,
+	 * otherwise the next level down is checked.
+	 * Since the groups are checked from the top down, every chunk in a group
+	 * gets the same level, so the groups never overlap.
+	 */
+	private int getMipLevel(int chunkX, int chunkZ, int playerChunkX, int playerChunkZ)
+	{
+		int baseDistance = Math.max(1, mc.gameSettings.renderDistanceChunks * MIP_LEVEL_DISTANCE_MULTIPLIER);
+		
+		for(int level = LodRegion.MAX_MIP_LEVEL; level > 0; level--)
+		{
+			int startX = LodRegion.getMipGroupStart(chunkX, level);
+			int startZ = LodRegion.getMipGroupStart(chunkZ, level);
+			int endX = startX + LodRegion.getMipGroupWidth(chunkX, level) - 1;
+			int endZ = startZ + LodRegion.getMipGroupWidth(chunkZ, level) - 1;
+			
+			// how far the closest chunk in the group is from the player
+			int distanceX = Math.max(0, Math.max(startX - playerChunkX, playerChunkX - endX));
+			int distanceZ = Math.max(0, Math.max(startZ - playerChunkZ, playerChunkZ - endZ));
+			
+			if (Math.max(distanceX, distanceZ) >= baseDistance << level)
+				return level;
+		}
+		
+		return 0;
 	}
 	
 	
@@ -574,17 +624,16 @@ public class LodRenderer
 	{
 		// this is where we store the points for each LOD object
 		AxisAlignedBB lodArray[][] = new AxisAlignedBB[numbChunksWide][numbChunksWide];
-		// this is where we store the color for each LOD object
-		Color colorArray[][] = new Color[numbChunksWide][numbChunksWide];
+		// this is where we store the ARGB color for each LOD object
+		int colorArray[][] = new int[numbChunksWide][numbChunksWide];
 		
-		int alpha = 255; // 0 - 255
-		Color red = new Color(255, 0, 0, alpha);
-		Color black = new Color(0, 0, 0, alpha);
-		Color white = new Color(255, 255, 255, alpha);
+		int red = LodChunk.colorToInt(255, 0, 0);
+		int black = LodChunk.colorToInt(0, 0, 0);
+		int white = LodChunk.colorToInt(255, 255, 255);
 		@SuppressWarnings("unused")
-		Color invisible = new Color(0,0,0,0);
+		int invisible = LodChunk.INVISIBLE_COLOR;
 		@SuppressWarnings("unused")
-		Color error = new Color(255, 0, 225, alpha); // bright pink
+		int error = LodChunk.colorToInt(255, 0, 225); // bright pink
 		
 		// this seemingly useless math is required,
 		// just using (int) camera doesn't work
@@ -595,6 +644,12 @@ public class LodRenderer
 		int startX = (-LodChunk.WIDTH * (numbChunksWide / 2)) + playerXChunkOffset;
 		int startZ = (-LodChunk.WIDTH * (numbChunksWide / 2)) + playerZChunkOffset;
 		
+		int playerChunkX = playerXChunkOffset / LodChunk.WIDTH;
+		int playerChunkZ = playerZChunkOffset / LodChunk.WIDTH;
+		// the last chunk in the array
+		int lastChunkX = (startX / LodChunk.WIDTH) + numbChunksWide - 1;
+		int lastChunkZ = (startZ / LodChunk.WIDTH) + numbChunksWide - 1;
+		
 		Thread t = new Thread(()->
 		{
 			// x axis
@@ -623,25 +678,63 @@ public class LodRenderer
 					int chunkX = i + (startX / LodChunk.WIDTH);
 					int chunkZ = j + (startZ / LodChunk.WIDTH);
 					
-					LodChunk lod = lodDimension.getLodFromCoordinates(chunkX, chunkZ);
-					if (lod == null)
+					// the LODs are read straight out of the region
+					// so no objects are created for them
+					LodRegion region = lodDimension.getRegionFromChunkCoordinates(chunkX, chunkZ);
+					
+					// far away chunks are drawn as part of a bigger group,
+					// the group is only drawn by its first chunk in the array
+					int level = getMipLevel(chunkX, chunkZ, playerChunkX, playerChunkZ);
+					int groupStartX = LodRegion.getMipGroupStart(chunkX, level);
+					int groupStartZ = LodRegion.getMipGroupStart(chunkZ, level);
+					boolean firstInGroup = 
+							chunkX == Math.max(groupStartX, startX / LodChunk.WIDTH) && 
+							chunkZ == Math.max(groupStartZ, startZ / LodChunk.WIDTH);
+					
+					if (region == null || !firstInGroup)
+					{
+						colorArray[i][j] = LodChunk.INVISIBLE_COLOR;
+						lodArray[i][j] = null;
+						
+						continue;
+					}
+					
+					// the generator can write to the region while we read it,
+					// if it did read the group again while holding the read lock
+					long stamp = region.tryOptimisticRead();
+					boolean hasLod = region.hasMipLod(level, chunkX, chunkZ);
+					int c = region.getMipColor(level, chunkX, chunkZ, ColorDirection.TOP);
+					int topPoint = getValidHeightPoint(region, level, chunkX, chunkZ, true);
+					int bottomPoint = getValidHeightPoint(region, level, chunkX, chunkZ, false);
+					
+					if (!region.validate(stamp))
+					{
+						stamp = region.readLock();
+						try
+						{
+							hasLod = region.hasMipLod(level, chunkX, chunkZ);
+							c = region.getMipColor(level, chunkX, chunkZ, ColorDirection.TOP);
+							topPoint = getValidHeightPoint(region, level, chunkX, chunkZ, true);
+							bottomPoint = getValidHeightPoint(region, level, chunkX, chunkZ, false);
+						}
+						finally
+						{
+							region.unlockRead(stamp);
+						}
+					}
+					
+					if (!hasLod)
 					{
 						// note: for some reason if any color or lod objects are set here
 						// it causes the game to use 100% gpu; 
 						// undefined in the debug menu
 						// and drop to ~6 fps.
-						colorArray[i][j] = null;
+						colorArray[i][j] = LodChunk.INVISIBLE_COLOR;
 						lodArray[i][j] = null;
 						
 						continue;
 					}
 					
-					Color c = new Color(
-							(lod.colors[ColorDirection.TOP.value].getRed()),
-							(lod.colors[ColorDirection.TOP.value].getGreen()),
-							(lod.colors[ColorDirection.TOP.value].getBlue()),
-							lod.colors[ColorDirection.TOP.value].getAlpha());
-										
 					if (!debugging)
 					{
 						// add the color to the array
@@ -662,15 +755,20 @@ public class LodRenderer
 					}
 					
 					
-					// add the new box to the array
-					int topPoint = getValidHeightPoint(lod.top);
-					int bottomPoint = getValidHeightPoint(lod.bottom);
-					
 					// don't draw an LOD if it is empty
 					if (topPoint == -1 && bottomPoint == -1)
 						continue;
 					
-					lodArray[i][j] = new AxisAlignedBB(0, bottomPoint, 0, LodChunk.WIDTH, topPoint, LodChunk.WIDTH).offset(xOffset, yOffset, zOffset);
+					// groups cut off by the edge of the array are only
+					// drawn up to the edge, this chunk is the group's
+					// first chunk inside the array
+					int groupEndX = Math.min(groupStartX + LodRegion.getMipGroupWidth(chunkX, level), lastChunkX + 1);
+					int groupEndZ = Math.min(groupStartZ + LodRegion.getMipGroupWidth(chunkZ, level), lastChunkZ + 1);
+					int groupWidthX = (groupEndX - chunkX) * LodChunk.WIDTH;
+					int groupWidthZ = (groupEndZ - chunkZ) * LodChunk.WIDTH;
+					
+					// add the new box to the array
+					lodArray[i][j] = new AxisAlignedBB(0, bottomPoint, 0, groupWidthX, topPoint, groupWidthZ).offset(xOffset, yOffset, zOffset);
 				}
 			}
 			
@@ -690,7 +788,7 @@ public class LodRenderer
 	 * @param lods bounding boxes to draw
 	 * @param colors color of each box to draw
 	 */
-	private void generateLodBuffers(AxisAlignedBB[][] lods, Color[][] colors, FogDistance fogDistance)
+	private void generateLodBuffers(AxisAlignedBB[][] lods, int[][] colors, FogDistance fogDistance)
 	{
 		List<Future<NearFarBuffer>> bufferFutures = new ArrayList<>();
 		ArrayList<BuildBufferThread> threadsToRun = new ArrayList<>();
@@ -1,6 +1,8 @@
 package com.backsun.lod.util;
 
 import com.backsun.lod.util.enums.FogDistance;
+import com.backsun.lod.util.enums.RegionMemory;
+import com.backsun.lod.util.enums.StorageFormat;
 
 import net.minecraftforge.common.config.Config;
 import net.minecraftforge.common.config.ConfigManager;
@@ -52,5 +54,57 @@ public class LodConfig
 			+ "giant game of chess ;)"})
 	public static boolean drawCheckerBoard = false;
 	
+	@Config.Comment(
+			{"Storage Format", 
+			"How should LODs be saved to your world's save folder? "
+			+ "MAPPED only rewrites the parts of a region that changed, "
+			+ "COMPRESSED uses much less disk space but has to "
+			+ "rewrite the whole region every time it is saved, "
+			+ "SINGLE_FILE compresses every region into one file per dimension."})
+	public static StorageFormat storageFormat = StorageFormat.MAPPED;
+	
+	@Config.Comment(
+			{"Compression Level", 
+			"How hard should the COMPRESSED and SINGLE_FILE storage formats try to compress LODs? "
+			+ "0 is no compression, 1 is the fastest and 9 is the smallest."})
+	@Config.RangeInt(min = 0, max = 9)
+	public static int compressionLevel = 6;
+	
+	@Config.Comment(
+			{"Region Memory", 
+			"Where should loaded LODs be stored? "
+			+ "HEAP uses normal Java memory. "
+			+ "DIRECT uses memory outside of Java's heap, the garbage collector "
+			+ "doesn't have to copy it but it is still only freed once the garbage "
+			+ "collector removes the region. It doesn't count towards -Xmx, "
+			+ "but is limited by -XX:MaxDirectMemorySize which is the same as -Xmx by default. "
+			+ "Only regions loaded after this is changed are affected."})
+	public static RegionMemory regionMemory = RegionMemory.HEAP;
+	
+	@Config.Comment(
+			{"Region Cache Size", 
+			"How many megabytes of LODs should each dimension keep in memory "
+			+ "after they are out of view? Going back to an area that is still "
+			+ "cached doesn't have to read it from your world's save folder. "
+			+ "Each region uses up to about 55 KB, less in areas where the LODs repeat."})
+	@Config.RangeInt(min = 0, max = 4096)
+	public static int regionCacheSizeInMB = 64;
+	
+	@Config.Comment(
+			{"LOD Generation Threads", 
+			"How many threads should generate LODs? "
+			+ "More threads generate LODs faster when a lot of chunks load at once, "
+			+ "but take more CPU time away from Minecraft."})
+	@Config.RangeInt(min = 1, max = 16)
+	public static int numberOfGenerationThreads = Math.max(1, Math.min(16, Runtime.getRuntime().availableProcessors() / 2));
+	
+	@Config.Comment(
+			{"LOD Generation Queue Size", 
+			"How many chunks can wait to have their LODs generated? "
+			+ "When more are waiting the oldest ones are skipped, "
+			+ "they will be generated again the next time they load."})
+	@Config.RangeInt(min = 16, max = 65536)
+	public static int generationQueueSize = 1024;
+	
 	
 }
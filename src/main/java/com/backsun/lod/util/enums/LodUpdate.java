@@ -0,0 +1,30 @@
+package com.backsun.lod.util.enums;
+
+/**
+ * UNCHANGED, CHANGED, DIRTIED
+ * <br><br>
+ * What happened when LODs were added to a LodRegion.
+ * 
+ * @author James Seibel
+ * @version 10-16-2026
+ */
+public enum LodUpdate
+{
+	/** 
+	 * every LOD was the same as the one already stored, 
+	 * so nothing was written or marked dirty. 
+	 */
+	UNCHANGED,
+	
+	/** 
+	 * at least one LOD was written, 
+	 * the region already had unsaved changes. 
+	 */
+	CHANGED,
+	
+	/** 
+	 * at least one LOD was written and
+	 * the region didn't have any unsaved changes before. 
+	 */
+	DIRTIED;
+}
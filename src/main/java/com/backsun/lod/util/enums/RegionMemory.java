@@ -0,0 +1,25 @@
+package com.backsun.lod.util.enums;
+
+/**
+ * HEAP, DIRECT
+ * 
+ * @author James Seibel
+ * @version 10-16-2026
+ */
+public enum RegionMemory
+{
+	/** 
+	 * regions are stored in normal Java memory,
+	 * which counts towards the -Xmx limit. 
+	 */
+	HEAP,
+	
+	/** 
+	 * regions are stored outside of the Java heap,
+	 * so the garbage collector doesn't have to copy them. <br>
+	 * The memory is still only freed once the region is garbage
+	 * collected, and is limited by -XX:MaxDirectMemorySize
+	 * (the same as -Xmx by default).
+	 */
+	DIRECT;
+}
@@ -0,0 +1,30 @@
+package com.backsun.lod.util.enums;
+
+/**
+ * MAPPED, COMPRESSED, SINGLE_FILE
+ * 
+ * @author James Seibel
+ * @version 10-16-2026
+ */
+public enum StorageFormat
+{
+	/** 
+	 * one fixed size file per region that is memory mapped,
+	 * only the chunks that changed are written. 
+	 */
+	MAPPED,
+	
+	/** 
+	 * one deflate compressed file per region,
+	 * uses much less disk space but the whole file
+	 * is rewritten when saving. 
+	 */
+	COMPRESSED,
+	
+	/** 
+	 * every region in a dimension is compressed and
+	 * stored in one file, new data is written to free space
+	 * instead of replacing whole files. 
+	 */
+	SINGLE_FILE;
+}
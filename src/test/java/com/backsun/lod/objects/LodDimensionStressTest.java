@@ -0,0 +1,76 @@
+package com.backsun.lod.objects;
+
+import org.junit.Test;
+
+import com.backsun.lod.util.LodConfig;
+import com.backsun.lod.util.enums.StorageFormat;
+
+/**
+ * Runs LodDimensionStressTester with every storage format
+ * and every size in CACHE_SIZES_IN_MB, a cache of 0 MB sends
+ * every region that leaves the loaded area straight to the
+ * file handler.
+ * <br><br>
+ * Each run takes 2 seconds, longer runs can be done with: <br>
+ * gradlew test -Dlod.stressTestSeconds=[seconds per run]
+ * 
+ * @author James Seibel
+ * @version 10-16-2026
+ */
+public class LodDimensionStressTest
+{
+	/** the region cache sizes each run is repeated with */
+	private static final int[] CACHE_SIZES_IN_MB = {0, 1, 64};
+	
+	private static final long RUN_TIME_IN_MS = Math.max(1, Integer.getInteger("lod.stressTestSeconds", 2)) * 1000L;
+	
+	
+	
+	@Test
+	public void mappedFormat() throws Exception
+	{
+		runEveryCacheSize(StorageFormat.MAPPED);
+	}
+	
+	@Test
+	public void compressedFormat() throws Exception
+	{
+		runEveryCacheSize(StorageFormat.COMPRESSED);
+	}
+	
+	@Test
+	public void singleFileFormat() throws Exception
+	{
+		runEveryCacheSize(StorageFormat.SINGLE_FILE);
+	}
+	
+	
+	/**
+	 * Run the stress tester once for each cache size,
+	 * the config is put back afterwards even if a run fails.
+	 */
+	private static void runEveryCacheSize(StorageFormat storageFormat) throws Exception
+	{
+		StorageFormat oldStorageFormat = LodConfig.storageFormat;
+		int oldCacheSizeInMB = LodConfig.regionCacheSizeInMB;
+		
+		try
+		{
+			LodConfig.storageFormat = storageFormat;
+			
+			for(int cacheSize : CACHE_SIZES_IN_MB)
+			{
+				LodConfig.regionCacheSizeInMB = cacheSize;
+				
+				LodDimensionStressTester tester = new LodDimensionStressTester(RUN_TIME_IN_MS, System.nanoTime());
+				tester.run();
+				tester.assertPassed();
+			}
+		}
+		finally
+		{
+			LodConfig.storageFormat = oldStorageFormat;
+			LodConfig.regionCacheSizeInMB = oldCacheSizeInMB;
+		}
+	}
+}
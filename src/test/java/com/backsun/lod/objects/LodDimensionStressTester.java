@@ -0,0 +1,452 @@
+package com.backsun.lod.objects;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.backsun.lod.util.LodConfig;
+import com.backsun.lod.util.enums.ColorDirection;
+import com.backsun.lod.util.enums.LodCorner;
+
+import net.minecraft.util.math.ChunkPos;
+import net.minecraft.world.DimensionType;
+
+/**
+ * This checks a LodDimension can be moved, resized,
+ * written and read from many threads at once without
+ * losing LODs or handing out half written ones.
+ * It is run by LodDimensionStressTest.
+ * <br><br>
+ * Each run uses a new LodDimension saving to a temporary folder:
+ * one thread moves and resizes it, WRITER_COUNT threads call addLod and
+ * READER_COUNT threads call getLodFromCoordinates and read regions
+ * optimistically, like the renderer does. The dimension uses
+ * whatever storage format and region cache size LodConfig has.
+ * <br><br>
+ * After each run the dimension is saved and closed, and every
+ * LOD a writer saw in its region is read back from file.
+ *
+ * @author James Seibel
+ * @version 10-16-2026
+ */
+public class LodDimensionStressTester
+{
+	/** the widths the dimension is resized between, like changing the render distance */
+	private static final int[] WIDTHS = {4, 5, 8};
+	/** how far (in regions) the center can wander from 0 */
+	private static final int MAX_CENTER = 6;
+	
+	private static final int WRITER_COUNT = 2;
+	private static final int READER_COUNT = 2;
+	
+	private final long runTimeInMs;
+	private final long seed;
+	
+	private LodDimension lodDim;
+	private volatile boolean running;
+	
+	/**
+	 * The LOD each writer last saw in its region after writing it. <br>
+	 * Key = ChunkPos.asLong(chunkX, chunkZ) <br><br>
+	 * Each coordinate is only written by one writer
+	 * (see getWriterChunkX), so the newest entry is what should be saved.
+	 */
+	private final Map<Long, LodChunk> confirmedLods = new ConcurrentHashMap<>();
+	/** every LOD written gets a new value, see createLod */
+	private final AtomicInteger nextLodValue = new AtomicInteger(SHARED_LOD_VALUES + 1);
+	/** values up to this are shared by many LODs, so the regions share payloads */
+	private static final int SHARED_LOD_VALUES = 4;
+	
+	private final AtomicLong moves = new AtomicLong(0);
+	private final AtomicLong resizes = new AtomicLong(0);
+	private final AtomicLong lodsAdded = new AtomicLong(0);
+	private final AtomicLong reads = new AtomicLong(0);
+	/** reads that validated but found a LOD that was never written */
+	private final AtomicLong tornReads = new AtomicLong(0);
+	private final AtomicLong exceptions = new AtomicLong(0);
+	/** the first exception any thread threw, the rest are probably the same */
+	private final AtomicReference<RuntimeException> firstException = new AtomicReference<>();
+	/** confirmed LODs that weren't in the file after the final save */
+	private long missingLods = 0;
+	
+	
+	
+	public LodDimensionStressTester(long newRunTimeInMs, long newSeed)
+	{
+		runTimeInMs = newRunTimeInMs;
+		seed = newSeed;
+	}
+	
+	
+	
+	
+	
+	//=====//
+	// run //
+	//=====//
+	
+	/**
+	 * Run the threads for runTimeInMs, then save the
+	 * dimension and check every confirmed LOD was saved.
+	 * 
+	 * @throws IOException if the temporary folder couldn't be created
+	 */
+	public void run() throws IOException
+	{
+		File worldFolder = Files.createTempDirectory("lod_stress").toFile();
+		
+		try
+		{
+			lodDim = new LodDimension(DimensionType.OVERWORLD, WIDTHS[1], worldFolder);
+			
+			ArrayList<Thread> threads = new ArrayList<>();
+			threads.add(new Thread(() -> moveLoop(new Random(seed)), "LOD stress mover"));
+			for(int i = 0; i < WRITER_COUNT; i++)
+			{
+				int writerIndex = i;
+				threads.add(new Thread(() -> writeLoop(writerIndex, new Random(seed + 1 + writerIndex)), "LOD stress writer " + i));
+			}
+			for(int i = 0; i < READER_COUNT; i++)
+			{
+				int readerIndex = i;
+				threads.add(new Thread(() -> readLoop(new Random(seed + 1 + WRITER_COUNT + readerIndex)), "LOD stress reader " + i));
+			}
+			
+			running = true;
+			for(Thread thread : threads)
+				thread.start();
+			
+			try
+			{
+				Thread.sleep(runTimeInMs);
+			}
+			catch (InterruptedException e)
+			{
+				// stop early
+			}
+			
+			running = false;
+			for(Thread thread : threads)
+			{
+				try
+				{
+					thread.join();
+				}
+				catch (InterruptedException e)
+				{
+					exceptions.incrementAndGet();
+				}
+			}
+			
+			lodDim.saveDirtyRegionsToFile();
+			lodDim.close();
+			
+			missingLods = countMissingLods(worldFolder);
+		}
+		finally
+		{
+			deleteFolder(worldFolder);
+		}
+	}
+	
+	/**
+	 * Move the dimension by a few regions at a time,
+	 * sometimes jumping further than its width or resizing it.
+	 */
+	private void moveLoop(Random random)
+	{
+		while(running)
+		{
+			try
+			{
+				int action = random.nextInt(20);
+				if (action == 0)
+				{
+					lodDim.setRegionWidth(WIDTHS[random.nextInt(WIDTHS.length)]);
+					resizes.incrementAndGet();
+				}
+				else
+				{
+					// a teleport is further than the width
+					int maxOffset = (action == 1) ? MAX_CENTER * 2 : 2;
+					int newCenterX = clampCenter(lodDim.getCenterX() + random.nextInt((maxOffset * 2) + 1) - maxOffset);
+					int newCenterZ = clampCenter(lodDim.getCenterZ() + random.nextInt((maxOffset * 2) + 1) - maxOffset);
+					
+					lodDim.move(newCenterX - lodDim.getCenterX(), newCenterZ - lodDim.getCenterZ());
+					lodDim.prefetchRegions(0, 0);
+					moves.incrementAndGet();
+				}
+				
+				Thread.yield();
+			}
+			catch (RuntimeException e)
+			{
+				recordException(e);
+			}
+		}
+	}
+	
+	/**
+	 * Add LODs near the center, and remember what 
+	 * their region held right after they were added.
+	 */
+	private void writeLoop(int writerIndex, Random random)
+	{
+		while(running)
+		{
+			try
+			{
+				int chunkX = getWriterChunkX(getRandomChunkCoordinate(lodDim.getCenterX(), random), writerIndex);
+				int chunkZ = getRandomChunkCoordinate(lodDim.getCenterZ(), random);
+				
+				// some LODs are the same, and every other row of regions
+				// is all ocean so those regions share payloads, the rows
+				// swap every 2 seconds so regions also stop sharing
+				long period = System.currentTimeMillis() / 2000;
+				int value = nextLodValue.getAndIncrement();
+				if (Math.floorMod(LodRegion.getRegionCoordinate(chunkZ) + period, 2) == 0)
+					value = 1;
+				else if (random.nextInt(4) == 0)
+					value = 1 + random.nextInt(SHARED_LOD_VALUES);
+				LodChunk lod = createLod(chunkX, chunkZ, value);
+				
+				lodDim.addLod(lod);
+				lodsAdded.incrementAndGet();
+				
+				// the LOD is dropped if its region left the loaded area,
+				// so whatever its region holds now is what has to be saved
+				long key = ChunkPos.asLong(chunkX, chunkZ);
+				LodRegion region = lodDim.getRegion(LodRegion.getRegionCoordinate(chunkX), LodRegion.getRegionCoordinate(chunkZ));
+				LodChunk storedLod = (region != null) ? region.getLod(chunkX, chunkZ) : null;
+				
+				if (storedLod != null)
+					confirmedLods.put(key, storedLod);
+				else
+					// the region is out of range, we don't 
+					// know if the LOD made it in before it left
+					confirmedLods.remove(key);
+			}
+			catch (RuntimeException e)
+			{
+				recordException(e);
+			}
+		}
+	}
+	
+	/**
+	 * Read LODs near the center the way the renderer does,
+	 * without waiting for regions to be read from file.
+	 */
+	private void readLoop(Random random)
+	{
+		while(running)
+		{
+			try
+			{
+				int chunkX = getRandomChunkCoordinate(lodDim.getCenterX(), random);
+				int chunkZ = getRandomChunkCoordinate(lodDim.getCenterZ(), random);
+				
+				LodChunk lod = lodDim.getLodFromCoordinates(chunkX, chunkZ);
+				if (lod != null && !isLodValid(lod.getTop(LodCorner.NE), lod.getBottom(LodCorner.SW), lod.getColor(ColorDirection.TOP), lod.getColor(ColorDirection.BOTTOM)))
+					tornReads.incrementAndGet();
+				reads.incrementAndGet();
+				
+				LodRegion region = lodDim.getRegionFromChunkCoordinates(chunkX, chunkZ);
+				if (region == null)
+					continue;
+				
+				long stamp = region.tryOptimisticRead();
+				boolean hasLod = region.hasLod(chunkX, chunkZ);
+				short top = region.getTop(chunkX, chunkZ, LodCorner.NE);
+				short bottom = region.getBottom(chunkX, chunkZ, LodCorner.SW);
+				int topColor = region.getColor(chunkX, chunkZ, ColorDirection.TOP);
+				int bottomColor = region.getColor(chunkX, chunkZ, ColorDirection.BOTTOM);
+				
+				// a read that doesn't validate would be
+				// thrown away (or read again) by the renderer
+				if (region.validate(stamp) && hasLod && !isLodValid(top, bottom, topColor, bottomColor))
+					tornReads.incrementAndGet();
+				reads.incrementAndGet();
+			}
+			catch (RuntimeException e)
+			{
+				recordException(e);
+			}
+		}
+	}
+	
+	/**
+	 * Read every confirmed LOD's region from file
+	 * and return how many of the LODs don't match.
+	 */
+	private long countMissingLods(File worldFolder)
+	{
+		// Key = ChunkPos.asLong(regionX, regionZ)
+		HashMap<Long, ArrayList<LodChunk>> lodsByRegion = new HashMap<>();
+		for(LodChunk lod : confirmedLods.values())
+			lodsByRegion.computeIfAbsent(ChunkPos.asLong(LodRegion.getRegionCoordinate(lod.x), LodRegion.getRegionCoordinate(lod.z)), k -> new ArrayList<>()).add(lod);
+		
+		// a new dimension doesn't have anything in memory,
+		// so every region comes from the file
+		LodDimension savedDim = new LodDimension(DimensionType.OVERWORLD, WIDTHS[1], worldFolder);
+		long missing = 0;
+		try
+		{
+			for(ArrayList<LodChunk> lods : lodsByRegion.values())
+			{
+				LodRegion region = savedDim.getRegionFromFile(LodRegion.getRegionCoordinate(lods.get(0).x), LodRegion.getRegionCoordinate(lods.get(0).z));
+				
+				for(LodChunk lod : lods)
+					if (region == null || !lod.equals(region.getLod(lod.x, lod.z)))
+						missing++;
+			}
+		}
+		finally
+		{
+			savedDim.close();
+		}
+		
+		return missing;
+	}
+	
+	
+	
+	
+	
+	//================//
+	// helper methods //
+	//================//
+	
+	/**
+	 * Returns a LOD whose heights and colors all come from
+	 * the given value, so isLodValid can tell if a read mixed
+	 * two different LODs together.
+	 */
+	private static LodChunk createLod(int chunkX, int chunkZ, int value)
+	{
+		short[] top = new short[LodCorner.values().length];
+		short[] bottom = new short[LodCorner.values().length];
+		int[] colors = new int[ColorDirection.values().length];
+		
+		for(int i = 0; i < top.length; i++)
+		{
+			top[i] = getTop(value);
+			bottom[i] = getBottom(value);
+		}
+		for(int i = 0; i < colors.length; i++)
+			colors[i] = getColor(value);
+		
+		return new LodChunk(chunkX, chunkZ, top, bottom, colors);
+	}
+	
+	private static short getTop(int value)
+	{
+		return (short) (128 + (value % 128));
+	}
+	
+	private static short getBottom(int value)
+	{
+		return (short) ((value / 128) % 128);
+	}
+	
+	private static int getColor(int value)
+	{
+		// opaque so the color is never 0
+		return 0xFF000000 | (value & 0xFFFFFF);
+	}
+	
+	/**
+	 * Returns true if the given heights and colors
+	 * all came from the same createLod value.
+	 */
+	private static boolean isLodValid(short top, short bottom, int topColor, int bottomColor)
+	{
+		int value = topColor & 0xFFFFFF;
+		return topColor == bottomColor && top == getTop(value) && bottom == getBottom(value);
+	}
+	
+	/**
+	 * Returns a random chunk coordinate in the loaded area
+	 * around the given center, or a region past its edge.
+	 */
+	private int getRandomChunkCoordinate(int centerRegion, Random random)
+	{
+		int halfWidth = (lodDim.getWidth() / 2) + 1;
+		int region = centerRegion + random.nextInt((halfWidth * 2) + 1) - halfWidth;
+		return (region * LodRegion.SIZE) + random.nextInt(LodRegion.SIZE);
+	}
+	
+	/**
+	 * Returns the closest chunk X coordinate at or below the given one
+	 * that belongs to the given writer, so no two writers write the same LOD.
+	 */
+	private static int getWriterChunkX(int chunkX, int writerIndex)
+	{
+		return chunkX - Math.floorMod(chunkX - writerIndex, WRITER_COUNT);
+	}
+	
+	private static int clampCenter(int center)
+	{
+		return Math.max(-MAX_CENTER, Math.min(MAX_CENTER, center));
+	}
+	
+	private void recordException(RuntimeException e)
+	{
+		exceptions.incrementAndGet();
+		firstException.compareAndSet(null, e);
+	}
+	
+	private static void deleteFolder(File folder)
+	{
+		File[] files = folder.listFiles();
+		if (files != null)
+			for(File file : files)
+				if (file.isDirectory())
+					deleteFolder(file);
+				else
+					file.delete();
+		
+		folder.delete();
+	}
+	
+	
+	
+	
+	
+	//========//
+	// report //
+	//========//
+	
+	/**
+	 * Throws an AssertionError describing the run if any LOD was lost,
+	 * any read was torn or anything threw.
+	 */
+	public void assertPassed()
+	{
+		if (missingLods != 0 || tornReads.get() != 0 || exceptions.get() != 0)
+			throw new AssertionError(getReport(), firstException.get());
+		
+		// make sure the threads actually did something
+		if (lodsAdded.get() == 0 || reads.get() == 0 || moves.get() == 0)
+			throw new AssertionError("A thread never ran: " + getReport());
+	}
+	
+	/**
+	 * Returns how much each thread did and what went wrong.
+	 */
+	public String getReport()
+	{
+		return LodConfig.storageFormat + ", cache " + LodConfig.regionCacheSizeInMB + " MB, " + (runTimeInMs / 1000.0) + " seconds, seed " + seed + ": " +
+				"moves: " + moves.get() + ", resizes: " + resizes.get() + ", addLods: " + lodsAdded.get() + ", reads: " + reads.get() + ", " +
+				"confirmed LODs: " + confirmedLods.size() + ", missing from file: " + missingLods +
+				", torn reads: " + tornReads.get() + ", exceptions: " + exceptions.get();
+	}
+}